@@ -2,11 +2,43 @@ import java.io.IOException;
 import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -22,7 +54,7 @@ import javax.swing.JTextField;
  */
 public class ChatClient {
 
-	private Socket s;
+	private ByteChannel channel;
 	private ClientConnection cc;
 	private String name;
 	
@@ -31,25 +63,30 @@ public class ChatClient {
 	 * thread. Opens a new socket. While loop listens for input from command line
 	 * and outputs to server.
 	 *
-	 * @param port
-	 * 		The port on which to open the socket
-	 * @param address
-	 * 		The address of the socket
+	 * @param options
+	 * 		The address and port of the server, and whether to use TLS
 	 */
-	public ChatClient(String address, int port) {
+	public ChatClient(ClientOptions options) {
 		try {
 
 			
-			System.out.println("To shutdown the client type EXIT.\nPlease enter your name: ");
+			System.out.println("To shutdown the client type EXIT. To share a file type /send followed by its path. "
+					+ "To see who is online type /who. To find earlier messages type /search followed by words.\n"
+					+ "To message one person type /msg followed by their name, they will get it even if they are away.\n"
+					+ "To measure latency type /ping, or /trace to time every message you send.\n"
+					+ "To see how many people have received your last message type /seen.\n"
+					+ "To send a message later type /in or /every followed by a time such as 10m, then the message. "
+					+ "To see them type /schedules.\n"
+					+ "Please enter your name: ");
 
 			BufferedReader nameInput = new BufferedReader(new InputStreamReader(System.in));
 			this.name = nameInput.readLine();
 
 			BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
 
-			this.s = new Socket(address, port);
+			this.channel = options.connect();
 
-			this.cc = new ClientConnection(s, this, name);
+			this.cc = new ClientConnection(channel, options, name);
 			Thread t = new Thread(cc);
 			t.start();
 
@@ -67,7 +104,24 @@ public class ChatClient {
 					System.exit(0);
 					break;
 				}
-				this.cc.sendToServer(message);
+				
+				if (FileLane.isCommand(message)) {
+					this.cc.startFileTransfer(message);
+				} else if (message.equals("/who")) {
+					System.out.println(this.cc.getRoster().describe());
+				} else if (ClientSearch.isCommand(message)) {
+					this.cc.search(message);
+				} else if (message.startsWith("/msg ")) {
+					this.cc.sendToServer(ChatProtocol.CONTROL + ChatProtocol.DIRECT + message.substring(5));
+				} else if (ClientTrace.isCommand(message)) {
+					this.cc.getTrace().command(message);
+				} else if (ClientAcks.isCommand(message)) {
+					System.out.println(this.cc.getAcks().describe());
+				} else if (ClientSchedule.isCommand(message)) {
+					this.cc.schedule(message);
+				} else {
+					this.cc.sendToServer(this.cc.getTrace().wrap(message));
+				}
 
 			}
 
@@ -95,9 +149,6 @@ public class ChatClient {
 	 */
 	public static void main(String[] args) {
 		try {
-
-			String defaultAddress = "localhost";
-			int defaultPort = 14001;
 			
 			System.out.println("Would you like to run in GUI mode? Y/N");
 			
@@ -109,34 +160,7 @@ public class ChatClient {
 			while (repeat) {
 				if (answer.equals("N")) {
 					repeat = false;
-					
-					// check how many args are present
-					if (args.length == 2) {
-						
-						if (args.length == 4) {
-							
-							// checks if valid args are provided
-							if (args[0].startsWith("-cca") && args[2].startsWith("-ccp")) {
-								String address = args[1].toString();
-								int port = Integer.parseInt(args[3].toString());
-								
-								new ChatClient(address, port);
-							}
-						} else {
-							
-							if (args[0].startsWith("-ccp")) {
-								int port = Integer.parseInt(args[1].toString());
-								new ChatClient(defaultAddress, port);
-							} else if (args[0].startsWith("-cca")) {
-								String address = args[1].toString();
-								new ChatClient(address, defaultPort);
-							}
-						}
-
-					} else {
-						new ChatClient(defaultAddress, defaultPort);
-					}
-					
+					new ChatClient(ClientOptions.parse(args));
 				} else if (answer.equals("Y")) {
 					repeat = false;
 					GUIChatClient.main(args);
@@ -153,6 +177,285 @@ public class ChatClient {
 	}
 }
 
+/**
+ * Holds the options the client is started with, read from the command line
+ * arguments. -cca sets the address of the server, -ccp sets the port and -cctls
+ * connects with TLS, trusting the certificates in the javax.net.ssl.trustStore
+ * system properties. -ccshm connects to a server on the same host through
+ * shared memory, which does not use TLS. -ccfailover lists further servers as
+ * host:port separated by commas, tried in order when the first cannot be
+ * reached, and again whenever the connection is lost. A server shutting down
+ * tells its clients to reconnect, to another server if it names one.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientOptions {
+
+	String address = "localhost";
+	int port = 14001;
+	boolean tls;
+	boolean sharedMemory;
+	ArrayList<InetSocketAddress> failover = new ArrayList<InetSocketAddress>();
+	
+	// set when the server says it is restarting, and where it sent the client
+	volatile boolean restarting;
+	volatile InetSocketAddress redirect;
+	
+	// how long to keep trying the servers once the connection is lost
+	public static final long RECONNECT_MILLIS = 30000;
+
+	/**
+	 * Reads the options from the command line arguments
+	 * 
+	 * @param args
+	 * 		the command line arguments
+	 * @return the options
+	 */
+	public static ClientOptions parse(String[] args) {
+		ClientOptions options = new ClientOptions();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-cca") && i + 1 < args.length) {
+				options.address = args[++i];
+			} else if (args[i].startsWith("-ccp") && i + 1 < args.length) {
+				options.port = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-cctls")) {
+				options.tls = true;
+			} else if (args[i].startsWith("-ccshm")) {
+				options.sharedMemory = true;
+			} else if (args[i].startsWith("-ccfailover") && i + 1 < args.length) {
+				for (String server : args[++i].split(",")) {
+					int colon = server.lastIndexOf(':');
+					options.failover.add(InetSocketAddress.createUnresolved(server.substring(0, colon),
+							Integer.parseInt(server.substring(colon + 1))));
+				}
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * @param message
+	 * 		a message from the server
+	 * @return whether it is the server saying it is restarting
+	 */
+	public static boolean isRestart(String message) {
+		return message.startsWith(ChatProtocol.CONTROL + ChatProtocol.RESTART);
+	}
+
+	/**
+	 * Handles the server saying it is restarting, so the client reconnects once
+	 * the connection closes, to the server it was sent to first if there is one
+	 * 
+	 * @param message
+	 * 		the restart message
+	 * @return the line to show the user
+	 */
+	public String restart(String message) {
+		
+		String server = message.substring(1 + ChatProtocol.RESTART.length()).trim();
+		this.restarting = true;
+		if (server.isEmpty()) {
+			return "The server is restarting";
+		}
+		
+		// a redirect that is not a host and port is ignored, and the servers the
+		// client already knows are used
+		int colon = server.lastIndexOf(':');
+		if (colon < 1) {
+			return "The server is restarting";
+		}
+		try {
+			this.redirect = InetSocketAddress.createUnresolved(server.substring(0, colon),
+					Integer.parseInt(server.substring(colon + 1)));
+		} catch (IllegalArgumentException e) {
+			return "The server is restarting";
+		}
+		return "The server is restarting, reconnecting to " + server;
+	}
+
+	/**
+	 * Opens a connection to the server, or to the first of the failover servers
+	 * that answers if it cannot be reached. A server the client was sent to when
+	 * the last one restarted is tried before the others. With shared memory the
+	 * address is not used.
+	 * 
+	 * @return the connected channel
+	 * @throws IOException
+	 * 		if none of the servers can be reached or the handshake fails
+	 */
+	public ByteChannel connect() throws IOException {
+		
+		if (this.sharedMemory) {
+			return SharedMemoryTransport.connect(SharedMemoryTransport.directoryFor(this.port));
+		}
+		
+		InetSocketAddress redirect = this.redirect;
+		if (redirect != null) {
+			try {
+				return this.connect(redirect.getHostString(), redirect.getPort());
+			} catch (IOException e) {
+				//fall back to the servers given on the command line
+			}
+		}
+		
+		try {
+			return this.connect(this.address, this.port);
+		} catch (IOException e) {
+			for (InetSocketAddress server : this.failover) {
+				try {
+					return this.connect(server.getHostString(), server.getPort());
+				} catch (IOException f) {
+					e = f;
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Keeps trying the servers in order after the connection has been lost, for
+	 * up to RECONNECT_MILLIS
+	 * 
+	 * @param output
+	 * 		where to tell the user what is happening
+	 * @return the connected channel, or null if there are no failover servers and
+	 * 		the server did not say it was restarting, or none could be reached
+	 */
+	public ByteChannel reconnect(Consumer<String> output) {
+		
+		if (this.sharedMemory || (this.failover.isEmpty() && !this.restarting)) {
+			return null;
+		}
+		if (!this.restarting) {
+			output.accept("Lost the connection to the server, reconnecting");
+		}
+		this.restarting = false;
+		
+		long deadline = System.currentTimeMillis() + RECONNECT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				return this.connect();
+			} catch (IOException e) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException i) {
+					return null;
+				}
+			}
+		}
+		output.accept("Could not reach any of the servers");
+		return null;
+	}
+
+	/**
+	 * Wraps a connection in a stream to read from. The streams made by Channels
+	 * hold the blocking lock of a socket channel while they wait for data, so
+	 * nothing could be written while the reader thread waits for a message. This
+	 * stream reads from the channel directly instead.
+	 * 
+	 * @param channel
+	 * 		the connection
+	 * @return the stream
+	 */
+	public static InputStream inputStream(final ByteChannel channel) {
+		return new InputStream() {
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Wraps a connection in a stream to write to, which writes to the channel
+	 * directly for the same reason as inputStream
+	 * 
+	 * @param channel
+	 * 		the connection
+	 * @return the stream
+	 */
+	public static OutputStream outputStream(final ByteChannel channel) {
+		return new OutputStream() {
+			
+			@Override
+			public void write(int b) throws IOException {
+				this.write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Opens a connection to a server. With TLS the handshake is run before it is
+	 * returned. Every connection uses the default SSLContext, so once one has been
+	 * made the others resume its session instead of running a full handshake.
+	 * 
+	 * @param address
+	 * 		the address of the server
+	 * @param port
+	 * 		the port of the server
+	 * @return the connected channel
+	 * @throws IOException
+	 * 		if the server cannot be reached or the handshake fails
+	 */
+	private ByteChannel connect(String address, int port) throws IOException {
+		
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+		channel.socket().setTcpNoDelay(true);
+		
+		if (!this.tls) {
+			return channel;
+		}
+		
+		try {
+			SSLEngine engine = SSLContext.getDefault().createSSLEngine(address, port);
+			engine.setUseClientMode(true);
+			
+			// check the certificate belongs to the server we meant to connect to
+			SSLParameters parameters = engine.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(parameters);
+			
+			TlsChannel tls = new TlsChannel(channel, engine);
+			tls.handshake();
+			return tls;
+			
+		} catch (GeneralSecurityException e) {
+			channel.close();
+			throw new IOException("Could not start TLS", e);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+}
+
 /**
  * handles the connection of the client to the server, allowing it to be
  * multithreaded
@@ -162,46 +465,65 @@ public class ChatClient {
  */
 class ClientConnection implements Runnable {
 
-	private Socket s;
-	private DataInputStream inputFromServer;
-	private DataOutputStream outputToServer;
+	private volatile ByteChannel channel;
+	private ClientOptions options;
+	private volatile DataInputStream inputFromServer;
+	private volatile DataOutputStream outputToServer;
 	private String name;
+	private String laneToken;
+	private ClientRoster roster = new ClientRoster();
+	private ClientTrace trace;
+	private ClientAcks acks;
 
 	/**
 	 * Constructor method. sets defualt fields.
 	 * 
-	 * @param socket
-	 * 		Socket of the client
-	 * @param client
-	 * 		An instance of the ChatClient
+	 * @param channel
+	 * 		The connection to the server
+	 * @param options
+	 * 		The options the client was started with
 	 * @param name
 	 * 		The username of the client
 	 */
-	public ClientConnection(Socket socket, ChatClient client, String name) {
+	public ClientConnection(ByteChannel channel, ClientOptions options, String name) {
 		
-		this.s = socket;
+		this.channel = channel;
+		this.options = options;
 		this.name = name;
 		
-		try {
-			outputToServer = new DataOutputStream(s.getOutputStream());
-			inputFromServer = new DataInputStream(s.getInputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		outputToServer = new DataOutputStream(ClientOptions.outputStream(channel));
+		inputFromServer = new DataInputStream(ClientOptions.inputStream(channel));
+		
+		this.trace = new ClientTrace(new Consumer<String>() {
+			public void accept(String message) {
+				sendToServer(message);
+			}
+		}, new Consumer<String>() {
+			public void accept(String message) {
+				System.out.println(message);
+			}
+		});
+		this.acks = new ClientAcks(new Consumer<String>() {
+			public void accept(String message) {
+				sendToServer(message);
+			}
+		});
 	}
 
 	/**
-	 * A method to write the message input by the user to the server.
+	 * A method to write the message input by the user to the server. The server
+	 * stamps the name bound to this session onto the message, so only the body is
+	 * sent.
 	 * 
 	 * @param message
 	 * 		The message to be sent to the server
 	 */
 	public void sendToServer(String message) {
 		try {
-			
-			// adds the users name to the message
-			this.outputToServer.writeUTF("<" + name + "> " + message);
-			this.outputToServer.flush();
+			synchronized (this.outputToServer) {
+				this.outputToServer.writeUTF(message);
+				this.outputToServer.flush();
+			}
 		} catch (IOException e) {
 			System.out.println("Server could not be found. Please try again later");
 		}
@@ -215,13 +537,13 @@ class ClientConnection implements Runnable {
 	public void shutdownClient() {
 		try {
 			this.outputToServer.writeUTF("exit" + name);
-			this.s.close();
+			this.channel.close();
 			
 			System.exit(0);
 
 		} catch (IOException e) {
 			try {
-				this.s.close();
+				this.channel.close();
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
@@ -241,15 +563,167 @@ class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * listens for input from server and prints it when received.
+	 * Starts a file transfer on its own lane, so the chat connection is not held
+	 * up while the file is sent or received.
+	 * 
+	 * @param command
+	 * 		the /send or /get command typed by the user
+	 */
+	public void startFileTransfer(String command) {
+		
+		if (this.laneToken == null) {
+			System.out.println("Not connected to the server yet, please try again");
+			return;
+		}
+		
+		FileLane lane = new FileLane(this.options, this.laneToken, command, new Consumer<String>() {
+			public void accept(String message) {
+				System.out.println(message);
+			}
+		});
+		new Thread(lane).start();
+	}
+
+	/**
+	 * Sends a search of the chat history to the server. The results arrive as a
+	 * control message.
+	 * 
+	 * @param command
+	 * 		the /search command typed by the user
+	 */
+	public void search(String command) {
+		
+		String request = ClientSearch.toRequest(command);
+		if (request == null) {
+			System.out.println("Dates are written as 2024-01-31, times as 09:30, or both as 2024-01-31T09:30");
+		} else {
+			this.sendToServer(request);
+		}
+	}
+
+	/**
+	 * Sends a message to be scheduled on the server, or asks for or cancels those
+	 * already scheduled
+	 * 
+	 * @param command
+	 * 		the /in, /every, /schedules or /unschedule command typed by the user
+	 */
+	public void schedule(String command) {
+		
+		String request = ClientSchedule.toRequest(command);
+		if (request == null) {
+			System.out.println("Times are written as a number followed by s, m, h or d, such as 90s or 2h");
+		} else {
+			this.sendToServer(request);
+		}
+	}
+
+	/**
+	 * accessor method for the roster of online clients
+	 * 
+	 * @return the roster
+	 */
+	public ClientRoster getRoster() {
+		return this.roster;
+	}
+
+	/**
+	 * accessor method for the latency commands
+	 * 
+	 * @return the trace of this connection
+	 */
+	public ClientTrace getTrace() {
+		return this.trace;
+	}
+
+	/**
+	 * accessor method for the acknowledgements and read receipts
+	 * 
+	 * @return the acks of this connection
+	 */
+	public ClientAcks getAcks() {
+		return this.acks;
+	}
+
+	/**
+	 * Connects to the first of the servers that answers once the connection has
+	 * been lost, binds the name again and asks for the messages missed
+	 * 
+	 * @return whether the client reconnected
+	 */
+	private boolean failover() {
+		
+		ByteChannel channel = this.options.reconnect(new Consumer<String>() {
+			public void accept(String message) {
+				System.out.println(message);
+			}
+		});
+		if (channel == null) {
+			return false;
+		}
+		
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			//the old connection has gone anyway
+		}
+		this.channel = channel;
+		this.outputToServer = new DataOutputStream(ClientOptions.outputStream(channel));
+		this.inputFromServer = new DataInputStream(ClientOptions.inputStream(channel));
+		this.acks.reset();
+		
+		this.sendClientName();
+		this.sendToServer(ChatProtocol.CONTROL + ChatProtocol.RESUME);
+		return true;
+	}
+
+	/**
+	 * listens for input from server and prints it when received. Control messages
+	 * are handled instead of printed. If the connection is lost and there are
+	 * failover servers or the server said it was restarting, the client
+	 * reconnects and carries on.
 	 */
 	public synchronized void run() {
 
 		while (true) {
 			
 			try {
-				System.out.println(inputFromServer.readUTF());
+				String message = inputFromServer.readUTF();
+				this.acks.received();
+				
+				if (message.startsWith(ChatProtocol.CONTROL + ChatProtocol.LANE)) {
+					this.laneToken = message.substring(1 + ChatProtocol.LANE.length());
+					this.acks.start();
+				} else if (ClientAcks.isReceipt(message)) {
+					this.acks.handle(message);
+				} else if (ClientSearch.isResults(message)) {
+					System.out.println(ClientSearch.describe(message));
+				} else if (ClientOptions.isRestart(message)) {
+					System.out.println(this.options.restart(message));
+				} else if (message.startsWith(ChatProtocol.CONTROL + ChatProtocol.DIGEST)) {
+					System.out.println(message.substring(2 + ChatProtocol.DIGEST.length()));
+				} else if (ClientTrace.isTraceMessage(message)) {
+					String line = this.trace.handle(message);
+					
+					if (line != null) {
+						System.out.println(line);
+					}
+				} else if (ClientRoster.isRosterMessage(message)) {
+					String change = this.roster.apply(message);
+					
+					if (change != null) {
+						System.out.println(change);
+					}
+					if (this.roster.isBehind()) {
+						this.sendToServer(this.roster.requestChanges());
+					}
+				} else {
+					System.out.println(message);
+				}
 			} catch (IOException e) {
+				if (this.failover()) {
+					continue;
+				}
 				try {
 					this.inputFromServer.close();
 					this.outputToServer.close();
@@ -260,7 +734,7 @@ class ClientConnection implements Runnable {
 		}
 
 		try {
-			this.s.close();
+			this.channel.close();
 			this.inputFromServer.close();
 			this.outputToServer.close();
 		} catch (IOException e) {
@@ -292,12 +766,10 @@ class GUIChatClient {
 	/**
 	 * Constructor calls methods to create the GUI elements, and to start the client
 	 * 
-	 * @param address
-	 * 		the address the socket needs to connect to
-	 * @param port
-	 * 		the port the socket needs to connect to
+	 * @param options
+	 * 		the address and port the socket needs to connect to, and whether to use TLS
 	 */
-	public GUIChatClient(String address, int port) {
+	public GUIChatClient(ClientOptions options) {
 
 		this.startFrame();
 		this.startTextField();
@@ -308,7 +780,7 @@ class GUIChatClient {
 
 		this.isName = true;
 
-		this.startClient(address, port);
+		this.startClient(options);
 	}
 
 	/**
@@ -316,20 +788,18 @@ class GUIChatClient {
 	 * Then it creates an instance of the GUIClientConnection class and starts it in
 	 * a thread.
 	 * 
-	 * @param address
-	 * 		the address the socket needs to connect to	
-	 * @param port
-	 * 		the port the socket needs to connect to
+	 * @param options
+	 * 		the address and port the socket needs to connect to, and whether to use TLS
 	 */
-	public void startClient(String address, int port) {
+	public void startClient(ClientOptions options) {
 
 		try {
 
 			this.output("Welcome. Please enter your name:");
 
-			Socket s = new Socket(address, port);
+			ByteChannel channel = options.connect();
 
-			this.cc = new GUIClientConnection(s, this);
+			this.cc = new GUIClientConnection(channel, options, this);
 			Thread t = new Thread(cc);
 			t.start();
 
@@ -380,8 +850,22 @@ class GUIChatClient {
 					instance.setIsName();
 					
 					cc.sendToServer(input);
+				} else if (FileLane.isCommand(input)) {
+					cc.startFileTransfer(input);
+				} else if (input.equals("/who")) {
+					output(cc.getRoster().describe());
+				} else if (ClientSearch.isCommand(input)) {
+					cc.search(input);
+				} else if (input.startsWith("/msg ")) {
+					cc.sendToServer(ChatProtocol.CONTROL + ChatProtocol.DIRECT + input.substring(5));
+				} else if (ClientTrace.isCommand(input)) {
+					cc.getTrace().command(input);
+				} else if (ClientAcks.isCommand(input)) {
+					output(cc.getAcks().describe());
+				} else if (ClientSchedule.isCommand(input)) {
+					cc.schedule(input);
 				} else {
-					cc.sendToServer("<" + name + "> " + input);
+					cc.sendToServer(cc.getTrace().wrap(input));
 				}
 
 			}
@@ -458,6 +942,15 @@ class GUIChatClient {
 		return this.input;
 	}
 
+	/**
+	 * accessor method for the name
+	 * 
+	 * @return the name the user entered, or null if they have not yet
+	 */
+	public String getName() {
+		return this.name;
+	}
+
 	/**
 	 * method to output a string to the textArea
 	 * 
@@ -492,37 +985,13 @@ class GUIChatClient {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		String defaultAddress = "localhost";
-		int defaultPort = 14001;
 
 		EventQueue.invokeLater(new Runnable() {
 			public void run() {
 				
 				try {
 					
-					// check how many args are present
-					if (args.length == 2) {
-						if (args.length == 4) {
-							
-							// checks if valid args are provided
-							if (args[0].startsWith("-cca") && args[2].startsWith("-ccp")) {
-								String address = args[1].toString();
-								int port = Integer.parseInt(args[3].toString());
-								instance = new GUIChatClient(address, port);
-							}
-						} else {
-							if (args[0].startsWith("-ccp")) {
-								int port = Integer.parseInt(args[1].toString());
-								instance = new GUIChatClient(defaultAddress, port);
-							} else if (args[0].startsWith("-cca")) {
-								String address = args[1].toString();
-								instance = new GUIChatClient(address, defaultPort);
-							}
-						}
-
-					} else {
-						instance = new GUIChatClient(defaultAddress, defaultPort);
-					}
+					instance = new GUIChatClient(ClientOptions.parse(args));
 					
 					// makes the frame of the UI visible
 					instance.frame.setVisible(true);
@@ -545,30 +1014,49 @@ class GUIChatClient {
  */
 class GUIClientConnection implements Runnable {
 
-	private Socket s;
+	private volatile ByteChannel channel;
+	private ClientOptions options;
 	private GUIChatClient client;
-	private DataInputStream inputFromServer;
-	private DataOutputStream outputToServer;
+	private volatile DataInputStream inputFromServer;
+	private volatile DataOutputStream outputToServer;
+	private String laneToken;
+	private ClientRoster roster = new ClientRoster();
+	private ClientTrace trace;
+	private ClientAcks acks;
 
 	/**
 	 * Constructor method. Sets defualt variables.
 	 * 
-	 * @param s
-	 * 		the client socket
+	 * @param channel
+	 * 		the connection to the server
+	 * @param options
+	 * 		the options the client was started with
 	 * @param client
 	 * 		an instance of the GUIChatClient
 	 */
-	public GUIClientConnection(Socket s, GUIChatClient client) {
+	public GUIClientConnection(ByteChannel channel, ClientOptions options, GUIChatClient client) {
 		
 		this.client = client;
-		this.s = s;
+		this.channel = channel;
+		this.options = options;
 		
-		try {
-			outputToServer = new DataOutputStream(s.getOutputStream());
-			inputFromServer = new DataInputStream(s.getInputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		outputToServer = new DataOutputStream(ClientOptions.outputStream(channel));
+		inputFromServer = new DataInputStream(ClientOptions.inputStream(channel));
+		
+		this.trace = new ClientTrace(new Consumer<String>() {
+			public void accept(String message) {
+				sendToServer(message);
+			}
+		}, new Consumer<String>() {
+			public void accept(String message) {
+				client.output(message);
+			}
+		});
+		this.acks = new ClientAcks(new Consumer<String>() {
+			public void accept(String message) {
+				sendToServer(message);
+			}
+		});
 	}
 
 	/**
@@ -579,41 +1067,1392 @@ class GUIClientConnection implements Runnable {
 	 */
 	public void sendToServer(String input) {
 		try {
-			this.outputToServer.writeUTF(input);
-			this.outputToServer.flush();
+			synchronized (this.outputToServer) {
+				this.outputToServer.writeUTF(input);
+				this.outputToServer.flush();
+			}
 		} catch (IOException e) {
 			this.client.output("Server could not be found, please try again later");
 		}
 	}
 
 	/**
-	 * Listens for input from the server and calls the output method when received
+	 * Starts a file transfer on its own lane, so the chat connection is not held
+	 * up while the file is sent or received.
+	 * 
+	 * @param command
+	 * 		the /send or /get command typed by the user
 	 */
-	public synchronized void run() {
-		while (true) {
-			try {
-				String input = inputFromServer.readUTF();
-
-				this.client.output(input);
-
-			} catch (IOException e) {
-				try {
-					inputFromServer.close();
-					outputToServer.close();
-				} catch (IOException i) {
-					break;
-				}
-			}
-		}
+	public void startFileTransfer(String command) {
 		
-		//close the socket and input and output streams
-		try {
-			this.s.close();
-			this.inputFromServer.close();
-			this.outputToServer.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-
+		if (this.laneToken == null) {
+			this.client.output("Not connected to the server yet, please try again");
+			return;
 		}
+		
+		FileLane lane = new FileLane(this.options, this.laneToken, command, new Consumer<String>() {
+			public void accept(String message) {
+				client.output(message);
+			}
+		});
+		new Thread(lane).start();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Sends a search of the chat history to the server. The results arrive as a
+	 * control message.
+	 * 
+	 * @param command
+	 * 		the /search command typed by the user
+	 */
+	public void search(String command) {
+		
+		String request = ClientSearch.toRequest(command);
+		if (request == null) {
+			this.client.output("Dates are written as 2024-01-31, times as 09:30, or both as 2024-01-31T09:30");
+		} else {
+			this.sendToServer(request);
+		}
+	}
+
+	/**
+	 * Sends a message to be scheduled on the server, or asks for or cancels those
+	 * already scheduled
+	 * 
+	 * @param command
+	 * 		the /in, /every, /schedules or /unschedule command typed by the user
+	 */
+	public void schedule(String command) {
+		
+		String request = ClientSchedule.toRequest(command);
+		if (request == null) {
+			this.client.output("Times are written as a number followed by s, m, h or d, such as 90s or 2h");
+		} else {
+			this.sendToServer(request);
+		}
+	}
+
+	/**
+	 * accessor method for the roster of online clients
+	 * 
+	 * @return the roster
+	 */
+	public ClientRoster getRoster() {
+		return this.roster;
+	}
+
+	/**
+	 * accessor method for the latency commands
+	 * 
+	 * @return the trace of this connection
+	 */
+	public ClientTrace getTrace() {
+		return this.trace;
+	}
+
+	/**
+	 * accessor method for the acknowledgements and read receipts
+	 * 
+	 * @return the acks of this connection
+	 */
+	public ClientAcks getAcks() {
+		return this.acks;
+	}
+
+	/**
+	 * Connects to the first of the servers that answers once the connection has
+	 * been lost, binds the name again and asks for the messages missed
+	 * 
+	 * @return whether the client reconnected
+	 */
+	private boolean failover() {
+		
+		ByteChannel channel = this.options.reconnect(new Consumer<String>() {
+			public void accept(String message) {
+				client.output(message);
+			}
+		});
+		if (channel == null) {
+			return false;
+		}
+		
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			//the old connection has gone anyway
+		}
+		this.channel = channel;
+		this.outputToServer = new DataOutputStream(ClientOptions.outputStream(channel));
+		this.inputFromServer = new DataInputStream(ClientOptions.inputStream(channel));
+		this.acks.reset();
+		
+		if (this.client.getName() != null) {
+			this.sendToServer("name" + this.client.getName());
+			this.sendToServer(ChatProtocol.CONTROL + ChatProtocol.RESUME);
+		}
+		return true;
+	}
+
+	/**
+	 * Listens for input from the server and calls the output method when received.
+	 * Control messages are handled instead of output. If the connection is lost
+	 * and there are failover servers or the server said it was restarting, the
+	 * client reconnects and carries on.
+	 */
+	public synchronized void run() {
+		while (true) {
+			try {
+				String input = inputFromServer.readUTF();
+				this.acks.received();
+
+				if (input.startsWith(ChatProtocol.CONTROL + ChatProtocol.LANE)) {
+					this.laneToken = input.substring(1 + ChatProtocol.LANE.length());
+					this.acks.start();
+				} else if (ClientAcks.isReceipt(input)) {
+					this.acks.handle(input);
+				} else if (ClientSearch.isResults(input)) {
+					this.client.output(ClientSearch.describe(input));
+				} else if (ClientOptions.isRestart(input)) {
+					this.client.output(this.options.restart(input));
+				} else if (input.startsWith(ChatProtocol.CONTROL + ChatProtocol.DIGEST)) {
+					this.client.output(input.substring(2 + ChatProtocol.DIGEST.length()));
+				} else if (ClientTrace.isTraceMessage(input)) {
+					String line = this.trace.handle(input);
+					
+					if (line != null) {
+						this.client.output(line);
+					}
+				} else if (ClientRoster.isRosterMessage(input)) {
+					String change = this.roster.apply(input);
+					
+					if (change != null) {
+						this.client.output(change);
+					}
+					if (this.roster.isBehind()) {
+						this.sendToServer(this.roster.requestChanges());
+					}
+				} else {
+					this.client.output(input);
+				}
+
+			} catch (IOException e) {
+				if (this.failover()) {
+					continue;
+				}
+				try {
+					inputFromServer.close();
+					outputToServer.close();
+				} catch (IOException i) {
+					break;
+				}
+			}
+		}
+		
+		//close the socket and input and output streams
+		try {
+			this.channel.close();
+			this.inputFromServer.close();
+			this.outputToServer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+
+		}
+	}
+}
+
+/**
+ * Sends or fetches a file shared through the server over a file lane, a
+ * separate connection to the server so that chat messages are not held up
+ * behind the file. Files are streamed with transferTo and transferFrom, and a
+ * transfer that is interrupted carries on from where it stopped when the
+ * command is repeated.
+ * 
+ * @author alfiewn
+ *
+ */
+class FileLane implements Runnable {
+
+	private static final long CHUNK_SIZE = 1 << 20;
+
+	private ClientOptions options;
+	private String token;
+	private String command;
+	private Consumer<String> output;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param options
+	 * 		the options the client was started with, the lane connects to the same
+	 * 		server
+	 * @param token
+	 * 		the lane token received from the server
+	 * @param command
+	 * 		the /send or /get command typed by the user
+	 * @param output
+	 * 		where to output progress messages for the user
+	 */
+	public FileLane(ClientOptions options, String token, String command, Consumer<String> output) {
+		this.options = options;
+		this.token = token;
+		this.command = command;
+		this.output = output;
+	}
+
+	/**
+	 * Checks whether a message typed by the user is a file command
+	 * 
+	 * @param message
+	 * 		the message typed by the user
+	 * @return whether the message is a /send or /get command
+	 */
+	public static boolean isCommand(String message) {
+		return message.startsWith("/send ") || message.startsWith("/get ");
+	}
+
+	/**
+	 * Opens the lane and runs the command
+	 */
+	public void run() {
+		
+		try (ByteChannel lane = this.options.connect()) {
+			
+			DataInputStream input = new DataInputStream(ClientOptions.inputStream(lane));
+			DataOutputStream output = new DataOutputStream(ClientOptions.outputStream(lane));
+			
+			if (this.command.startsWith("/send ")) {
+				this.upload(lane, input, output, new File(this.command.substring(6).trim()));
+			} else {
+				this.download(lane, input, output, Integer.parseInt(this.command.substring(5).trim()));
+			}
+			
+		} catch (NumberFormatException e) {
+			this.output.accept("Please type /get followed by the number of the file");
+		} catch (IOException e) {
+			this.output.accept("File transfer stopped, repeat the command to carry on");
+		}
+	}
+
+	/**
+	 * Uploads a file to the server from the offset the server asks for
+	 * 
+	 * @param lane
+	 * 		the channel of the lane
+	 * @param input
+	 * 		the input stream of the lane
+	 * @param output
+	 * 		the output stream of the lane
+	 * @param file
+	 * 		the file to share
+	 * @throws IOException
+	 * 		if the lane disconnects
+	 */
+	private void upload(ByteChannel lane, DataInputStream input, DataOutputStream output, File file)
+			throws IOException {
+		
+		if (!file.isFile()) {
+			this.output.accept("Could not find the file " + file);
+			return;
+		}
+		
+		output.writeUTF("file put " + this.token + " " + file.length() + " " + file.getName());
+		String reply = input.readUTF();
+		
+		if (!reply.startsWith("offset ")) {
+			this.output.accept(reply);
+			return;
+		}
+		
+		long position = Long.parseLong(reply.split(" ")[1]);
+		this.output.accept("Sending " + file.getName() + "...");
+		
+		try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+			long size = in.size();
+			while (position < size) {
+				position += in.transferTo(position, Math.min(CHUNK_SIZE, size - position), lane);
+			}
+		}
+	}
+
+	/**
+	 * Downloads a file from the server into the downloads directory. The file is
+	 * kept as a part file until it is complete, so an interrupted download is
+	 * resumed from the size of the part file.
+	 * 
+	 * @param lane
+	 * 		the channel of the lane
+	 * @param input
+	 * 		the input stream of the lane
+	 * @param output
+	 * 		the output stream of the lane
+	 * @param id
+	 * 		the number of the file
+	 * @throws IOException
+	 * 		if the lane disconnects
+	 */
+	private void download(ByteChannel lane, DataInputStream input, DataOutputStream output, int id)
+			throws IOException {
+		
+		File directory = new File("downloads");
+		directory.mkdirs();
+		File part = new File(directory, "file" + id + ".part");
+		
+		output.writeUTF("file get " + this.token + " " + id + " " + part.length());
+		String reply = input.readUTF();
+		
+		if (!reply.startsWith("size ")) {
+			this.output.accept(reply);
+			return;
+		}
+		
+		String[] args = reply.split(" ", 3);
+		long size = Long.parseLong(args[1]);
+		
+		// a part longer than the file was left by a different file with the same
+		// number, from before the server restarted
+		if (part.length() > size) {
+			part.delete();
+			this.output.accept("The part of file " + id + " already downloaded does not match it, type /get " + id
+					+ " again to download it from the start");
+			return;
+		}
+		
+		try (FileChannel out = new RandomAccessFile(part, "rw").getChannel()) {
+			long position = out.size();
+			while (position < size) {
+				long read = out.transferFrom(lane, position, Math.min(CHUNK_SIZE, size - position));
+				if (read <= 0) {
+					throw new IOException("lane closed");
+				}
+				position += read;
+			}
+		}
+		
+		File file = new File(directory, new File(args[2]).getName());
+		if (file.exists()) {
+			file = new File(directory, id + "-" + file.getName());
+		}
+		if (part.renameTo(file)) {
+			this.output.accept("Saved " + file);
+		} else {
+			this.output.accept("Could not save " + file + ", the download is kept as " + part);
+		}
+	}
+}
+
+/**
+ * Turns the /in, /every, /schedules and /unschedule commands into requests for
+ * the server to send a message later, once or over and over. Messages wait on
+ * the server, so they are sent even if this client has disconnected.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientSchedule {
+
+	/**
+	 * Checks whether a message typed by the user is about scheduled messages
+	 * 
+	 * @param message
+	 * 		the message typed by the user
+	 * @return whether the message is a /in, /every, /schedules or /unschedule command
+	 */
+	public static boolean isCommand(String message) {
+		return message.startsWith("/in ") || message.startsWith("/every ") || message.equals("/schedules")
+				|| message.startsWith("/unschedule ");
+	}
+
+	/**
+	 * Builds the control message for a command, with times sent as milliseconds
+	 * 
+	 * @param command
+	 * 		the command typed by the user
+	 * @return the control message, or null if a time could not be read
+	 */
+	public static String toRequest(String command) {
+		
+		if (command.equals("/schedules")) {
+			return ChatProtocol.CONTROL + ChatProtocol.SCHEDULES;
+		}
+		if (command.startsWith("/unschedule ")) {
+			return ChatProtocol.CONTROL + ChatProtocol.UNSCHEDULE + command.substring("/unschedule ".length()).trim();
+		}
+		
+		boolean every = command.startsWith("/every ");
+		String[] args = command.substring(every ? "/every ".length() : "/in ".length()).trim().split(" ", 2);
+		long millis = toMillis(args[0]);
+		if (millis <= 0 || args.length < 2) {
+			return null;
+		}
+		return ChatProtocol.CONTROL + ChatProtocol.SCHEDULE + millis + " " + (every ? millis : 0) + " " + args[1];
+	}
+
+	/**
+	 * Reads a time such as 90s, 10m, 2h or 1d
+	 * 
+	 * @param time
+	 * 		the time typed by the user
+	 * @return the time in milliseconds, or -1 if it could not be read
+	 */
+	private static long toMillis(String time) {
+		
+		if (time.length() < 2) {
+			return -1;
+		}
+		long unit;
+		switch (time.charAt(time.length() - 1)) {
+		case 's':
+			unit = 1000;
+			break;
+		case 'm':
+			unit = 60 * 1000;
+			break;
+		case 'h':
+			unit = 60 * 60 * 1000;
+			break;
+		case 'd':
+			unit = 24 * 60 * 60 * 1000;
+			break;
+		default:
+			return -1;
+		}
+		try {
+			return Long.parseLong(time.substring(0, time.length() - 1)) * unit;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
+
+/**
+ * The client's copy of the roster of online clients. It starts from the snapshot
+ * the server sends when the client joins and applies the deltas that follow. If
+ * a delta does not follow on from the version the client has, the client is
+ * behind and asks the server for the changes it missed. A snapshot sent in
+ * parts is only swapped in once its last part arrives.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientRoster {
+
+	private long version = -1;
+	private TreeSet<String> online = new TreeSet<String>();
+	private boolean behind;
+	private boolean requested;
+	
+	// names from the parts of a snapshot that has not been finished yet
+	private long partsVersion = -1;
+	private TreeSet<String> parts = new TreeSet<String>();
+
+	/**
+	 * Checks whether a message from the server is a roster snapshot or delta
+	 * 
+	 * @param message
+	 * 		the message received from the server
+	 * @return whether it is a roster message
+	 */
+	public static boolean isRosterMessage(String message) {
+		return message.startsWith(ChatProtocol.CONTROL + ChatProtocol.ROSTER)
+				|| message.startsWith(ChatProtocol.CONTROL + ChatProtocol.PRESENCE)
+				|| message.startsWith(ChatProtocol.CONTROL + ChatProtocol.NAMES);
+	}
+
+	/**
+	 * Applies a snapshot or delta from the server
+	 * 
+	 * @param message
+	 * 		the roster message
+	 * @return a description of the change to show the user, or null
+	 */
+	public synchronized String apply(String message) {
+		
+		String[] lines = message.substring(1).split("\n");
+		
+		if (lines[0].startsWith(ChatProtocol.NAMES)) {
+			long version = Long.parseLong(lines[0].substring(ChatProtocol.NAMES.length()));
+			
+			if (version != this.partsVersion) {
+				this.partsVersion = version;
+				this.parts.clear();
+			}
+			for (int i = 1; i < lines.length; i++) {
+				this.parts.add(lines[i]);
+			}
+			return null;
+		}
+		
+		if (lines[0].startsWith(ChatProtocol.ROSTER)) {
+			boolean first = this.version < 0;
+			
+			this.version = Long.parseLong(lines[0].substring(ChatProtocol.ROSTER.length()));
+			this.online.clear();
+			if (this.partsVersion == this.version) {
+				this.online.addAll(this.parts);
+			}
+			this.partsVersion = -1;
+			this.parts.clear();
+			for (int i = 1; i < lines.length; i++) {
+				this.online.add(lines[i]);
+			}
+			this.behind = false;
+			this.requested = false;
+			
+			return first ? this.describe() : null;
+		}
+		
+		String[] versions = lines[0].substring(ChatProtocol.PRESENCE.length()).split(" ");
+		long from = Long.parseLong(versions[0]);
+		long to = Long.parseLong(versions[1]);
+		
+		// wait for the snapshot, and ignore deltas that have already been applied
+		if (this.version < 0 || to <= this.version) {
+			return null;
+		}
+		if (from != this.version) {
+			this.behind = true;
+			return null;
+		}
+		
+		ArrayList<String> joined = new ArrayList<String>();
+		ArrayList<String> left = new ArrayList<String>();
+		
+		for (int i = 1; i < lines.length; i++) {
+			String name = lines[i].substring(1);
+			if (lines[i].charAt(0) == '+') {
+				this.online.add(name);
+				joined.add(name);
+			} else {
+				this.online.remove(name);
+				left.add(name);
+			}
+		}
+		this.version = to;
+		this.behind = false;
+		this.requested = false;
+		
+		StringBuilder sb = new StringBuilder();
+		if (!joined.isEmpty()) {
+			sb.append(String.join(", ", joined)).append(" joined the chat");
+		}
+		if (!left.isEmpty()) {
+			sb.append(sb.length() > 0 ? "\n" : "").append(String.join(", ", left)).append(" left the chat");
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	/**
+	 * Checks whether the client has missed a delta and not yet asked for the
+	 * changes. Once this returns true the request is assumed to be sent.
+	 * 
+	 * @return whether the changes should be requested
+	 */
+	public synchronized boolean isBehind() {
+		
+		if (this.behind && !this.requested) {
+			this.requested = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the control message asking for the changes since this version
+	 */
+	public synchronized String requestChanges() {
+		return ChatProtocol.CONTROL + ChatProtocol.SINCE + this.version;
+	}
+
+	/**
+	 * @return a line listing the clients online
+	 */
+	public synchronized String describe() {
+		return this.online.size() + " online: " + String.join(", ", this.online);
+	}
+}
+/**
+ * Turns the /search command into a search request for the server and formats
+ * the results. A search is a list of words, optionally with from:name to only
+ * find lines sent by that client, and after: and before: followed by a date, a
+ * time today, or both as 2024-01-31T09:30.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientSearch {
+
+	private static final DateTimeFormatter RESULT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+	/**
+	 * Checks whether a message typed by the user is a search
+	 * 
+	 * @param message
+	 * 		the message typed by the user
+	 * @return whether the message is a /search command
+	 */
+	public static boolean isCommand(String message) {
+		return message.startsWith("/search ");
+	}
+
+	/**
+	 * Checks whether a message from the server holds search results
+	 * 
+	 * @param message
+	 * 		the message received from the server
+	 * @return whether it is a results message
+	 */
+	public static boolean isResults(String message) {
+		return message.startsWith(ChatProtocol.CONTROL + ChatProtocol.RESULTS);
+	}
+
+	/**
+	 * Builds the control message for a search, with times sent as milliseconds
+	 * 
+	 * @param command
+	 * 		the /search command typed by the user
+	 * @return the control message, or null if a time could not be read
+	 */
+	public static String toRequest(String command) {
+		
+		StringBuilder request = new StringBuilder();
+		
+		for (String word : command.substring("/search ".length()).trim().split("\\s+")) {
+			try {
+				if (word.startsWith("after:")) {
+					word = "after:" + toMillis(word.substring(6));
+				} else if (word.startsWith("before:")) {
+					word = "before:" + toMillis(word.substring(7));
+				}
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+			request.append(' ').append(word);
+		}
+		return ChatProtocol.CONTROL + ChatProtocol.SEARCH + request.toString().trim();
+	}
+
+	/**
+	 * Formats search results to show the user, with the time of each line
+	 * 
+	 * @param message
+	 * 		the results message
+	 * @return the lines to show
+	 */
+	public static String describe(String message) {
+		
+		String[] lines = message.substring(1 + ChatProtocol.RESULTS.length()).split("\n");
+		StringBuilder sb = new StringBuilder(lines[0].equals("0") ? "No messages found" : "Found:");
+		
+		for (int i = 1; i < lines.length; i++) {
+			String[] parts = lines[i].split(" ", 3);
+			LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(parts[0])),
+					ZoneId.systemDefault());
+			sb.append("\n[").append(RESULT_TIME.format(time)).append("] <").append(parts[1]).append("> ")
+					.append(parts.length > 2 ? parts[2] : "");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a date, a time today, or a date and time in the local time zone
+	 * 
+	 * @param text
+	 * 		the date or time typed by the user
+	 * @return the time in milliseconds
+	 */
+	private static long toMillis(String text) {
+		
+		LocalDateTime time;
+		if (text.contains("T")) {
+			time = LocalDateTime.parse(text);
+		} else if (text.contains(":")) {
+			time = LocalDate.now().atTime(LocalTime.parse(text));
+		} else {
+			time = LocalDate.parse(text).atStartOfDay();
+		}
+		return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+}
+
+/**
+ * Measures latency to the server. /ping sends a burst of pings and reports the
+ * round trip times once every reply is back, and /trace turns on traced chat
+ * lines, which the server stamps with the times it received and routed them, so
+ * every client can see how long each hop took. One way times are only right
+ * when the clocks of the clients and server are in sync.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientTrace {
+
+	private static final int DEFAULT_PINGS = 20;
+	private static final long PING_GAP_MILLIS = 10;
+
+	private Consumer<String> send;
+	private Consumer<String> output;
+	private volatile boolean tracing;
+	
+	// the round trips of the pings in progress, in nanoseconds
+	private long[] rtts;
+	private int replies;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param send
+	 * 		sends a message to the server
+	 * @param output
+	 * 		shows a message to the user
+	 */
+	public ClientTrace(Consumer<String> send, Consumer<String> output) {
+		this.send = send;
+		this.output = output;
+	}
+
+	/**
+	 * Checks whether a message typed by the user is a latency command
+	 * 
+	 * @param message
+	 * 		the message typed by the user
+	 * @return whether the message is /ping or /trace
+	 */
+	public static boolean isCommand(String message) {
+		return message.equals("/trace") || message.equals("/ping") || message.startsWith("/ping ");
+	}
+
+	/**
+	 * Checks whether a message from the server is a reply to a ping or a traced
+	 * chat line
+	 * 
+	 * @param message
+	 * 		the message received from the server
+	 * @return whether it is handled here
+	 */
+	public static boolean isTraceMessage(String message) {
+		return message.startsWith(ChatProtocol.CONTROL + ChatProtocol.PONG)
+				|| message.startsWith(ChatProtocol.CONTROL + ChatProtocol.TRACED);
+	}
+
+	/**
+	 * Runs a /ping or /trace command typed by the user
+	 * 
+	 * @param command
+	 * 		the command
+	 */
+	public void command(String command) {
+		
+		if (command.equals("/trace")) {
+			this.tracing = !this.tracing;
+			this.output.accept(this.tracing ? "Tracing on, your messages will show how long they took to arrive"
+					: "Tracing off");
+			return;
+		}
+		
+		int count = DEFAULT_PINGS;
+		if (command.startsWith("/ping ")) {
+			try {
+				count = Integer.parseInt(command.substring(6).trim());
+			} catch (NumberFormatException e) {
+				this.output.accept("Type /ping followed by the number of pings to send");
+				return;
+			}
+		}
+		this.ping(Math.max(1, count));
+	}
+
+	/**
+	 * Sends pings on a thread of its own, spaced out so they measure the round
+	 * trip rather than a queue of pings
+	 * 
+	 * @param count
+	 * 		the number of pings to send
+	 */
+	private synchronized void ping(final int count) {
+		
+		if (this.rtts != null) {
+			this.output.accept("Still waiting for the last pings to come back");
+			return;
+		}
+		this.rtts = new long[count];
+		this.replies = 0;
+		
+		new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					send.accept(ChatProtocol.CONTROL + ChatProtocol.PING + System.nanoTime());
+					try {
+						Thread.sleep(PING_GAP_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Wraps a chat line typed by the user in a trace message if tracing is on
+	 * 
+	 * @param message
+	 * 		the chat line
+	 * @return the message to send to the server
+	 */
+	public String wrap(String message) {
+		
+		if (!this.tracing) {
+			return message;
+		}
+		return ChatProtocol.CONTROL + ChatProtocol.TRACE + ChatProtocol.micros() + " " + message;
+	}
+
+	/**
+	 * Handles a reply to a ping or a traced chat line from the server
+	 * 
+	 * @param message
+	 * 		the message received from the server
+	 * @return the line to show the user, or null if there is nothing to show
+	 */
+	public String handle(String message) {
+		
+		long now = System.nanoTime();
+		
+		if (message.startsWith(ChatProtocol.CONTROL + ChatProtocol.PONG)) {
+			try {
+				return this.pong(now - Long.parseLong(message.substring(1 + ChatProtocol.PONG.length())));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		// the times are sent by the client, received by the server and routed by
+		// the server, then the chat line
+		String[] parts = message.substring(1 + ChatProtocol.TRACED.length()).split(" ", 4);
+		if (parts.length < 4) {
+			return null;
+		}
+		if (!this.tracing) {
+			return parts[3];
+		}
+		
+		try {
+			long sent = Long.parseLong(parts[0]);
+			long received = Long.parseLong(parts[1]);
+			long routed = Long.parseLong(parts[2]);
+			return parts[3] + "   [to server " + (received - sent) + " us, to be routed " + (routed - received)
+					+ " us, from there to you " + (ChatProtocol.micros() - routed) + " us]";
+		} catch (NumberFormatException e) {
+			return parts[3];
+		}
+	}
+
+	/**
+	 * Records the round trip of a ping, and once every ping is back reports them
+	 * 
+	 * @param rtt
+	 * 		the round trip in nanoseconds
+	 * @return the report, or null if pings are still outstanding
+	 */
+	private synchronized String pong(long rtt) {
+		
+		if (this.rtts == null) {
+			return null;
+		}
+		this.rtts[this.replies++] = rtt;
+		if (this.replies < this.rtts.length) {
+			return null;
+		}
+		
+		long[] sorted = this.rtts;
+		this.rtts = null;
+		Arrays.sort(sorted);
+		return sorted.length + " pings, round trip min " + sorted[0] / 1000 + " us, median "
+				+ sorted[sorted.length / 2] / 1000 + " us, 99% "
+				+ sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1000 + " us, max "
+				+ sorted[sorted.length - 1] / 1000 + " us";
+	}
+}
+
+/**
+ * Acknowledges the messages received from the server and keeps the read
+ * receipts it sends back. The acknowledgement is cumulative, the number of
+ * frames received so far on the connection, and is sent once a second at most
+ * and only when it has changed, so a busy room costs one small message a
+ * second. The server answers with how many of the other clients have received
+ * the last line this client sent, which /seen shows.
+ * 
+ * @author alfiewn
+ *
+ */
+class ClientAcks {
+
+	public static final long INTERVAL_MILLIS = 1000;
+
+	private Consumer<String> send;
+	private volatile long received;
+	private boolean started;
+	
+	// the last read receipt, the line number, count and total
+	private volatile String receipt;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param send
+	 * 		sends a message to the server
+	 */
+	public ClientAcks(Consumer<String> send) {
+		this.send = send;
+	}
+
+	/**
+	 * Checks whether a message typed by the user asks for the read receipt
+	 * 
+	 * @param message
+	 * 		the message typed by the user
+	 * @return whether the message is /seen
+	 */
+	public static boolean isCommand(String message) {
+		return message.equals("/seen");
+	}
+
+	/**
+	 * Checks whether a message from the server is a read receipt
+	 * 
+	 * @param message
+	 * 		the message received from the server
+	 * @return whether it is a receipt
+	 */
+	public static boolean isReceipt(String message) {
+		return message.startsWith(ChatProtocol.CONTROL + ChatProtocol.RECEIPT);
+	}
+
+	/**
+	 * Counts a frame received from the server, called for every frame by the
+	 * thread reading them
+	 */
+	public void received() {
+		this.received++;
+	}
+
+	/**
+	 * Starts counting again on a new connection, as the server counts the frames
+	 * sent on each connection apart
+	 */
+	public void reset() {
+		this.received = 0;
+	}
+
+	/**
+	 * Starts acknowledging once the server has taken the name of the client,
+	 * sending the first ack straight away so the server starts keeping track
+	 */
+	public synchronized void start() {
+		
+		if (this.started) {
+			return;
+		}
+		this.started = true;
+		
+		Thread acks = new Thread(new Runnable() {
+			public void run() {
+				long acked = -1;
+				while (true) {
+					long received = ClientAcks.this.received;
+					if (received != acked) {
+						send.accept(ChatProtocol.CONTROL + ChatProtocol.ACK + received);
+						acked = received;
+					}
+					try {
+						Thread.sleep(INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		acks.setDaemon(true);
+		acks.start();
+	}
+
+	/**
+	 * Keeps a read receipt from the server
+	 * 
+	 * @param message
+	 * 		the receipt
+	 */
+	public void handle(String message) {
+		this.receipt = message.substring(1 + ChatProtocol.RECEIPT.length());
+	}
+
+	/**
+	 * @return a description of who has received the last line the client sent
+	 */
+	public String describe() {
+		
+		String receipt = this.receipt;
+		if (receipt == null) {
+			return "No one has received your messages yet";
+		}
+		
+		String[] parts = receipt.split(" ");
+		if (parts.length < 3) {
+			return "No one has received your messages yet";
+		}
+		return "Your last message has been seen by " + parts[1] + " of " + parts[2];
+	}
+}
+
+/**
+ * Replays a traffic capture recorded by a server started with -cscapture
+ * against a running server, to reproduce real traffic on a test machine. Every
+ * session in the capture gets a connection of its own, and its frames are sent
+ * in the order they were captured, at the captured pace multiplied by the
+ * speed. A speed of 0 sends them as fast as possible.
+ * 
+ * Each session times how long its own chat lines take to come back to it from
+ * the server, and once the capture has been sent the throughput and latency are
+ * reported. The connection options are the same as the client's, with the
+ * capture file and -crspeed, for example:
+ * 
+ * java ChatReplay traffic.cap -ccp 14001 -crspeed 10
+ * 
+ * @author alfiewn
+ *
+ */
+class ChatReplay {
+
+	// how long to wait for the last chat lines to come back
+	private static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private ClientOptions options;
+	private double speed;
+	private HashMap<Integer, ReplaySession> sessions = new HashMap<Integer, ReplaySession>();
+
+	private LatencyHistogram latency = new LatencyHistogram();
+	private AtomicLong received = new AtomicLong();
+	private long sent;
+	private long skipped;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param options
+	 * 		the options used to connect to the server
+	 * @param speed
+	 * 		how many times faster than it was captured to send the traffic, or 0 to
+	 * 		send it as fast as possible
+	 */
+	public ChatReplay(ClientOptions options, double speed) {
+		this.options = options;
+		this.speed = speed;
+	}
+
+	/**
+	 * Sends every record in a capture file to the server, then reports how it
+	 * went
+	 * 
+	 * @param file
+	 * 		the capture file
+	 * @throws IOException
+	 * 		if the capture cannot be read
+	 */
+	public void replay(String file) throws IOException {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			
+			if (in.readLong() != TrafficCapture.MAGIC) {
+				throw new IOException(file + " is not a traffic capture");
+			}
+			
+			long start = System.nanoTime();
+			while (true) {
+				
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int session = in.readInt();
+				int type = in.readByte();
+				byte[] message = new byte[in.readUnsignedShort()];
+				in.readFully(message);
+				
+				if (this.speed > 0) {
+					long due = start + (long) (time / this.speed);
+					for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				this.send(session, type, message);
+			}
+			
+			this.report(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Sends a single record on the connection of its session
+	 * 
+	 * @param session
+	 * 		the session in the capture
+	 * @param type
+	 * 		the type of the record
+	 * @param message
+	 * 		the message
+	 */
+	private void send(int session, int type, byte[] message) {
+		
+		ReplaySession rs = this.sessions.get(session);
+		
+		if (type == TrafficCapture.FILE) {
+			// file lanes need a token from a live session, so they cannot be replayed
+			this.skipped++;
+			return;
+		} else if (type == TrafficCapture.CLOSE) {
+			if (rs != null) {
+				rs.finish();
+			}
+			return;
+		} else if (rs == null) {
+			try {
+				rs = new ReplaySession(this.options.connect());
+				this.sessions.put(session, rs);
+				new Thread(rs, "replay-" + session).start();
+			} catch (IOException e) {
+				System.out.println("Could not connect session " + session + ": " + e.getMessage());
+				this.sessions.put(session, new ReplaySession(null));
+				return;
+			}
+		}
+		
+		if (rs.send(type, message)) {
+			this.sent++;
+		} else {
+			this.skipped++;
+		}
+	}
+
+	/**
+	 * Waits for the chat lines still on their way back, then closes every session
+	 * and prints the throughput and latency
+	 * 
+	 * @param elapsed
+	 * 		how long the capture took to send, in nanoseconds
+	 */
+	private void report(long elapsed) {
+		
+		long settle = System.nanoTime() + SETTLE_NANOS;
+		for (ReplaySession rs : this.sessions.values()) {
+			while (!rs.isSettled() && System.nanoTime() < settle) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+		}
+		long finished = elapsed + System.nanoTime() - (settle - SETTLE_NANOS);
+		
+		for (ReplaySession rs : this.sessions.values()) {
+			rs.close();
+		}
+		
+		double seconds = elapsed / 1e9;
+		System.out.println("Replayed " + this.sent + " frames from " + this.sessions.size() + " sessions in "
+				+ String.format("%.2f", seconds) + " s, " + (long) (this.sent / seconds) + " frames a second, "
+				+ this.skipped + " skipped");
+		System.out.println("Received " + this.received.get() + " messages, "
+				+ (long) (this.received.get() / (finished / 1e9)) + " a second");
+		System.out.println("Own chat lines back from the server: " + this.latency);
+	}
+
+	/**
+	 * Reads the capture file and speed from the command line arguments and
+	 * replays it
+	 * 
+	 * @param args
+	 * 		the capture file followed by the client options and -crspeed
+	 */
+	public static void main(String[] args) {
+		
+		if (args.length == 0) {
+			System.out.println("Please give the capture file to replay");
+			return;
+		}
+		
+		double speed = 1;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-crspeed") && i + 1 < args.length) {
+				speed = Double.parseDouble(args[++i]);
+			}
+		}
+		
+		try {
+			new ChatReplay(ClientOptions.parse(args), speed).replay(args[0]);
+		} catch (IOException e) {
+			System.out.println("Could not replay " + args[0] + ": " + e.getMessage());
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * The connection of one session in the capture. Frames are written by the
+	 * replay thread, and a thread of its own reads what the server sends back,
+	 * timing the chat lines this session sent.
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	private class ReplaySession implements Runnable {
+
+		private ByteChannel channel;
+		private volatile String prefix;
+		private volatile boolean finishing;
+
+		// when each chat line sent and not yet seen back was sent
+		private ConcurrentLinkedQueue<Long> pending = new ConcurrentLinkedQueue<Long>();
+
+		/**
+		 * Constructor method, sets default fields
+		 * 
+		 * @param channel
+		 * 		the connection to the server, or null if it could not be made
+		 */
+		public ReplaySession(ByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Writes a captured message as a frame
+		 * 
+		 * @param type
+		 * 		the type of the record
+		 * @param message
+		 * 		the message
+		 * @return whether it was sent
+		 */
+		public boolean send(int type, byte[] message) {
+			
+			if (this.channel == null || !this.channel.isOpen()) {
+				return false;
+			}
+			
+			ByteBuffer frame = ByteBuffer.allocate(2 + message.length);
+			frame.putShort((short) message.length);
+			frame.put(message);
+			frame.flip();
+			
+			if (type == TrafficCapture.NAME && this.prefix == null) {
+				this.prefix = "<" + decode(message).substring(4) + "> ";
+			} else if (type == TrafficCapture.CHAT) {
+				this.pending.offer(System.nanoTime());
+			}
+			
+			try {
+				while (frame.hasRemaining()) {
+					this.channel.write(frame);
+				}
+				return true;
+			} catch (IOException e) {
+				this.close();
+				return false;
+			}
+		}
+
+		/**
+		 * @return whether every chat line sent has come back, or the connection has
+		 * 		closed
+		 */
+		public boolean isSettled() {
+			return this.pending.isEmpty() || this.channel == null || !this.channel.isOpen();
+		}
+
+		/**
+		 * Closes the connection once the chat lines it sent have come back, so
+		 * replaying faster than they were captured does not lose them
+		 */
+		public void finish() {
+			
+			this.finishing = true;
+			if (this.pending.isEmpty()) {
+				this.close();
+			}
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		public void close() {
+			try {
+				if (this.channel != null) {
+					this.channel.close();
+				}
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+
+		/**
+		 * Reads messages from the server until the connection closes. Digests are
+		 * counted as the lines they hold.
+		 */
+		public void run() {
+			
+			try {
+				DataInputStream in = new DataInputStream(ClientOptions.inputStream(this.channel));
+				while (true) {
+					String message = in.readUTF();
+					
+					if (message.startsWith(ChatProtocol.CONTROL + ChatProtocol.DIGEST)) {
+						for (String line : message.substring(2 + ChatProtocol.DIGEST.length()).split("\n")) {
+							this.receive(line);
+						}
+					} else {
+						this.receive(message);
+					}
+				}
+			} catch (IOException e) {
+				//the session has closed
+			}
+		}
+
+		/**
+		 * Counts a message received, and times it if it is a chat line this session
+		 * sent
+		 * 
+		 * @param message
+		 * 		the message
+		 */
+		private void receive(String message) {
+			
+			received.incrementAndGet();
+			if (this.prefix != null && message.startsWith(this.prefix)) {
+				Long sent = this.pending.poll();
+				if (sent != null) {
+					latency.record(System.nanoTime() - sent);
+				}
+				if (this.finishing && this.pending.isEmpty()) {
+					this.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes a captured message, which is in the modified UTF-8 format read by
+	 * readUTF
+	 * 
+	 * @param message
+	 * 		the message
+	 * @return the string
+	 */
+	private static String decode(byte[] message) {
+		
+		ByteBuffer frame = ByteBuffer.allocate(2 + message.length);
+		frame.putShort((short) message.length);
+		frame.put(message);
+		try {
+			return new DataInputStream(new ByteArrayInputStream(frame.array())).readUTF();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+}
@@ -0,0 +1,193 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder events for each stage a message goes through on the server,
+ * so a latency spike in a recording can be lined up against garbage collection
+ * and other activity. The events on the path of every message only record when
+ * they take longer than a threshold, which can be changed in the recording
+ * settings, so leaving a recording running costs next to nothing. For example:
+ * 
+ * java -XX:StartFlightRecording=filename=chat.jfr ChatServer
+ * 
+ * @author alfiewn
+ *
+ */
+public class ChatEvents {
+
+	/**
+	 * A connection accepted and handed to its thread, the handshake pool or a shard
+	 */
+	@Name("chat.Accept")
+	@Label("Accept")
+	@Category("Chat Server")
+	@StackTrace(false)
+	static class Accept extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Transport")
+		String transport;
+	}
+
+	/**
+	 * A client binding its name, including sending it the roster and the messages
+	 * held while it was away
+	 */
+	@Name("chat.Handshake")
+	@Label("Name Handshake")
+	@Category("Chat Server")
+	@StackTrace(false)
+	static class Handshake extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Name")
+		String name;
+
+		@Label("Bound")
+		boolean bound;
+	}
+
+	/**
+	 * The body of a frame arriving after its length header
+	 */
+	@Name("chat.Decode")
+	@Label("Frame Decode")
+	@Category("Chat Server")
+	@Description("From the length header of a frame arriving to its body being read")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static class Decode extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+	}
+
+	/**
+	 * A chat line being sent on to the room, including writing it to every member
+	 * when the server runs one thread per connection
+	 */
+	@Name("chat.Route")
+	@Label("Route")
+	@Category("Chat Server")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static class Route extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Room")
+		String room;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+
+		@Label("Recipients")
+		int recipients;
+	}
+
+	/**
+	 * A frame queued for a sharded client because its socket was full
+	 */
+	@Name("chat.Enqueue")
+	@Label("Enqueue")
+	@Category("Chat Server")
+	@StackTrace(false)
+	static class Enqueue extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Room")
+		String room;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+
+		@Label("Lane")
+		String lane;
+
+		@Label("Queued")
+		@DataAmount
+		long queued;
+	}
+
+	/**
+	 * A write to the socket of a single client
+	 */
+	@Name("chat.Write")
+	@Label("Socket Write")
+	@Category("Chat Server")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static class Write extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+	}
+
+	/**
+	 * A session ending, because the client sent exit, was dropped or its
+	 * connection failed
+	 */
+	@Name("chat.Disconnect")
+	@Label("Disconnect")
+	@Category("Chat Server")
+	@StackTrace(false)
+	static class Disconnect extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Name")
+		String name;
+
+		@Label("Reason")
+		String reason;
+
+		@Label("Connected For")
+		@Timespan
+		long connected;
+	}
+
+	/**
+	 * A sharded client dropped because it stopped reading
+	 */
+	@Name("chat.Eviction")
+	@Label("Slow Consumer Eviction")
+	@Category("Chat Server")
+	@StackTrace(false)
+	static class Eviction extends Event {
+
+		@Label("Session")
+		int session;
+
+		@Label("Name")
+		String name;
+
+		@Label("Queued")
+		@DataAmount
+		long queued;
+	}
+}
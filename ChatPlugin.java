@@ -0,0 +1,108 @@
+/**
+ * A bot or plugin running inside the server. Plugins are named on the command
+ * line with -csplugin followed by the class name, and must have a constructor
+ * taking no arguments. Each plugin is told of chat messages, clients joining
+ * and clients leaving, and can reply to a client or post to the lobby through
+ * its context. It only needs to override the events it wants.
+ * 
+ * Events are handed to each plugin on a thread of its own, never on the
+ * threads reading from clients or sending messages, so a slow plugin holds up
+ * nothing but itself. A plugin that takes too long over an event is
+ * interrupted, and what happens to events that arrive while it is behind is set
+ * with -cspluginoverload. For example:
+ * 
+ * java -cp .:bots ChatServer -csplugin EchoBot -cspluginmillis 500
+ * 
+ * @author alfiewn
+ *
+ */
+public interface ChatPlugin {
+
+	/**
+	 * What a plugin can do on the server. Its lines are stamped with the name
+	 * of the plugin, which clients cannot take.
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	interface Context {
+
+		/**
+		 * @return the name the plugin speaks as
+		 */
+		String getName();
+
+		/**
+		 * Sends a private message to a client
+		 * 
+		 * @param name
+		 * 		the name of the client
+		 * @param text
+		 * 		the message
+		 * @return whether the client is online
+		 */
+		boolean reply(String name, String text);
+
+		/**
+		 * Posts a chat line to everybody in the lobby. Lines posted by plugins are
+		 * not handed to plugins as messages, so two plugins cannot answer each
+		 * other forever. They go through the server's filter like any other line,
+		 * and one the filter blocks is dropped.
+		 * 
+		 * @param text
+		 * 		the chat line, without the name
+		 */
+		void post(String text);
+	}
+
+	/**
+	 * @return the name the plugin speaks as
+	 */
+	default String getName() {
+		return this.getClass().getSimpleName();
+	}
+
+	/**
+	 * Called once before any events, on the thread of the plugin
+	 * 
+	 * @param context
+	 * 		what the plugin can do on the server
+	 */
+	default void start(Context context) {
+	}
+
+	/**
+	 * Called for every chat line sent to the lobby
+	 * 
+	 * @param context
+	 * 		what the plugin can do on the server
+	 * @param name
+	 * 		the name of the client that sent it
+	 * @param text
+	 * 		the chat line, without the name
+	 */
+	default void message(Context context, String name, String text) {
+	}
+
+	/**
+	 * Called when a client joins
+	 * 
+	 * @param context
+	 * 		what the plugin can do on the server
+	 * @param name
+	 * 		the name of the client
+	 */
+	default void join(Context context, String name) {
+	}
+
+	/**
+	 * Called when a client leaves
+	 * 
+	 * @param context
+	 * 		what the plugin can do on the server
+	 * @param name
+	 * 		the name of the client
+	 */
+	default void leave(Context context, String name) {
+	}
+}
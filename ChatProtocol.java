@@ -0,0 +1,96 @@
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Constants shared by the chat server and the chat clients
+ * 
+ * @author alfiewn
+ *
+ */
+public class ChatProtocol {
+
+	// control messages from the server begin with this character, which cannot be
+	// typed into a client, so clients know not to display them
+	public static final char CONTROL = '\u0000';
+
+	// control message carrying the token a client opens file lanes with
+	public static final String LANE = "lane ";
+
+	// control messages carrying a snapshot of the roster and the changes to it,
+	// and asking the server for the changes since a version of the roster. A
+	// snapshot too long for one frame starts with parts carrying some of its
+	// names and the version it belongs to.
+	public static final String ROSTER = "roster ";
+	public static final String PRESENCE = "presence ";
+	public static final String SINCE = "since ";
+	public static final String NAMES = "names ";
+
+	// control message sending a direct message, as the name of the recipient and
+	// the message, which is held for the recipient if they are offline
+	public static final String DIRECT = "msg ";
+
+	// control messages searching the chat history of the lobby, and carrying the
+	// number of lines found followed by one line each
+	public static final String SEARCH = "search ";
+	public static final String RESULTS = "results ";
+
+	// control messages measuring the round trip to the server, carrying a time
+	// that the server sends straight back
+	public static final String PING = "ping ";
+	public static final String PONG = "pong ";
+
+	// control messages carrying a chat line with the times, in microseconds, it
+	// was sent by the client, then received and routed by the server, all as
+	// fixed width numbers so the routing time can be filled in just before the
+	// frame is handed to the room. The one frame goes to every client, so the
+	// time each copy is written is not in it.
+	public static final String TRACE = "trace ";
+	public static final String TRACED = "traced ";
+	public static final int TIME_DIGITS = 16;
+
+	// control message packing the chat lines of a busy room, followed by one line
+	// per chat line
+	public static final String DIGEST = "digest";
+
+	// control messages by which a client acknowledges the number of frames it has
+	// received so far, and the server says how many of the other clients that ack
+	// have received the last chat line the client sent, as the line number, the
+	// count and the total
+	public static final String ACK = "ack ";
+	public static final String RECEIPT = "receipt ";
+
+	// control messages scheduling a chat line to be sent after a delay in
+	// milliseconds, and then every period if the period is not 0, cancelling one
+	// by its id, and listing those the client has scheduled. The server answers
+	// with plain messages.
+	public static final String SCHEDULE = "schedule ";
+	public static final String UNSCHEDULE = "unschedule ";
+	public static final String SCHEDULES = "schedules";
+
+	// control message a client sends after its name when it has reconnected, to
+	// any server, so the chat lines it missed are sent to it
+	public static final String RESUME = "resume";
+
+	// control message sent to every client when the server shuts down, followed
+	// by the host:port of the server to reconnect to, or nothing to use the
+	// servers the client already knows
+	public static final String RESTART = "restart ";
+
+	/**
+	 * @return the wall clock time in microseconds, which the server and clients
+	 * 		can compare when their clocks are in sync
+	 */
+	public static long micros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+	}
+
+	/**
+	 * @param micros
+	 * 		a time in microseconds
+	 * @return the time padded with zeros to TIME_DIGITS digits
+	 */
+	public static String stamp(long micros) {
+		return String.format(Locale.ROOT, "%0" + TIME_DIGITS + "d", Math.max(0, micros));
+	}
+}
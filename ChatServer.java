@@ -1,8 +1,69 @@
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.awt.EventQueue;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 import javax.swing.JFrame;
 import javax.swing.JTextArea;
 
@@ -15,10 +76,81 @@ import javax.swing.JTextArea;
  */
 public class ChatServer {
 
-	protected ServerSocket ss;
-	protected Socket s;
-	protected ArrayList<Object> connections = new ArrayList<Object>();
+	// how long a shard is given to count what it holds once draining has run
+	// out of time
+	public static final long COUNT_MILLIS = 50;
+
+	protected Transport transport;
+	
+	// set when clients on the same host may connect through shared memory
+	protected Transport localTransport;
+	
+	// set when the server is driven from a single thread, the connections it
+	// has accepted from the driven transport, see step
+	protected LoopbackTransport driven;
+	protected ArrayList<ServerConnection> stepped;
+	
+	// copied on write, so messages can be sent to every client while others join
+	// and leave
+	protected CopyOnWriteArrayList<Object> connections = new CopyOnWriteArrayList<Object>();
 	protected ArrayList<String> clientNames = new ArrayList<String>();
+	protected ServerOptions options = new ServerOptions();
+	protected BufferPool buffers = new BufferPool();
+	protected FileSpool files;
+	protected OfflineSpool offline;
+	protected Roster roster;
+	protected ReadReceipts receipts;
+	protected Plugins plugins;
+	
+	// every client joins the lobby, large rooms send messages on the fan-out pool
+	protected Room lobby;
+	protected ForkJoinPool fanOut;
+	
+	// runs timed work such as roster updates and handshake timeouts
+	protected ScheduledExecutorService timers;
+	
+	// chat lines clients have scheduled to be sent later
+	protected Scheduler scheduler;
+	
+	// the last chat lines and how far each client has got through them, shipped
+	// to standby servers
+	protected Replication replication;
+	
+	// indexes the chat history of rooms and runs searches over it
+	protected ExecutorService indexer;
+	
+	// set when the server runs with tracing, times each stage of sending a message
+	protected LatencyTracer tracer;
+	
+	// set when the server captures traffic, records every frame from clients
+	protected TrafficCapture capture;
+	
+	// masks or blocks chat lines matching the rules, which can be reloaded
+	protected ContentFilter filter;
+	
+	// set when the server runs with TLS, handshakes run on their own pool so the
+	// accepting thread is never held up by them
+	protected SSLContext sslContext;
+	protected ExecutorService handshakes;
+	protected LongAdder handshakeCount = new LongAdder();
+	protected LongAdder handshakeNanos = new LongAdder();
+	
+	// set when the server runs sharded, accepted connections are dealt out to
+	// the shards in turn
+	protected Shard[] shards;
+	private int nextShard;
+	
+	// connections carrying many sessions, which sharded servers write to apart
+	// from the shards
+	protected volatile Multiplexer[] multiplexers = new Multiplexer[0];
+	
+	// lobby members of a sharded server whose channels cannot be selected, such
+	// as loopback and shared memory ones, which a thread of their own writes to.
+	// A member that holds it up too long is dropped.
+	protected volatile ServerConnection[] unpinned = new ServerConnection[0];
+	private ExecutorService unpinnedWriter;
+	private AtomicInteger unpinnedBacklog = new AtomicInteger();
+	private volatile ServerConnection unpinnedWriting;
 
 	/**
 	 * Opens a new server socket, starts an input thread to read from the command
@@ -28,20 +160,56 @@ public class ChatServer {
 	 * 		the port of the ServerSocket
 	 */
 	public ChatServer(int port) {
+		this(ServerOptions.forPort(port));
+	}
+
+	/**
+	 * Opens a new server socket, starts an input thread to read from the command
+	 * line. Calls the method to listen for client connections
+	 * 
+	 * @param options
+	 * 		the options parsed from the command line arguments
+	 */
+	public ChatServer(ServerOptions options) {
+		
+		int port = options.port;
 		
 		try {
-			this.ss = new ServerSocket(port);
+			this.configure(options);
+			
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					shutdownServer();
+				}
+			});
+			
+			if (options.primary != null) {
+				System.out.println("Standing by for " + options.primary + ", to shutdown the server, type EXIT");
+				new Thread(new ServerInput(this)).start();
+				this.replication.follow(options.primary, options.failoverMillis);
+			}
+			this.transport = new SocketTransport(port);
 
 			System.out.printf("Listening for connections on port " + port + "\n");
 			System.out.println("To shutdown the server, type EXIT");
 
-			Thread t = new Thread(new ServerInput(this));
-			t.start();
+			if (options.primary == null) {
+				Thread t = new Thread(new ServerInput(this));
+				t.start();
+			}
+			
+			if (options.sharedMemory) {
+				this.localTransport = new SharedMemoryTransport(SharedMemoryTransport.directoryFor(port));
+				this.listenInBackground(this.localTransport);
+			}
 
-			listenForConnections();
+			listenForConnections(this.transport);
 
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (GeneralSecurityException e) {
+			System.out.println("Could not start TLS, please check the key store settings");
 		}
 	}
 
@@ -49,545 +217,8690 @@ public class ChatServer {
 	}
 
 	/**
-	 * A method to close the server socket and exit the program
-	 */
-	protected void shutdownServer() {
-
-		try {
-
-			this.ss.close();
-
-			System.out.println("Server has been shut down");
-			Runtime.getRuntime().halt(0);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * A method to listen for and accept connections from clients. It creates an
-	 * instance of ServerConnection each time and adds it to the connections
-	 * arraylist. Starts the serverconnection on a new thread.
+	 * Starts a server inside another program, accepting connections from the
+	 * given transport on a thread of its own. Connecting clients through a
+	 * loopback transport runs the server logic without the network.
+	 * 
+	 * @param options
+	 * 		the options of the server
+	 * @param transport
+	 * 		the transport to accept connections from
+	 * @return the server, which stops accepting connections once the transport
+	 * 		is closed
+	 * @throws GeneralSecurityException
+	 * 		if TLS is turned on and the key store cannot be loaded
+	 * @throws IOException
+	 * 		if the selectors of the shards cannot be opened
 	 */
-	private synchronized void listenForConnections() {
-		while (true) {
-
-			try {
-
-				this.s = ss.accept();
-
-				ServerConnection sc = new ServerConnection(s, this);
-
-				Thread t = new Thread(sc);
-				this.connections.add(sc);
-				t.start();
-
-			} catch (IOException e) {			
-				e.printStackTrace();
-			}
-		}
+	public static ChatServer start(ServerOptions options, Transport transport)
+			throws GeneralSecurityException, IOException {
+		
+		ChatServer server = new ChatServer();
+		server.configure(options);
+		server.transport = transport;
+		server.listenInBackground(transport);
+		return server;
 	}
 
 	/**
-	 * an accessor method for the connections arraylist
+	 * Starts a server inside another program that runs no thread of its own for
+	 * its connections. Nothing happens for them until step is called, so a test
+	 * can drive the server and its clients in turn from one thread. Timed jobs
+	 * and the offline spool still run on their own threads, and clients can only
+	 * chat, as file lanes and multiplexed connections need threads of their own.
 	 * 
-	 * @return The arraylist of current client connections
+	 * @param options
+	 * 		the options of the server, which must not run it sharded or with TLS
+	 * @param transport
+	 * 		a driven loopback transport to accept connections from
+	 * @return the server
+	 * @throws GeneralSecurityException
+	 * 		if TLS is turned on and the key store cannot be loaded
+	 * @throws IOException
+	 * 		if the selectors of the shards cannot be opened
 	 */
-	public ArrayList<Object> getConnections() {
-		return this.connections;
+	public static ChatServer drive(ServerOptions options, LoopbackTransport transport)
+			throws GeneralSecurityException, IOException {
+		
+		ChatServer server = new ChatServer();
+		server.configure(options);
+		server.transport = transport;
+		server.driven = transport;
+		server.stepped = new ArrayList<ServerConnection>();
+		return server;
 	}
 
 	/**
-	 * adds a new connection to the connections arraylist
-	 * 
-	 * @param sc
-	 * 		An instance of serverconnection
+	 * Accepts the clients waiting on the driven transport, then handles every
+	 * whole frame each connection has been sent, in the order they connected, on
+	 * the calling thread. What the server writes back to the clients has been
+	 * written by the time it returns.
 	 */
-	public synchronized void addConnection(ServerConnection sc) {
-		this.connections.add(sc);
+	public void step() {
+		
+		ByteChannel channel;
+		while ((channel = this.driven.poll()) != null) {
+			this.stepped.add(new ServerConnection(channel, this));
+		}
+		
+		Iterator<ServerConnection> connections = this.stepped.iterator();
+		while (connections.hasNext()) {
+			if (!connections.next().step()) {
+				connections.remove();
+			}
+		}
 	}
 
 	/**
-	 * an accessor method for the client names arraylist
+	 * Accepts connections from a transport on a thread of its own
 	 * 
-	 * @return the arraylist of names of connected clients
+	 * @param transport
+	 * 		the transport to accept connections from
 	 */
-	public ArrayList<String> getClientNames() {
-		return this.clientNames;
+	protected void listenInBackground(final Transport transport) {
+		new Thread(new Runnable() {
+			public void run() {
+				listenForConnections(transport);
+			}
+		}).start();
 	}
 
 	/**
-	 * adds a new client name to the client names arraylist
+	 * Runs a job that writes to clients every so often. The timers only hand it to
+	 * the fan-out pool, as a client that has stopped reading blocks writes to it
+	 * when the server runs one thread per connection, and the other jobs on the
+	 * timers must keep running. A run is skipped while the last one is still
+	 * going, and one that throws does not stop the runs after it.
 	 * 
-	 * @param name
-	 * 		the username of a connected client
+	 * @param job
+	 * 		the job
+	 * @param millis
+	 * 		the time between runs
 	 */
-	public void addClientName(String name) {
-		this.clientNames.add(name);
+	private void scheduleWrites(final Runnable job, long millis) {
+		
+		final AtomicBoolean running = new AtomicBoolean();
+		final Runnable run = new Runnable() {
+			public void run() {
+				try {
+					job.run();
+				} finally {
+					running.set(false);
+				}
+			}
+		};
+		
+		this.timers.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (running.compareAndSet(false, true)) {
+					fanOut.execute(run);
+				}
+			}
+		}, millis, millis, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 * removes a connection and its name from the corresponding arraylist
+	 * Sets up the parts of the server that depend on its options
 	 * 
-	 * @param name
-	 * 		the username of a connected client
+	 * @param options
+	 * 		the options parsed from the command line arguments
+	 * @throws GeneralSecurityException
+	 * 		if TLS is turned on and the key store cannot be loaded
+	 * @throws IOException
+	 * 		if the selectors of the shards cannot be opened
 	 */
-	public void removeConnection(String name) {
-		int position = getClientNames().indexOf(name);
+	protected void configure(ServerOptions options) throws GeneralSecurityException, IOException {
+		
+		this.options = options;
+		this.files = new FileSpool(this, options.spoolDirectory, TimeUnit.HOURS.toMillis(options.fileHours));
+		this.timers = Executors.newSingleThreadScheduledExecutor();
+		this.timers.scheduleWithFixedDelay(this.files, 0, FileSpool.EXPIRE_MINUTES, TimeUnit.MINUTES);
+		this.fanOut = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		this.indexer = Executors.newSingleThreadExecutor();
+		this.tracer = options.trace ? new LatencyTracer() : null;
+		this.capture = options.captureFile == null ? null : new TrafficCapture(options.captureFile);
+		this.filter = new ContentFilter(options.filterFile);
+		if (options.filterFile != null) {
+			this.log("Filter: " + this.filter.reload() + " rules loaded from " + options.filterFile);
+		}
+		this.lobby = new Room("lobby", this);
+		this.roster = new Roster(this);
+		this.scheduleWrites(this.roster, Roster.WINDOW_MILLIS);
+		this.receipts = new ReadReceipts(this);
+		this.scheduleWrites(this.receipts, ReadReceipts.INTERVAL_MILLIS);
+		this.scheduler = new Scheduler(this, new File(options.spoolDirectory, "schedules"));
+		this.scheduleWrites(this.scheduler, Scheduler.TICK_MILLIS);
+		this.replication = new Replication(this, options.replaySize);
+		this.replication.start();
+		this.plugins = new Plugins(this);
+		if (!this.plugins.isEmpty()) {
+			long watch = Math.max(10, options.pluginMillis / 10);
+			this.timers.scheduleWithFixedDelay(this.plugins, watch, watch, TimeUnit.MILLISECONDS);
+		}
+		this.offline = new OfflineSpool(this, new File(options.spoolDirectory, "offline"), options.offlineQuota,
+				TimeUnit.HOURS.toMillis(options.offlineHours));
+		this.timers.scheduleWithFixedDelay(this.offline, 0, OfflineSpool.COMPACT_MINUTES, TimeUnit.MINUTES);
+		
+		if (options.tls) {
+			
+			// the default context reads the javax.net.ssl.keyStore properties, and
+			// caches sessions so returning clients can resume them
+			this.sslContext = SSLContext.getDefault();
+			this.handshakes = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+		if (options.replicaPort > 0) {
+			this.replication.listen(options.replicaPort);
+		}
 		
-		this.connections.remove(position);
-		this.clientNames.remove(position);
+		if (options.shards > 0 && options.tls) {
+			this.log("TLS connections block while reading, running one thread per connection instead of shards");
+		} else if (options.shards > 0) {
+			this.shards = new Shard[options.shards];
+			for (int i = 0; i < this.shards.length; i++) {
+				this.shards[i] = new Shard(i, this);
+				this.shards[i].start();
+			}
+			this.unpinnedWriter = Executors.newSingleThreadExecutor();
+		}
 	}
 
 	/**
-	 * Allows the user to choose between CLI and GUI. Checks if the user is using
-	 * command line arguments to input their own port. either makes an instance of
-	 * the ChatServer class or call the main method from the GUIChatServer.
-	 * 
-	 * @param args
+	 * A method to close the server socket, drain what is waiting for clients and
+	 * exit the program
 	 */
-	public static void main(String[] args) {
+	protected void shutdownServer() {
 
+		long start = System.nanoTime();
 		try {
 
-			System.out.println("Would you like to run in GUI mode? Y/N");
-			String answer = new BufferedReader(new InputStreamReader(System.in)).readLine();
-			boolean repeat = true;
-
-			// repeats until a valid input is recieved
-			while (repeat) {
-				if (answer.equals("N")) {
-					repeat = false;
-					if (args.length != 0) {
-						if (args[0].startsWith("-csp")) {
-							int port = Integer.parseInt(args[1].toString());
-							new ChatServer(port);
-						}
-					} else {
-						new ChatServer(14001);
-					}
-				} else if (answer.equals("Y")) {
-					repeat = false;
-					GUIChatServer.main(args);
-				} else {
-					System.out.println("Please enter either Y or N");
-				}
+			if (this.transport != null) {
+				this.transport.close();
 			}
+			if (this.localTransport != null) {
+				this.localTransport.close();
+			}
+
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		
+		int undelivered = this.lobby == null ? 0 : this.drain(this.options.drainMillis);
+		if (this.capture != null) {
+			this.capture.finish();
+			this.log("Capture: " + this.capture);
+		}
+		System.out.println("Server has been shut down in " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ (undelivered == 0 ? "every message was delivered" : undelivered + " messages were not delivered"));
+		Runtime.getRuntime().halt(0);
 	}
-}
 
-/**
- * A class to handle command line input to the server. Allows the user to shut
- * down using EXIT.
- * 
- * @author alfiewn
- *
- */
-class ServerInput implements Runnable {
+	/**
+	 * Drains the server once it has stopped accepting connections. The chat lines
+	 * waiting in the digest are sent, then every client is told the server is
+	 * restarting and where to reconnect. This all runs on the fan-out pool, as
+	 * writes to clients not on a shard block, with a task of its own for each of
+	 * those clients. Frames to sharded clients are queued on their shards. The
+	 * server then waits until every shard and multiplexer has written what it
+	 * holds, or the time is up, and ends the output of every client so it sees
+	 * the connection close straight after the last frame.
+	 * 
+	 * @param millis
+	 * 		the most time to wait for what is queued to be written
+	 * @return the number of messages that could not be written to clients in time
+	 */
+	public int drain(long millis) {
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		final Object[] connections = this.connections.toArray();
+		
+		// the frame is not released, as a write may still hold it when the server
+		// exits
+		String redirect = this.options.drainTo == null ? "" : this.options.drainTo;
+		final ByteBuffer frame = this.encodeFrame(ChatProtocol.CONTROL + ChatProtocol.RESTART + redirect);
+		final AtomicInteger unsent = new AtomicInteger(connections.length);
+		this.fanOut.execute(new Runnable() {
+			public void run() {
+				lobby.getDigest().flush();
+				
+				for (Object connection : connections) {
+					final ServerConnection sc = (ServerConnection) connection;
+					if (sc.shard != null) {
+						sc.sendToClient(frame.duplicate());
+						unsent.decrementAndGet();
+						continue;
+					}
+					
+					fanOut.execute(new Runnable() {
+						public void run() {
+							sc.sendToClient(frame.duplicate());
+							unsent.decrementAndGet();
+						}
+					});
+				}
+			}
+		});
+		
+		int undelivered;
+		do {
+			while (System.nanoTime() < deadline && !this.isDrained(unsent)) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			undelivered = this.countUndelivered(unsent, deadline);
+		} while (undelivered > 0 && System.nanoTime() < deadline);
+		
+		for (Object connection : connections) {
+			((ServerConnection) connection).shutdownOutput();
+		}
+		return undelivered;
+	}
 
-	private ChatServer server;
+	/**
+	 * @param unsent
+	 * 		the clients the restart frame is still being written to
+	 * @return whether the shards and multiplexers look to have written everything
+	 */
+	private boolean isDrained(AtomicInteger unsent) {
+		
+		if (unsent.get() > 0 || this.unpinnedBacklog.get() > 0) {
+			return false;
+		}
+		for (Shard shard : this.shards == null ? new Shard[0] : this.shards) {
+			if (!shard.isIdle()) {
+				return false;
+			}
+		}
+		for (Multiplexer mux : this.multiplexers) {
+			if (mux.backlog() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	/**
-	 * Constructor, sets field defualts
+	 * Counts the messages not yet written to clients. Each shard counts the frames
+	 * held for its clients on its own thread, after the tasks already posted to
+	 * it. A shard that has not answered by the deadline, or COUNT_MILLIS after it
+	 * if that has passed, is taken to hold one message for each of its clients,
+	 * the restart message.
 	 * 
-	 * @param server
-	 * 		an instance of the chatserver
+	 * @param unsent
+	 * 		the clients the restart frame is still being written to
+	 * @param deadline
+	 * 		the nano time to stop waiting for the shards at
+	 * @return the number of messages
 	 */
-	public ServerInput(ChatServer server) {
-		this.server = server;
+	private int countUndelivered(AtomicInteger unsent, long deadline) {
+		
+		int undelivered = unsent.get() + this.unpinnedBacklog.get() * this.unpinned.length;
+		for (Multiplexer mux : this.multiplexers) {
+			undelivered += mux.backlog();
+		}
+		if (this.shards == null) {
+			return undelivered;
+		}
+		
+		AtomicInteger[] counts = new AtomicInteger[this.shards.length];
+		for (int i = 0; i < this.shards.length; i++) {
+			counts[i] = this.shards[i].countUndelivered();
+		}
+		
+		deadline = Math.max(deadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COUNT_MILLIS));
+		for (int i = 0; i < this.shards.length; i++) {
+			while (counts[i].get() < 0 && System.nanoTime() < deadline) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			if (counts[i].get() >= 0) {
+				undelivered += counts[i].get();
+				continue;
+			}
+			for (Object connection : this.connections) {
+				if (((ServerConnection) connection).shard == this.shards[i]) {
+					undelivered++;
+				}
+			}
+		}
+		return undelivered;
 	}
 
 	/**
-	 * Listens for command line input, if it equals the exit command calls the
-	 * shutdown server method.
+	 * A method to listen for and accept connections from clients. It creates an
+	 * instance of ServerConnection each time and starts it on a new thread. The
+	 * connection adds itself to the connections arraylist once its name is bound.
+	 * Returns once the transport is closed.
+	 * 
+	 * @param transport
+	 * 		the transport to accept connections from
 	 */
-	public void run() {
+	private void listenForConnections(Transport transport) {
 		while (true) {
+
 			try {
-				BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-				String input = br.readLine();
+
+				ByteChannel channel = transport.accept();
+				ChatEvents.Accept event = new ChatEvents.Accept();
+				event.begin();
 				
-				if (input.equals("EXIT")) {
-					this.server.shutdownServer();
-				} else {
-					System.out.println("Invalid input, please type EXIT to quit");
-				}
+				ServerConnection sc = new ServerConnection(channel, this);
+				this.startConnection(sc);
 				
-			} catch (IOException e) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.session = sc.session;
+					event.transport = transport.getClass().getSimpleName();
+					event.commit();
+				}
+
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {			
 				e.printStackTrace();
 			}
-
 		}
-
-	}
-
-}
-
-/**
- * Handles the server connection to the client
- * 
- * @author alfiewn
- *
- */
-class ServerConnection implements Runnable {
-
-	protected Socket s;
-	protected ChatServer server;
-	protected DataInputStream inputFromClient;
-	protected DataOutputStream outputToClient;
-	boolean shouldRun = true;
-
-	public ServerConnection() {
 	}
 
 	/**
-	 * Constructor method, sets default fields
+	 * Starts a newly accepted connection on its own thread. With TLS the handshake
+	 * is run first on the handshake pool, and the connection is closed if it does
+	 * not finish in time. When the server runs sharded the connection is pinned to
+	 * the next shard instead. Connections that do not come from a socket always
+	 * run on their own thread without TLS, and a sharded server writes to them
+	 * apart from the shards.
 	 * 
-	 * @param s
-	 * 		the socket of the server
-	 * @param server
-	 * 		an instance of the chatserver
+	 * @param sc
+	 * 		the connection that has been accepted
 	 */
-	public ServerConnection(Socket s, ChatServer server) {
-		this.s = s;
-		this.server = server;
+	protected void startConnection(final ServerConnection sc) {
 		
-		try {
-			this.inputFromClient = new DataInputStream(s.getInputStream());
-			this.outputToClient = new DataOutputStream(s.getOutputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (this.shards != null && sc.s != null) {
+			this.shards[this.nextShard++ % this.shards.length].adopt(sc);
+			return;
 		}
-
+		
+		if (this.sslContext == null || sc.s == null) {
+			new Thread(sc).start();
+			return;
+		}
+		
+		this.handshakes.execute(new Runnable() {
+			public void run() {
+				
+				ScheduledFuture<?> timeout = timers.schedule(new Runnable() {
+					public void run() {
+						sc.closeSocket();
+					}
+				}, 10, TimeUnit.SECONDS);
+				
+				long start = System.nanoTime();
+				boolean started = sc.startTls(sslContext);
+				timeout.cancel(false);
+				
+				if (started) {
+					handshakeCount.increment();
+					handshakeNanos.add(System.nanoTime() - start);
+					new Thread(sc).start();
+				}
+			}
+		});
 	}
 
 	/**
-	 * Method to write a message to a single client
+	 * Method to write the same message to all clients. The message is encoded
+	 * once and the frame is shared by every recipient.
 	 * 
 	 * @param message
-	 * 		the message received by the server
+	 * 		the message to send
 	 */
-	protected void sendToClient(String message) {
+	public void sendToAllClients(String message) {
 		
-		try {
-			this.outputToClient.writeUTF(message);
-			this.outputToClient.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		ByteBuffer frame = this.encodeFrame(message);
+		if (frame == null) {
+			this.log("A message was too long to send to all clients");
+			return;
 		}
+		this.sendToAllClients(frame);
+		this.buffers.release(frame);
+	}
 
+	/**
+	 * Method to write the same encoded frame to all clients, after the chat lines
+	 * waiting in the digest of the lobby
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 */
+	public void sendToAllClients(ByteBuffer frame) {
+		
+		this.lobby.getDigest().flush();
+		this.deliverToAllClients(frame, 0);
 	}
 
 	/**
-	 * Method to call the sendToClient method for each client in order to send the
-	 * message to all clients
+	 * Method to write a chat line to all clients. The line is numbered in the
+	 * lobby so clients can acknowledge it, and while the lobby is busy it is
+	 * packed into its digest instead of being written straight away.
 	 * 
-	 * @param message
-	 * 		the message received by the server
+	 * @param frame
+	 * 		the length header and chat line to write
+	 * @return the sequence number of the line in the lobby
 	 */
-	private void sendToAllClients(String message) {
+	public long sendLineToAllClients(ByteBuffer frame) {
 		
-		for (int i = 0; i < server.getConnections().size(); i++) {
-			ServerConnection ch = (ServerConnection) server.getConnections().get(i);
-			ch.sendToClient(message);
+		long seq = this.lobby.nextSequence();
+		if (!this.lobby.getDigest().add(frame, seq)) {
+			this.deliverToAllClients(frame, seq);
 		}
+		return seq;
 	}
 
 	/**
-	 * Reads input from the client and calls send to all clients with the message.
-	 * If the message string begins with exit, call the removeConnection method. If
-	 * it is a name, notify all clients a new client has joined. Else output the
-	 * message to all clients
+	 * Writes an encoded frame to all clients. When the server runs sharded the
+	 * frame is copied once and posted to every shard, which writes it to its own
+	 * clients, to every multiplexer and to the thread writing to the members not
+	 * pinned to a shard, and the copy is released by the last to finish.
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0 if it holds
+	 * 		none
 	 */
-	public void run() {
-
-		try {
-			while (shouldRun) {
-				
-				String message = inputFromClient.readUTF();
-				
-				if (message.substring(0, 4).equals("exit")) {
-					String name = message.substring(4);
-					this.server.removeConnection(name);
-					sendToAllClients(name + " has left the chat");
-					System.out.println("Client disconnected: " + name);
-				} else if (message.substring(0, 4).equals("name")) {
-					String name = message.substring(4);
-					this.server.addClientName(name);
-					System.out.println("New client: " + name);
-					sendToAllClients(name + " has joined the chat");
-				} else {
-					System.out.println(message);
-					this.sendToAllClients(message);
-				}
+	void deliverToAllClients(ByteBuffer frame, long seq) {
+		
+		LatencyTracer tracer = this.tracer;
+		long start = tracer == null ? 0 : System.nanoTime();
+		
+		if (this.shards == null) {
+			this.lobby.send(frame, seq);
+			for (Multiplexer mux : this.multiplexers) {
+				mux.broadcast(frame, seq);
 			}
-
-			this.inputFromClient.close();
-			this.outputToClient.close();
-			this.s.close();
-
-		} catch (IOException e) {
-			//client has disconnected
+			if (tracer != null) {
+				tracer.fanOut.record(System.nanoTime() - start);
+			}
+			return;
+		}
+		
+		ByteBuffer copy = this.buffers.acquire(frame.limit());
+		frame.position(0);
+		copy.put(frame);
+		copy.flip();
+		
+		Multiplexer[] multiplexers = this.multiplexers;
+		ServerConnection[] unpinned = this.unpinned;
+		AtomicInteger pending = new AtomicInteger(
+				this.shards.length + multiplexers.length + (unpinned.length > 0 ? 1 : 0));
+		for (Shard shard : this.shards) {
+			shard.deliver(copy, pending, start, seq);
+		}
+		for (Multiplexer mux : multiplexers) {
+			mux.deliver(copy, pending, start, seq);
+		}
+		if (unpinned.length > 0) {
+			this.deliverUnpinned(unpinned, copy, pending, start, seq);
 		}
 	}
-}
-
-/**
- * Extends ChatServer with additional methods for creating GUI elements and
- * dealing with eventlisteners for input
- * 
- * @author alfiewn
- *
- */
-class GUIChatServer extends ChatServer {
-
-	private JFrame frame;
-	private JTextArea textArea;
-	private static GUIChatServer instance;
 
 	/**
-	 * Launch the application, checking for an args entry to change the port
+	 * Writes a frame for the lobby to the members of a sharded server that are not
+	 * pinned to a shard, on the thread that writes to them, as their writes may
+	 * block. When the last shard or multiplexer has written it the frame is
+	 * released. Once too many frames are waiting the member the thread is stuck
+	 * writing to is dropped.
+	 * 
+	 * @param members
+	 * 		the members not pinned to a shard
+	 * @param frame
+	 * 		the length header and message, shared with the shards
+	 * @param pending
+	 * 		the number of shards and multiplexers yet to write the frame
+	 * @param enqueued
+	 * 		when the frame was posted, in nanoseconds, timed by the tracer
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
 	 */
-	public static void main(String[] args) {
+	private void deliverUnpinned(final ServerConnection[] members, final ByteBuffer frame,
+			final AtomicInteger pending, final long enqueued, final long seq) {
 		
-		EventQueue.invokeLater(new Runnable() {
+		if (this.unpinnedBacklog.incrementAndGet() == Multiplexer.MAX_BACKLOG + 1) {
+			ServerConnection writing = this.unpinnedWriting;
+			if (writing != null) {
+				this.log("Dropped a client that was not reading: " + writing.getName());
+				writing.closeSocket();
+			}
+		}
+		
+		this.unpinnedWriter.execute(new Runnable() {
 			public void run() {
-				if (args.length != 0) {
-					if (args[0].startsWith("-csp")) {
-						int port = Integer.parseInt(args[1].toString());
-						instance = new GUIChatServer(port);
-
+				
+				ByteBuffer view = frame.duplicate();
+				for (ServerConnection sc : members) {
+					if (sc.channel.isOpen()) {
+						unpinnedWriting = sc;
+						sc.sendToClient(view, seq);
+					}
+				}
+				unpinnedWriting = null;
+				unpinnedBacklog.decrementAndGet();
+				
+				if (pending.decrementAndGet() == 0) {
+					buffers.release(frame);
+					
+					LatencyTracer tracer = getTracer();
+					if (tracer != null) {
+						tracer.fanOut.record(System.nanoTime() - enqueued);
 					}
-				} else {
-					instance = new GUIChatServer(14001);
-
 				}
-				instance.frame.setVisible(true);
 			}
 		});
 	}
 
 	/**
-	 * Initialises GUI elements, defines shutdown procedure and calls the method to
-	 * start the server
+	 * Encodes a message into a pooled buffer as a length header followed by the
+	 * message in the modified UTF-8 format read by readUTF
 	 * 
-	 * @param port
-	 * 		The  port of the socket
+	 * @param message
+	 * 		the message to encode
+	 * @return the frame, which must be released to the buffer pool, or null if the
+	 * 		message is too long for the length header
 	 */
-	private GUIChatServer(int port) {
+	public ByteBuffer encodeFrame(String message) {
+		
+		byte[] bytes = ServerConnection.encodeUTF(message);
+		if (bytes.length > BufferPool.LARGE_SIZE - 2) {
+			return null;
+		}
+		ByteBuffer frame = this.buffers.acquire(2 + bytes.length);
+		frame.putShort((short) bytes.length);
+		frame.put(bytes);
+		frame.flip();
+		return frame;
+	}
 
-		super();
+	/**
+	 * an accessor method for the roster of online clients
+	 * 
+	 * @return the roster of the server
+	 */
+	public Roster getRoster() {
+		return this.roster;
+	}
 
-		frame = new JFrame();
-		frame.setBounds(100, 100, 450, 300);
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		frame.getContentPane().setLayout(null);
+	/**
+	 * an accessor method for the room every client joins
+	 * 
+	 * @return the lobby
+	 */
+	public Room getLobby() {
+		return this.lobby;
+	}
 
-		textArea = new JTextArea();
-		textArea.setEditable(false);
-		textArea.setBounds(6, 6, 438, 266);
-		frame.getContentPane().add(textArea);
+	/**
+	 * an accessor method for the executor that runs timed work
+	 * 
+	 * @return the timers of the server
+	 */
+	public ScheduledExecutorService getTimers() {
+		return this.timers;
+	}
 
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				try {
-					ss.close();
-					System.out.println("Server has been shut down");
-					Runtime.getRuntime().halt(0);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		});
+	/**
+	 * an accessor method for the traffic capture
+	 * 
+	 * @return the capture, or null if the server is not capturing traffic
+	 */
+	public TrafficCapture getCapture() {
+		return this.capture;
+	}
 
-		this.startServer(port);
+	/**
+	 * an accessor method for the latency tracer
+	 * 
+	 * @return the tracer, or null if the server runs without tracing
+	 */
+	public LatencyTracer getTracer() {
+		return this.tracer;
 	}
 
 	/**
-	 * Creates a new server socket, outputs instructions to the user. Creates a new
-	 * thread to listen for connections from clients and a new thread to listen
-	 * for an exit command from the command line 
+	 * an accessor method for the thread chat history is indexed on
 	 * 
-	 * @param port
-	 * 		The port of the socket
+	 * @return the indexer
 	 */
-	private void startServer(int port) {
+	public ExecutorService getIndexer() {
+		return this.indexer;
+	}
+
+	/**
+	 * an accessor method for the pool large rooms send messages on
+	 * 
+	 * @return the fan-out pool
+	 */
+	public ForkJoinPool getFanOut() {
+		return this.fanOut;
+	}
+
+	/**
+	 * an accessor method for the connections arraylist
+	 * 
+	 * @return The arraylist of current client connections
+	 */
+	public List<Object> getConnections() {
+		return this.connections;
+	}
+
+	/**
+	 * @return whether the server runs as shards rather than one thread per
+	 * 		connection
+	 */
+	public boolean isSharded() {
+		return this.shards != null;
+	}
+
+	/**
+	 * adds a connection carrying multiplexed sessions, so a sharded server writes
+	 * to its sessions
+	 * 
+	 * @param mux
+	 * 		the multiplexer of the connection
+	 */
+	public synchronized void addMultiplexer(Multiplexer mux) {
 		
-		try {
-			
-			ss = new ServerSocket(port);
-			this.appendTextArea("Listening for connections on port " + port + "\n");
-			textArea.append("To shutdown the server, close this window\n");
+		Multiplexer[] multiplexers = Arrays.copyOf(this.multiplexers, this.multiplexers.length + 1);
+		multiplexers[multiplexers.length - 1] = mux;
+		this.multiplexers = multiplexers;
+	}
 
-			Thread t = new Thread(new ServerInput(this));
-			t.start();
-			
-			ListenForConnection lfc = new ListenForConnection(this, ss, s);
-			Thread t2 = new Thread(lfc);
-			t2.start();
+	/**
+	 * removes a connection carrying multiplexed sessions once it has closed
+	 * 
+	 * @param mux
+	 * 		the multiplexer of the connection
+	 */
+	public synchronized void removeMultiplexer(Multiplexer mux) {
+		
+		ArrayList<Multiplexer> multiplexers = new ArrayList<Multiplexer>(Arrays.asList(this.multiplexers));
+		multiplexers.remove(mux);
+		this.multiplexers = multiplexers.toArray(new Multiplexer[multiplexers.size()]);
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * adds a new connection to the connections arraylist
+	 * 
+	 * @param sc
+	 * 		An instance of serverconnection
+	 */
+	public synchronized void addConnection(ServerConnection sc) {
+		this.connections.add(sc);
+		
+		// multiplexed sessions are written to by their multiplexer, many at once
+		if (sc.channel instanceof StreamChannel) {
+			return;
+		}
+		this.lobby.add(sc);
+		
+		if (sc.shard != null) {
+			sc.shard.addMember(sc);
+		} else if (this.shards != null) {
+			ServerConnection[] unpinned = Arrays.copyOf(this.unpinned, this.unpinned.length + 1);
+			unpinned[unpinned.length - 1] = sc;
+			this.unpinned = unpinned;
 		}
 	}
 
 	/**
-	 * Method to output to the text area
+	 * an accessor method for the client names arraylist
 	 * 
-	 * @param input
-	 * 		The message input from  the client
+	 * @return the arraylist of names of connected clients
 	 */
-	public void appendTextArea(String input) {
-		textArea.append(input);
+	public ArrayList<String> getClientNames() {
+		return this.clientNames;
 	}
 
-}
+	/**
+	 * adds a new client name to the client names arraylist, unless another
+	 * client is already using it
+	 * 
+	 * @param name
+	 * 		the username of a connected client
+	 * @return whether the name was added
+	 */
+	public synchronized boolean addClientName(String name) {
+		if (this.clientNames.contains(name)) {
+			return false;
+		}
+		return this.clientNames.add(name);
+	}
 
-/**
- * Listens for and handles new connections from clients
- * 
- * @author alfiewn
- *
- */
-class ListenForConnection implements Runnable {
+	/**
+	 * removes a connection and its name from the corresponding arraylist
+	 * 
+	 * @param sc
+	 * 		the connection of a client that has disconnected
+	 */
+	public synchronized void removeConnection(ServerConnection sc) {
+		this.connections.remove(sc);
+		this.lobby.remove(sc);
+		
+		if (sc.shard != null) {
+			sc.shard.removeMember(sc);
+		} else if (this.unpinned.length > 0) {
+			ArrayList<ServerConnection> unpinned = new ArrayList<ServerConnection>(Arrays.asList(this.unpinned));
+			unpinned.remove(sc);
+			this.unpinned = unpinned.toArray(new ServerConnection[unpinned.size()]);
+		}
+		
+		if (sc.getName() != null) {
+			this.clientNames.remove(sc.getName());
+		}
+	}
 
-	private GUIChatServer server;
-	private ServerSocket ss;
-	private Socket s;
+	/**
+	 * an accessor method for the buffer pool used for socket reads and writes
+	 * 
+	 * @return the buffer pool of the server
+	 */
+	public BufferPool getBuffers() {
+		return this.buffers;
+	}
 
 	/**
-	 * Constructor method, sets defualt fields
+	 * an accessor method for the spool of files shared between clients
 	 * 
-	 * @param server
-	 * 		An instance of the gui chatserver
-	 * @param ss
-	 * 		the server socket of the gui chatserver
-	 * @param s
-	 * 		the socket of the gui chatserver
+	 * @return the file spool of the server
 	 */
-	public ListenForConnection(GUIChatServer server, ServerSocket ss, Socket s) {
-		this.server = server;
-		this.ss = ss;
-		this.s = s;
+	public FileSpool getFiles() {
+		return this.files;
 	}
 
 	/**
-	 * Listens for connections from new clients, when received, starts a new
-	 * connection thread and calls the method to add the connection to the arraylist
+	 * an accessor method for the messages held for offline clients
+	 * 
+	 * @return the offline spool of the server
 	 */
-	public synchronized void run() {
-		while (!Thread.interrupted()) {
-			try {
+	public OfflineSpool getOffline() {
+		return this.offline;
+	}
 
-				this.s = ss.accept();
+	/**
+	 * an accessor method for the scheduled chat lines
+	 * 
+	 * @return the scheduler of the server
+	 */
+	public Scheduler getScheduler() {
+		return this.scheduler;
+	}
 
-				GUIServerConnection sc = new GUIServerConnection(s, server);
+	/**
+	 * an accessor method for the chat lines kept for clients resuming and standby
+	 * servers
+	 * 
+	 * @return the replication of the server
+	 */
+	public Replication getReplication() {
+		return this.replication;
+	}
 
-				Thread t = new Thread(sc);
-				server.addConnection(sc);
+	/**
+	 * an accessor method for the content filter
+	 * 
+	 * @return the content filter of the server
+	 */
+	public ContentFilter getFilter() {
+		return this.filter;
+	}
 
-				t.start();
+	/**
+	 * an accessor method for the plugins running on the server
+	 * 
+	 * @return the plugins of the server
+	 */
+	public Plugins getPlugins() {
+		return this.plugins;
+	}
 
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * finds a connected client by its name
+	 * 
+	 * @param name
+	 * 		the username of the client
+	 * @return the connection of the client, or null if it is offline
+	 */
+	public synchronized ServerConnection findByName(String name) {
+		for (Object connection : this.connections) {
+			ServerConnection sc = (ServerConnection) connection;
+			if (name.equals(sc.getName())) {
+				return sc;
 			}
 		}
+		return null;
 	}
-}
-
-/**
- * Extends the ServerConnection method, adding methods to send messages received
- * from a GUI client and listen for messages from a GUI client
- * 
- * @author alfiewn
- *
- */
-class GUIServerConnection extends ServerConnection implements Runnable {
-
-	private GUIChatServer server;
 
 	/**
-	 * Constructor method, sets default fields
+	 * finds the connected client a file lane belongs to
 	 * 
-	 * @param s
-	 * 		The socket of the gui chatserver
-	 * @param server
-	 * 		An instancae of the gui chatserver
+	 * @param token
+	 * 		the lane token the server gave the client when its name was bound
+	 * @return the connection of the client, or null if no client has the token
 	 */
-	public GUIServerConnection(Socket s, GUIChatServer server) {
-		
-		super();
-		
-		this.s = s;
-		this.server = server;
-
-		try {
-			inputFromClient = new DataInputStream(s.getInputStream());
-			outputToClient = new DataOutputStream(s.getOutputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
+	public synchronized ServerConnection findByLaneToken(String token) {
+		for (Object connection : this.connections) {
+			ServerConnection sc = (ServerConnection) connection;
+			if (token.equals(sc.getLaneToken())) {
+				return sc;
+			}
 		}
+		return null;
+	}
+
+	/**
+	 * an accessor method for the server options
+	 * 
+	 * @return the options the server was started with
+	 */
+	public ServerOptions getOptions() {
+		return this.options;
 	}
 
 	/**
-	 * A method to call the sendToClient method for each connection to send a
-	 * message to all clients
+	 * outputs a server event to the command line
 	 * 
 	 * @param message
-	 * 		The message recieved by the server
+	 * 		the event to output
+	 */
+	protected void log(String message) {
+		System.out.println(message);
+	}
+
+	/**
+	 * outputs the server statistics to the command line
 	 */
-	private void sendToAllClients(String message) {
+	protected void logStats() {
+		this.log("Buffer pool: " + this.buffers);
+		this.log("Lobby: " + this.lobby);
+		this.log("Lobby history: " + this.lobby.getHistory());
+		this.log("Lobby digest: " + this.lobby.getDigest());
+		this.log("Filter: " + this.filter);
+		this.log("Offline spool: " + this.offline);
+		this.log("Read receipts: " + this.receipts);
+		this.log("Scheduled lines: " + this.scheduler);
+		this.log("Replication: " + this.replication);
+		if (!this.plugins.isEmpty()) {
+			this.log("Plugins:\n" + this.plugins);
+		}
+		
+		if (this.tracer != null) {
+			this.log("Latency:\n" + this.tracer);
+		}
+		if (this.capture != null) {
+			this.log("Capture: " + this.capture);
+		}
+		
+		if (this.shards != null) {
+			for (Shard shard : this.shards) {
+				this.log(shard.toString());
+			}
+		}
 		
-		for (int i = 0; i < server.getConnections().size(); i++) {
-			GUIServerConnection ch = (GUIServerConnection) server.getConnections().get(i);
-			ch.sendToClient(message);
+		Multiplexer[] multiplexers = this.multiplexers;
+		if (multiplexers.length > 0) {
+			int sessions = 0;
+			for (Multiplexer mux : multiplexers) {
+				sessions += mux.size();
+			}
+			this.log("Multiplexed connections: " + multiplexers.length + " carrying " + sessions + " sessions");
+		}
+		
+		if (this.sslContext != null) {
+			long count = this.handshakeCount.sum();
+			this.log("TLS handshakes: " + count + ", average "
+					+ (count == 0 ? 0 : this.handshakeNanos.sum() / count / 1000) + " us");
 		}
 	}
 
 	/**
-	 * Reads input from the client and calls send to all clients with the message.
-	 * If the message string begins with exit, call the removeConnection method. If
-	 * it is a name, notify all clients a new client has joined. Else output the
-	 * message to all clients
+	 * Allows the user to choose between CLI and GUI. Checks if the user is using
+	 * command line arguments to input their own port. either makes an instance of
+	 * the ChatServer class or call the main method from the GUIChatServer.
+	 * 
+	 * @param args
 	 */
-	public synchronized void run() {
+	public static void main(String[] args) {
 
 		try {
-			while (shouldRun) {
+
+			System.out.println("Would you like to run in GUI mode? Y/N");
+			String answer = new BufferedReader(new InputStreamReader(System.in)).readLine();
+			boolean repeat = true;
+
+			// repeats until a valid input is recieved
+			while (repeat) {
+				if (answer.equals("N")) {
+					repeat = false;
+					new ChatServer(ServerOptions.parse(args));
+				} else if (answer.equals("Y")) {
+					repeat = false;
+					GUIChatServer.main(args);
+				} else {
+					System.out.println("Please enter either Y or N");
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (NumberFormatException i) {
+			System.out.print("Port not valid. Please check args input and try again");
+			System.exit(0);
+		}
+	}
+}
+
+/**
+ * Accepts connections from clients on a TCP port
+ * 
+ * @author alfiewn
+ *
+ */
+class SocketTransport implements Transport {
+
+	private ServerSocketChannel channel;
+
+	/**
+	 * Constructor method, binds the port
+	 * 
+	 * @param port
+	 * 		the port to listen on
+	 * @throws IOException
+	 * 		if the port could not be bound
+	 */
+	public SocketTransport(int port) throws IOException {
+		this.channel = ServerSocketChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+	}
+
+	public ByteChannel accept() throws IOException {
+		
+		SocketChannel sc = this.channel.accept();
+		
+		// chat lines and handshake records are small, send them straight away
+		sc.socket().setTcpNoDelay(true);
+		return sc;
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
+
+/**
+ * Holds the options the server is started with, read from the command line
+ * arguments. -csp sets the port, -csq stops chat messages being echoed to the
+ * server output so they never have to be decoded into strings, -csf sets the
+ * directory shared files are spooled to and -cstls turns on TLS, with the key
+ * store given by the javax.net.ssl.keyStore system properties. -csfanout sets
+ * the number of members above which a room sends messages on the fan-out pool,
+ * in partitions of -cspartition members. -csshards runs the server as that
+ * many shards, normally one per core, instead of one thread per connection.
+ * -cshistory sets the number of chat lines each room keeps for searches.
+ * -csofflinequota sets the number of kilobytes held for each offline client and
+ * -csofflinettl the number of hours they are held for, and -csfilettl the number
+ * of hours shared files are kept for. -csshm lets clients on the
+ * same host connect through shared memory as well as the port. -csdrain names
+ * the host:port clients are told to reconnect to when the server shuts down,
+ * and -csdrainmillis how long it waits for what is queued to be written first.
+ * 
+ * @author alfiewn
+ *
+ */
+class ServerOptions {
+
+	int port = 14001;
+	boolean logMessages = true;
+	File spoolDirectory = new File("spool");
+	boolean tls;
+	int fanOutThreshold = 512;
+	int fanOutPartition = 128;
+	int shards;
+	int historySize = 1000000;
+	long offlineQuota = 64 * 1024;
+	long offlineHours = 7 * 24;
+	long fileHours = 24;
+	boolean sharedMemory;
+	boolean trace;
+	int digestThreshold = 500;
+	long digestMillis = 5;
+	File captureFile;
+	ArrayList<String> plugins = new ArrayList<String>();
+	int pluginQueue = 1024;
+	boolean pluginShed = true;
+	long pluginMillis = 1000;
+	File filterFile;
+	int replaySize = 10000;
+	int replicaPort;
+	String replicaKey;
+	InetSocketAddress primary;
+	long failoverMillis = 2000;
+	String drainTo;
+	long drainMillis = 500;
+
+	/**
+	 * Creates the default options with a different port
+	 * 
+	 * @param port
+	 * 		the port of the ServerSocket
+	 * @return the options
+	 */
+	public static ServerOptions forPort(int port) {
+		ServerOptions options = new ServerOptions();
+		options.port = port;
+		return options;
+	}
+
+	/**
+	 * Reads the options from the command line arguments
+	 * 
+	 * @param args
+	 * 		the command line arguments
+	 * @return the options
+	 */
+	public static ServerOptions parse(String[] args) {
+		ServerOptions options = new ServerOptions();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-csp") && i + 1 < args.length) {
+				options.port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-csq")) {
+				options.logMessages = false;
+			} else if (args[i].equals("-csf") && i + 1 < args.length) {
+				options.spoolDirectory = new File(args[++i]);
+			} else if (args[i].equals("-cstls")) {
+				options.tls = true;
+			} else if (args[i].equals("-csfanout") && i + 1 < args.length) {
+				options.fanOutThreshold = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cspartition") && i + 1 < args.length) {
+				options.fanOutPartition = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-csshards") && i + 1 < args.length) {
+				options.shards = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cshistory") && i + 1 < args.length) {
+				options.historySize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-csofflinequota") && i + 1 < args.length) {
+				options.offlineQuota = Long.parseLong(args[++i]) * 1024;
+			} else if (args[i].equals("-csofflinettl") && i + 1 < args.length) {
+				options.offlineHours = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-csfilettl") && i + 1 < args.length) {
+				options.fileHours = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-csshm")) {
+				options.sharedMemory = true;
+			} else if (args[i].equals("-cstrace")) {
+				options.trace = true;
+			} else if (args[i].equals("-csdigest") && i + 1 < args.length) {
+				options.digestThreshold = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-csdigestwindow") && i + 1 < args.length) {
+				options.digestMillis = Math.max(1, Long.parseLong(args[++i]));
+			} else if (args[i].equals("-cscapture") && i + 1 < args.length) {
+				options.captureFile = new File(args[++i]);
+			} else if (args[i].equals("-csplugin") && i + 1 < args.length) {
+				options.plugins.add(args[++i]);
+			} else if (args[i].equals("-cspluginqueue") && i + 1 < args.length) {
+				options.pluginQueue = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-cspluginoverload") && i + 1 < args.length) {
+				options.pluginShed = !args[++i].equals("queue");
+			} else if (args[i].equals("-cspluginmillis") && i + 1 < args.length) {
+				options.pluginMillis = Math.max(1, Long.parseLong(args[++i]));
+			} else if (args[i].equals("-csfilter") && i + 1 < args.length) {
+				options.filterFile = new File(args[++i]);
+			} else if (args[i].equals("-csreplay") && i + 1 < args.length) {
+				options.replaySize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-csreplica") && i + 1 < args.length) {
+				options.replicaPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-csreplicakey") && i + 1 < args.length) {
+				options.replicaKey = args[++i];
+			} else if (args[i].equals("-csstandby") && i + 1 < args.length) {
+				String[] address = args[++i].split(":");
+				options.primary = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
+			} else if (args[i].equals("-csfailover") && i + 1 < args.length) {
+				options.failoverMillis = Math.max(Replication.HEARTBEAT_MILLIS, Long.parseLong(args[++i]));
+			} else if (args[i].equals("-csdrain") && i + 1 < args.length) {
+				options.drainTo = args[++i];
+				
+				// clients are sent the address as it is, so it must be a host and port
+				int colon = options.drainTo.lastIndexOf(':');
+				int port = colon < 1 ? 0 : Integer.parseInt(options.drainTo.substring(colon + 1));
+				if (port < 1 || port > 65535 || options.drainTo.indexOf(' ') >= 0) {
+					throw new NumberFormatException("-csdrain takes host:port, not " + options.drainTo);
+				}
+			} else if (args[i].equals("-csdrainmillis") && i + 1 < args.length) {
+				options.drainMillis = Long.parseLong(args[++i]);
+			}
+		}
+		return options;
+	}
+}
+
+/**
+ * A class to handle command line input to the server. Allows the user to shut
+ * down using EXIT.
+ * 
+ * @author alfiewn
+ *
+ */
+class ServerInput implements Runnable {
+
+	private ChatServer server;
+
+	/**
+	 * Constructor, sets field defualts
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public ServerInput(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Listens for command line input, if it equals the exit command calls the
+	 * shutdown server method. STATS outputs the server statistics, TRACE writes
+	 * the latency histograms to a file and FILTER reloads the filter rules.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+				String input = br.readLine();
+				
+				if (input.equals("EXIT")) {
+					this.server.shutdownServer();
+				} else if (input.equals("STATS")) {
+					this.server.logStats();
+				} else if (input.equals("TRACE")) {
+					this.exportTrace();
+				} else if (input.equals("FILTER")) {
+					this.reloadFilter();
+				} else {
+					System.out.println("Invalid input, please type EXIT to quit, STATS for statistics, "
+							+ "TRACE for latency histograms or FILTER to reload the filter rules");
+				}
+				
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Writes the latency histograms to a file in the working directory
+	 */
+	private void exportTrace() {
+		
+		LatencyTracer tracer = this.server.getTracer();
+		if (tracer == null) {
+			System.out.println("Tracing is off, start the server with -cstrace to record latencies");
+			return;
+		}
+		
+		File file = new File("latency-" + System.currentTimeMillis() + ".csv");
+		try {
+			tracer.export(file);
+			System.out.println("Latency histograms written to " + file);
+		} catch (IOException e) {
+			System.out.println("Could not write " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads and compiles the filter rules again, then swaps them in while
+	 * messages carry on being sent
+	 */
+	private void reloadFilter() {
+		
+		ContentFilter filter = this.server.getFilter();
+		if (filter.getFile() == null) {
+			System.out.println("There is no filter, start the server with -csfilter followed by a rules file");
+			return;
+		}
+		
+		try {
+			System.out.println("Filter reloaded, " + filter.reload() + " rules");
+		} catch (IOException e) {
+			System.out.println("Could not read " + filter.getFile() + ", the old rules are kept: " + e.getMessage());
+		}
+	}
+
+}
+
+/**
+ * Handles the server connection to the client
+ * 
+ * @author alfiewn
+ *
+ */
+class ServerConnection implements Runnable {
+
+	protected Socket s;
+	protected ByteChannel channel;
+	protected ChatServer server;
+	boolean shouldRun = true;
+	
+	// the username bound to this session at the name handshake, and the
+	// encoded "<name> " prefix that is stamped onto every message it sends
+	protected String name;
+	protected byte[] nameBytes;
+	
+	// identifies the file lanes this client opens, see FileSpool
+	protected String laneToken;
+	
+	// holds the length header of the next frame read from the client
+	private ByteBuffer header = ByteBuffer.allocateDirect(2);
+	
+	// when the frame being handled was read, only kept when the server traces
+	private long receivedNanos;
+	
+	// numbers the sessions in traffic captures and flight recorder events
+	private static final AtomicInteger SESSIONS = new AtomicInteger();
+	protected int session = SESSIONS.incrementAndGet();
+	
+	// when the session started and why it ended, for the disconnect event
+	private long connectedNanos = System.nanoTime();
+	protected String leaving = "closed";
+	
+	// delivery acknowledgements, see ack. The marks are only kept once the client
+	// starts acking, and are touched while holding the lock of the connection.
+	private static final int MARKS = 1024;
+	private long sentFrames;
+	private long[] markFrames;
+	private long[] markSeqs;
+	private int markHead;
+	private int markCount;
+	protected volatile long ackedSeq = -1;
+	protected volatile long lastLineSeq;
+	
+	// the last chat line sent to the lobby before the name was bound, or the line
+	// the client resumed from, which the client is known to have until it acks
+	protected volatile long joinedSeq;
+	
+	// the last read receipt sent to the client, only touched by ReadReceipts
+	long receiptSeq;
+	int receiptCount;
+	
+	// set when the server runs sharded, the shard this connection is pinned to
+	// with its selection key and the partial frames it has read and not yet
+	// written. All of them are only touched on the shard thread.
+	protected volatile Shard shard;
+	SelectionKey key;
+	ByteBuffer inbound;
+	OutboundLanes outbound;
+	
+	// what the shard had read past the first frame when it handed the
+	// connection over to a thread of its own
+	ByteBuffer unread;
+
+	private static final byte[] NAME = { 'n', 'a', 'm', 'e' };
+	private static final byte[] EXIT = { 'e', 'x', 'i', 't' };
+	private static final byte[] FILE = { 'f', 'i', 'l', 'e' };
+	private static final byte[] MUX = { 'm', 'u', 'x' };
+	
+	// the encoded control character that starts control messages from clients
+	private static final byte[] CONTROL = { (byte) 0xC0, (byte) 0x80 };
+	private static final SecureRandom TOKENS = new SecureRandom();
+	private static final String BLOCKED = "Your message has not been sent, it contains something not allowed on this server";
+
+	public ServerConnection() {
+	}
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param channel
+	 * 		the channel accepted from the transport of the server
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public ServerConnection(ByteChannel channel, ChatServer server) {
+		this.channel = channel;
+		this.server = server;
+		
+		if (channel instanceof SocketChannel) {
+			this.s = ((SocketChannel) channel).socket();
+		}
+	}
+
+	/**
+	 * accessor method for the name bound to this session
+	 * 
+	 * @return the username of the client, or null before the name handshake
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * accessor method for the lane token of this session
+	 * 
+	 * @return the token, or null before the name handshake
+	 */
+	public String getLaneToken() {
+		return this.laneToken;
+	}
+
+	/**
+	 * Method to write a message to a single client
+	 * 
+	 * @param message
+	 * 		the message received by the server
+	 */
+	protected void sendToClient(String message) {
+		
+		ByteBuffer frame = this.server.encodeFrame(message);
+		if (frame == null) {
+			this.server.log("A message was too long to send to " + this.name);
+			return;
+		}
+		this.sendToClient(frame);
+		this.server.getBuffers().release(frame);
+	}
+
+	/**
+	 * Method to write an encoded frame to a single client. The frame starts at
+	 * position zero and may be shared by several recipients, so its position is
+	 * reset before every write.
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 */
+	protected void sendToClient(ByteBuffer frame) {
+		this.sendToClient(frame, 0);
+	}
+
+	/**
+	 * Method to write an encoded frame to a single client, noting the chat line it
+	 * holds so the client can acknowledge it. A connection on a shard queues the
+	 * frame in its lane by priority; any other is written straight away, in the
+	 * order frames are sent, blocking until the client has taken it.
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0 if it holds
+	 * 		none
+	 */
+	void sendToClient(ByteBuffer frame, long seq) {
+		
+		Shard shard = this.shard;
+		if (shard != null) {
+			shard.send(this, frame, seq);
+			return;
+		}
+		
+		// a multiplexer writes to many of its sessions at once under its own lock,
+		// so a session takes that lock before its own
+		if (this.channel instanceof StreamChannel) {
+			synchronized (((StreamChannel) this.channel).getMultiplexer()) {
+				this.write(frame, seq);
+			}
+		} else {
+			this.write(frame, seq);
+		}
+	}
+
+	/**
+	 * Writes an encoded frame to the channel, blocking until all of it has been
+	 * written, and counts it for acks
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0 if it holds
+	 * 		none
+	 */
+	private synchronized void write(ByteBuffer frame, long seq) {
+		
+		LatencyTracer tracer = this.server.getTracer();
+		this.sent(frame, seq);
+		long start = tracer == null ? 0 : System.nanoTime();
+		ChatEvents.Write event = new ChatEvents.Write();
+		event.begin();
+		try {
+			frame.position(0);
+			while (frame.hasRemaining()) {
+				this.channel.write(frame);
+			}
+		} catch (IOException e) {
+			
+			// the client has gone, and closing the channel shows whoever writes
+			// to it next that the frame was not sent
+			e.printStackTrace();
+			this.closeSocket();
+		}
+		if (tracer != null) {
+			tracer.write.record(System.nanoTime() - start);
+		}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.session = this.session;
+			event.bytes = frame.limit();
+			event.commit();
+		}
+	}
+
+
+	/**
+	 * Counts the frames in a buffer
+	 * 
+	 * @param buffer
+	 * 		one or more frames, starting at index zero
+	 * @return the number of frames
+	 */
+	static int countFrames(ByteBuffer buffer) {
+		
+		int frames = 0;
+		for (int next = 0; next < buffer.limit(); next += 2 + (buffer.getShort(next) & 0xFFFF)) {
+			frames++;
+		}
+		return frames;
+	}
+
+	/**
+	 * Counts frames written to the client
+	 * 
+	 * @param buffer
+	 * 		one or more frames about to be written, with nothing else waiting to be
+	 * 		written before them
+	 * @param seq
+	 * 		the sequence number of the last chat line in them, or 0 if they hold
+	 * 		none
+	 */
+	void sent(ByteBuffer buffer, long seq) {
+		this.sent(countFrames(buffer), seq);
+	}
+
+	/**
+	 * Counts frames written to the client, and marks where a chat line was among
+	 * them once the client acknowledges what it has received. Frames must be
+	 * counted in the order they reach the client, or an ack would cover lines the
+	 * client has not been sent yet. When the client falls too far behind the
+	 * oldest marks are dropped.
+	 * 
+	 * @param frames
+	 * 		the number of frames written
+	 * @param seq
+	 * 		the sequence number of the last chat line in them, or 0 if they hold
+	 * 		none
+	 */
+	synchronized void sent(int frames, long seq) {
+		
+		this.sentFrames += frames;
+		
+		if (seq > 0 && this.markFrames != null) {
+			if (this.markCount == MARKS) {
+				this.markHead = (this.markHead + 1) % MARKS;
+				this.markCount--;
+			}
+			int tail = (this.markHead + this.markCount) % MARKS;
+			this.markFrames[tail] = this.sentFrames;
+			this.markSeqs[tail] = seq;
+			this.markCount++;
+		}
+	}
+
+	/**
+	 * Handles a cumulative acknowledgement from the client, which says how many
+	 * frames it has received on this connection. The marks of the chat lines
+	 * among them are dropped, and the last one becomes the line the client is
+	 * known to have. Clients ack once a second at most, whatever the traffic.
+	 * 
+	 * @param frames
+	 * 		the number of frames the client has received
+	 */
+	synchronized void ack(long frames) {
+		
+		if (this.markFrames == null) {
+			this.markFrames = new long[MARKS];
+			this.markSeqs = new long[MARKS];
+		}
+		
+		long acked = this.ackedSeq;
+		long seq = acked < 0 ? this.joinedSeq : acked;
+		while (this.markCount > 0 && this.markFrames[this.markHead] <= frames) {
+			seq = Math.max(seq, this.markSeqs[this.markHead]);
+			this.markHead = (this.markHead + 1) % MARKS;
+			this.markCount--;
+		}
+		this.ackedSeq = seq;
+		
+		if (seq != acked) {
+			this.server.getReplication().position(this.name, seq);
+		}
+	}
+
+	/**
+	 * Reads the next frame from the client into a pooled buffer. Once the name is
+	 * bound the body is read in after enough space for the length header and name
+	 * prefix, so a chat message can be sent on without being copied.
+	 * 
+	 * @return the buffer, positioned at the start of the message body
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	private ByteBuffer readFrame() throws IOException {
+		
+		this.header.clear();
+		readFully(this.header);
+		ChatEvents.Decode event = new ChatEvents.Decode();
+		event.begin();
+		
+		ByteBuffer frame = this.allocateFrame(this.header.getShort(0) & 0xFFFF);
+		int offset = frame.position();
+		readFully(frame);
+		frame.position(offset);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.session = this.session;
+			event.bytes = frame.remaining();
+			event.commit();
+		}
+		return frame;
+	}
+
+	/**
+	 * Takes a pooled buffer for a frame body of the given length, leaving space in
+	 * front of it for the length header and, once the name is bound, the name
+	 * prefix
+	 * 
+	 * @param length
+	 * 		the length of the message body
+	 * @return the buffer, positioned where the body should be written and limited
+	 * 		to its end
+	 */
+	ByteBuffer allocateFrame(int length) {
+		
+		int offset = 2;
+		if (this.nameBytes != null && 2 + this.nameBytes.length + length <= BufferPool.LARGE_SIZE) {
+			offset += this.nameBytes.length;
+		}
+		
+		ByteBuffer frame = this.server.getBuffers().acquire(offset + length);
+		frame.limit(offset + length);
+		frame.position(offset);
+		return frame;
+	}
+
+	/**
+	 * Reads from the channel until the buffer is full
+	 * 
+	 * @param buffer
+	 * 		the buffer to fill
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Method to send a message body to all clients stamped with the name of this
+	 * session. The body is run through the content filter, then the name prefix
+	 * and length header are written in front of it in the buffer it was read
+	 * into, and the frame is shared by every recipient. A copy of the body is then
+	 * handed to the history of the lobby, and to the offline spool if it mentions
+	 * anybody.
+	 * 
+	 * @param frame
+	 * 		the buffer holding the message body received from the client
+	 */
+	protected void sendToAllClientsFrom(ByteBuffer frame) {
+		
+		if (frame.position() != 2 + this.nameBytes.length) {
+			this.sendToClient("Message too long, it has not been sent");
+			return;
+		}
+		
+		byte[] text = this.filter(frame, frame.position());
+		if (text == null) {
+			return;
+		}
+		
+		frame.putShort(0, (short) (frame.limit() - 2));
+		frame.position(2);
+		frame.put(this.nameBytes);
+		
+		if (this.server.getOptions().logMessages) {
+			frame.position(2);
+			this.server.log(decodeUTF(frame));
+		}
+		
+		LatencyTracer tracer = this.server.getTracer();
+		if (tracer != null) {
+			tracer.queue.record(System.nanoTime() - this.receivedNanos);
+		}
+		
+		this.route(frame);
+		this.archive(text);
+	}
+
+	/**
+	 * Method to send a traced message to all clients. The message carries the
+	 * time the client sent it, and the server adds the times it received and
+	 * routed it so clients can tell where the time went. The time it was routed
+	 * is stamped into the encoded frame last, just before it is handed to the
+	 * room, so the time after it includes fanning out and waiting to be written
+	 * to each client. Without tracing on the server the message is sent as a
+	 * normal one.
+	 * 
+	 * @param trace
+	 * 		the time the client sent the message in microseconds, a space and the
+	 * 		message
+	 */
+	protected void sendTraced(String trace) {
+		
+		String[] parts = trace.split(" ", 2);
+		if (parts.length < 2) {
+			return;
+		}
+		String line = "<" + this.name + "> " + parts[1];
+		
+		LatencyTracer tracer = this.server.getTracer();
+		if (tracer == null) {
+			this.sendToAllClients(line, parts[1]);
+			return;
+		}
+		
+		long sent;
+		try {
+			sent = Long.parseLong(parts[0]);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		
+		String placeholder = ChatProtocol.stamp(0);
+		String message = ChatProtocol.CONTROL + ChatProtocol.TRACED + ChatProtocol.stamp(sent) + " "
+				+ ChatProtocol.stamp(this.receivedMicros()) + " " + placeholder + " " + line;
+		if (encodeUTF(message).length > BufferPool.LARGE_SIZE - 2) {
+			this.sendToClient("Message too long, it has not been sent");
+			return;
+		}
+		
+		ByteBuffer frame = this.server.encodeFrame(message);
+		byte[] text = this.filter(frame, frame.limit() - encodeUTF(parts[1]).length);
+		if (text == null) {
+			this.server.getBuffers().release(frame);
+			return;
+		}
+		if (this.server.getOptions().logMessages) {
+			this.server.log("<" + this.name + "> " + decodeUTF(ByteBuffer.wrap(text)));
+		}
+		tracer.queue.record(System.nanoTime() - this.receivedNanos);
+		
+		// the control character is two bytes once encoded, the times are digits
+		frame.position(2 + 2 + ChatProtocol.TRACED.length() + 2 * (ChatProtocol.TIME_DIGITS + 1));
+		frame.put(encodeUTF(ChatProtocol.stamp(ChatProtocol.micros())));
+		
+		this.route(frame);
+		this.server.getBuffers().release(frame);
+		this.archive(text);
+	}
+
+	/**
+	 * Sends a message that has already been decoded to all clients, as it is not
+	 * in a buffer to stamp the name onto
+	 * 
+	 * @param line
+	 * 		the message stamped with the name of this session
+	 * @param text
+	 * 		the message without the name
+	 */
+	private void sendToAllClients(String line, String text) {
+		
+		ByteBuffer frame = this.server.encodeFrame(line);
+		if (frame == null) {
+			this.sendToClient("Message too long, it has not been sent");
+			return;
+		}
+		byte[] filtered = this.filter(frame, frame.limit() - encodeUTF(text).length);
+		if (filtered == null) {
+			this.server.getBuffers().release(frame);
+			return;
+		}
+		if (this.server.getOptions().logMessages) {
+			this.server.log("<" + this.name + "> " + decodeUTF(ByteBuffer.wrap(filtered)));
+		}
+		
+		this.route(frame);
+		this.server.getBuffers().release(frame);
+		this.archive(filtered);
+	}
+
+	/**
+	 * Schedules a chat line from this session to be sent later, once it has been
+	 * through the content filter
+	 * 
+	 * @param request
+	 * 		the delay and period in milliseconds and the chat line
+	 */
+	private void schedule(String request) {
+		
+		String[] parts = request.split(" ", 3);
+		long delay;
+		long period;
+		try {
+			delay = Math.max(0, Long.parseLong(parts[0]));
+			period = parts.length < 3 ? -1 : Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			period = -1;
+			delay = 0;
+		}
+		if (period < 0 || parts[2].isEmpty()) {
+			this.sendToClient("Type /in or /every followed by a time such as 10m, then the message");
+			return;
+		}
+		if (period > 0 && period < Scheduler.MIN_PERIOD_MILLIS) {
+			this.sendToClient("Messages can be repeated at most once a second");
+			return;
+		}
+		
+		ByteBuffer text = ByteBuffer.wrap(encodeUTF(parts[2]));
+		if (this.nameBytes.length + text.limit() > BufferPool.LARGE_SIZE - 2) {
+			this.sendToClient("Message too long, it has not been scheduled");
+			return;
+		}
+		if (!this.server.getFilter().scan(text, 0, text.limit())) {
+			this.sendToClient(BLOCKED);
+			return;
+		}
+		
+		long id = this.server.getScheduler().schedule(this.name, decodeUTF(text), delay, period);
+		if (id < 0) {
+			this.sendToClient("You can have at most " + Scheduler.MAX_PER_CLIENT
+					+ " messages scheduled, type /schedules to see them");
+			return;
+		}
+		this.sendToClient("Scheduled " + id + ", type /unschedule " + id + " to cancel it");
+	}
+
+	/**
+	 * Runs a chat line through the content filter, which masks what it matches in
+	 * place. A blocked line is not sent, and the client is told.
+	 * 
+	 * @param frame
+	 * 		the buffer holding the chat line
+	 * @param from
+	 * 		where the line starts, after any name prefix
+	 * @return a copy of the line as it is to be sent, or null if it is blocked
+	 */
+	private byte[] filter(ByteBuffer frame, int from) {
+		
+		if (!this.server.getFilter().scan(frame, from, frame.limit())) {
+			this.sendToClient(BLOCKED);
+			return null;
+		}
+		
+		byte[] text = new byte[frame.limit() - from];
+		frame.position(from);
+		frame.get(text);
+		return text;
+	}
+
+	/**
+	 * Sends a chat line from this session on to the lobby, recording a flight
+	 * recorder event if it takes a while
+	 * 
+	 * @param frame
+	 * 		the length header and message
+	 */
+	private void route(ByteBuffer frame) {
+		
+		ChatEvents.Route event = new ChatEvents.Route();
+		event.begin();
+		
+		this.lastLineSeq = this.server.sendLineToAllClients(frame);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.session = this.session;
+			event.room = this.server.getLobby().getName();
+			event.bytes = frame.limit();
+			event.recipients = this.server.getConnections().size();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Works out the wall clock time in microseconds the frame being handled was
+	 * read, from how long ago it was read
+	 * 
+	 * @return the time it was read
+	 */
+	private long receivedMicros() {
+		return ChatProtocol.micros() - (System.nanoTime() - this.receivedNanos) / 1000;
+	}
+
+	/**
+	 * Hands a message sent by this session to the replication and history of the
+	 * lobby and the plugins, and to the offline spool if it mentions anybody
+	 * 
+	 * @param text
+	 * 		the encoded message without the name
+	 */
+	private void archive(byte[] text) {
+		
+		this.server.getReplication().line(this.lastLineSeq, this.name, text);
+		this.server.getLobby().getHistory().record(this.name, text);
+		this.server.getPlugins().message(this.name, text);
+		
+		for (byte b : text) {
+			if (b == '@') {
+				this.server.getOffline().mentions(this.name, text);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Binds a username to this session. Names must be unique, otherwise the
+	 * client could speak as somebody else.
+	 * Once bound, the messages held for the client while it was offline are sent
+	 * to it.
+	 * 
+	 * @param name
+	 * 		the username sent by the client in its name handshake
+	 * @return whether the name was bound
+	 */
+	private boolean bindName(String name) {
+		
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) < ' ') {
+				this.sendToClient("Names cannot contain control characters, please reconnect with a different name");
+				return false;
+			}
+		}
+		if (encodeUTF(name).length > Roster.MAX_NAME_BYTES) {
+			this.sendToClient("Names can be at most " + Roster.MAX_NAME_BYTES
+					+ " bytes long, please reconnect with a different name");
+			return false;
+		}
+		
+		if (name.isEmpty() || !this.server.addClientName(name)) {
+			this.sendToClient("The name " + name + " is already taken, please reconnect with a different name");
+			return false;
+		}
+		
+		this.name = name;
+		this.nameBytes = encodeUTF("<" + name + "> ");
+		this.laneToken = Long.toHexString(TOKENS.nextLong());
+		this.server.addConnection(this);
+		this.joinedSeq = this.server.getLobby().lastSequence();
+		
+		this.sendToClient(ChatProtocol.CONTROL + ChatProtocol.LANE + this.laneToken);
+		for (String part : this.server.getRoster().join(name)) {
+			this.sendToClient(part);
+		}
+		this.server.getOffline().deliver(this);
+		this.server.getPlugins().join(name);
+		return true;
+	}
+
+	/**
+	 * Checks whether a message is the exit command for this session. Clients send
+	 * exit followed by their own name, which is compared against the encoded name
+	 * prefix without decoding the message.
+	 * 
+	 * @param frame
+	 * 		the buffer holding the message received from the client
+	 * @return whether the client is disconnecting
+	 */
+	private boolean isExit(ByteBuffer frame) {
+		
+		int start = frame.position();
+		int nameLength = this.nameBytes.length - 3;
+		
+		if (frame.remaining() != EXIT.length + nameLength || !startsWith(frame, EXIT)) {
+			return false;
+		}
+		for (int i = 0; i < nameLength; i++) {
+			if (frame.get(start + EXIT.length + i) != this.nameBytes[i + 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the message in a buffer begins with the given bytes
+	 * 
+	 * @param frame
+	 * 		the buffer holding the message
+	 * @param prefix
+	 * 		the bytes to compare
+	 * @return whether the message starts with the prefix
+	 */
+	private static boolean startsWith(ByteBuffer frame, byte[] prefix) {
+		
+		if (frame.remaining() < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (frame.get(frame.position() + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads input from the client and calls send to all clients with the message.
+	 * The first message must be the name handshake, which binds the username to
+	 * the session and notifies all clients a new client has joined. If the message
+	 * is the exit command, call the removeConnection method. Else output the
+	 * message to all clients, stamped with the bound name. Messages are only
+	 * decoded into strings for the name handshake and the server output.
+	 */
+	public void run() {
+
+		try {
+			while (shouldRun) {
+				
+				ByteBuffer frame = this.readFrame();
+				
+				try {
+					this.handleFrame(frame);
+				} finally {
+					this.server.getBuffers().release(frame);
+				}
+			}
+
+		} catch (IOException e) {
+			//client has disconnected
+		}
+		
+		this.closeSession();
+	}
+
+	/**
+	 * Handles every whole frame the client has sent without waiting for more, for
+	 * a server driven from a single thread. A partial frame is kept for the next
+	 * step.
+	 * 
+	 * @return false once the client has disconnected or left and the session has
+	 * 		been closed
+	 */
+	boolean step() {
+		
+		BufferPool buffers = this.server.getBuffers();
+		if (this.inbound == null) {
+			this.inbound = buffers.acquire(BufferPool.LARGE_SIZE);
+		}
+		
+		ByteBuffer in = this.inbound;
+		int read;
+		do {
+			try {
+				read = this.channel.read(in);
+			} catch (IOException e) {
+				read = -1;
+			}
+			
+			in.flip();
+			while (this.shouldRun && in.remaining() >= 2) {
+				
+				int length = in.getShort(in.position()) & 0xFFFF;
+				if (in.remaining() < 2 + length) {
+					break;
+				}
+				
+				ByteBuffer frame = this.allocateFrame(length);
+				int offset = frame.position();
+				int limit = in.limit();
+				in.position(in.position() + 2);
+				in.limit(in.position() + length);
+				frame.put(in);
+				in.limit(limit);
+				frame.position(offset);
+				
+				try {
+					this.handleFrame(frame);
+				} finally {
+					buffers.release(frame);
+				}
+			}
+			in.compact();
+		} while (read > 0 && this.shouldRun);
+		
+		if (read >= 0 && this.shouldRun) {
+			return true;
+		}
+		buffers.release(in);
+		this.inbound = null;
+		this.closeSession();
+		return false;
+	}
+
+	/**
+	 * Handles a single message received from the client. A connection whose first
+	 * message is a file request is a file lane, which is served on this thread and
+	 * then closed, and one whose first message is mux carries many sessions, which
+	 * are read on this thread until it closes. A sharded connection hands either
+	 * to a thread of its own instead, as they block. Sessions carried by another
+	 * connection can only bind a name.
+	 * 
+	 * @param frame
+	 * 		the buffer holding the message, positioned at its start
+	 */
+	protected void handleFrame(ByteBuffer frame) {
+		
+		if (this.server.getTracer() != null) {
+			this.receivedNanos = System.nanoTime();
+		}
+		if (this.server.getCapture() != null) {
+			this.server.getCapture().record(this.session, this.captureType(frame), frame);
+		}
+		
+		if (this.name == null) {
+			if (startsWith(frame, NAME)) {
+				frame.position(frame.position() + NAME.length);
+				
+				ChatEvents.Handshake event = new ChatEvents.Handshake();
+				event.begin();
+				boolean bound = this.bindName(decodeUTF(frame));
+				
+				event.end();
+				if (event.shouldCommit()) {
+					event.session = this.session;
+					event.name = this.name;
+					event.bound = bound;
+					event.commit();
+				}
+				
+				if (bound) {
+					this.server.log("New client: " + name);
+					return;
+				}
+				this.leaving = "refused";
+			} else if (this.channel instanceof StreamChannel) {
+				this.leaving = "refused";
+			} else if (startsWith(frame, FILE)) {
+				frame.position(frame.position() + FILE.length);
+				final String request = decodeUTF(frame);
+				Runnable lane = new Runnable() {
+					public void run() {
+						server.getFiles().serve(ServerConnection.this, request);
+					}
+				};
+				
+				if (this.shard != null) {
+					this.shard.detach(this, lane);
+					return;
+				}
+				lane.run();
+			} else if (startsWith(frame, MUX)) {
+				Multiplexer mux = new Multiplexer(this, this.server);
+				
+				if (this.shard != null) {
+					this.shard.detach(this, mux);
+					return;
+				}
+				mux.run();
+			}
+			shouldRun = false;
+		} else if (this.isExit(frame)) {
+			this.leaving = "exit";
+			shouldRun = false;
+		} else if (startsWith(frame, CONTROL)) {
+			this.handleControl(decodeUTF(frame).substring(1));
+		} else {
+			this.sendToAllClientsFrom(frame);
+		}
+	}
+
+	/**
+	 * Works out the type of a frame for the traffic capture
+	 * 
+	 * @param frame
+	 * 		the buffer holding the message, positioned at its start
+	 * @return the type of the frame
+	 */
+	private int captureType(ByteBuffer frame) {
+		
+		if (this.name == null) {
+			
+			// the sessions of a multiplexed connection are captured as sessions of
+			// their own, so its handshake is skipped by replays like a file lane
+			return startsWith(frame, FILE) || startsWith(frame, MUX) ? TrafficCapture.FILE : TrafficCapture.NAME;
+		} else if (this.isExit(frame)) {
+			return TrafficCapture.EXIT;
+		} else if (startsWith(frame, CONTROL)) {
+			return TrafficCapture.CONTROL;
+		}
+		return TrafficCapture.CHAT;
+	}
+
+	/**
+	 * Handles a control message from the client
+	 * 
+	 * @param control
+	 * 		the message, without the control character
+	 */
+	protected void handleControl(String control) {
+		
+		if (control.startsWith(ChatProtocol.SINCE)) {
+			try {
+				long version = Long.parseLong(control.substring(ChatProtocol.SINCE.length()));
+				for (String part : this.server.getRoster().changesSince(version)) {
+					this.sendToClient(part);
+				}
+			} catch (NumberFormatException e) {
+				for (String part : this.server.getRoster().snapshot()) {
+					this.sendToClient(part);
+				}
+			}
+		} else if (control.startsWith(ChatProtocol.DIRECT)) {
+			String[] parts = control.substring(ChatProtocol.DIRECT.length()).split(" ", 2);
+			if (parts.length == 2) {
+				this.server.getOffline().direct(this, parts[0], parts[1]);
+			}
+		} else if (control.startsWith(ChatProtocol.SEARCH)) {
+			this.server.getLobby().getHistory().search(this, control.substring(ChatProtocol.SEARCH.length()));
+		} else if (control.startsWith(ChatProtocol.ACK)) {
+			try {
+				this.ack(Long.parseLong(control.substring(ChatProtocol.ACK.length())));
+			} catch (NumberFormatException e) {
+				//ignore a malformed ack
+			}
+		} else if (control.startsWith(ChatProtocol.SCHEDULE)) {
+			this.schedule(control.substring(ChatProtocol.SCHEDULE.length()));
+		} else if (control.startsWith(ChatProtocol.UNSCHEDULE)) {
+			try {
+				long id = Long.parseLong(control.substring(ChatProtocol.UNSCHEDULE.length()));
+				this.sendToClient(this.server.getScheduler().cancel(this.name, id) ? "Cancelled " + id
+						: "You have nothing scheduled with the id " + id);
+			} catch (NumberFormatException e) {
+				this.sendToClient("Type /unschedule followed by the id of the message");
+			}
+		} else if (control.equals(ChatProtocol.SCHEDULES)) {
+			this.sendToClient(this.server.getScheduler().describe(this.name));
+		} else if (control.equals(ChatProtocol.RESUME)) {
+			this.server.getReplication().resume(this);
+		} else if (control.startsWith(ChatProtocol.PING)) {
+			this.sendToClient(ChatProtocol.CONTROL + ChatProtocol.PONG + control.substring(ChatProtocol.PING.length()));
+		} else if (control.startsWith(ChatProtocol.TRACE)) {
+			this.sendTraced(control.substring(ChatProtocol.TRACE.length()));
+		}
+	}
+
+	/**
+	 * Runs the TLS handshake with the client, after which all reads and writes go
+	 * through the TLS channel
+	 * 
+	 * @param context
+	 * 		the SSLContext of the server
+	 * @return whether the handshake succeeded
+	 */
+	protected boolean startTls(SSLContext context) {
+		
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		TlsChannel tls = new TlsChannel(this.s.getChannel(), engine);
+		
+		try {
+			tls.handshake();
+			this.channel = tls;
+			return true;
+		} catch (IOException e) {
+			this.closeSocket();
+			return false;
+		}
+	}
+
+	/**
+	 * Ends the output to the client once what has been written is sent, without
+	 * closing the socket, so the client sees the connection close
+	 */
+	protected void shutdownOutput() {
+		try {
+			if (this.s != null) {
+				this.s.shutdownOutput();
+			}
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+
+	/**
+	 * Closes the socket without removing the session from the server
+	 */
+	protected void closeSocket() {
+		try {
+			if (this.s != null) {
+				this.s.close();
+			} else {
+				this.channel.close();
+			}
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+
+	/**
+	 * Removes this session from the server, notifies the other clients if it had
+	 * joined and closes the socket.
+	 */
+	protected void closeSession() {
+		
+		ChatEvents.Disconnect event = new ChatEvents.Disconnect();
+		if (event.shouldCommit()) {
+			event.session = this.session;
+			event.name = this.name;
+			event.reason = this.leaving;
+			event.connected = System.nanoTime() - this.connectedNanos;
+			event.commit();
+		}
+		
+		this.server.removeConnection(this);
+		if (this.server.getCapture() != null) {
+			this.server.getCapture().close(this.session);
+		}
+		
+		if (this.name != null) {
+			this.server.getRoster().leave(name);
+			this.server.getPlugins().leave(name);
+			this.server.log("Client disconnected: " + name);
+		}
+		
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			//already closed
+		}
+		this.closeSocket();
+	}
+
+	/**
+	 * Encodes a string in the modified UTF-8 format used by writeUTF, without the
+	 * length header, so it can be written as part of a larger frame.
+	 * 
+	 * @param str
+	 * 		the string to encode
+	 * @return the encoded bytes
+	 */
+	protected static byte[] encodeUTF(String str) {
+		
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				bytes[pos++] = (byte) c;
+			} else if (c > 0x07FF) {
+				bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes a string in the modified UTF-8 format used by writeUTF from the
+	 * bytes between the position and limit of a buffer
+	 * 
+	 * @param buffer
+	 * 		the buffer holding the encoded string
+	 * @return the decoded string
+	 */
+	protected static String decodeUTF(ByteBuffer buffer) {
+		
+		char[] chars = new char[buffer.remaining()];
+		int count = 0;
+		int pos = buffer.position();
+		
+		while (pos < buffer.limit()) {
+			int c = buffer.get(pos++) & 0xFF;
+			if (c < 0x80) {
+				chars[count++] = (char) c;
+			} else if ((c & 0xE0) == 0xC0 && pos < buffer.limit()) {
+				chars[count++] = (char) (((c & 0x1F) << 6) | (buffer.get(pos++) & 0x3F));
+			} else if ((c & 0xF0) == 0xE0 && pos + 1 < buffer.limit()) {
+				chars[count++] = (char) (((c & 0x0F) << 12) | ((buffer.get(pos++) & 0x3F) << 6)
+						| (buffer.get(pos++) & 0x3F));
+			} else {
+				chars[count++] = '\uFFFD';
+			}
+		}
+		return new String(chars, 0, count);
+	}
+}
+
+/**
+ * Carries many sessions over one connection, for bridges and bots that speak
+ * for many users. After the client sends mux, every frame in either direction
+ * is a stream id followed by an ordinary frame, a length header and message.
+ * The first frame on a new stream must be the name handshake, and from then on
+ * the stream is a full session of its own, joining the lobby, sending and
+ * receiving messages and leaving just as a client on its own connection would.
+ * An empty frame on a stream ends it, from the client to leave or from the
+ * server once the session has closed.
+ * 
+ * The sessions share the socket, its buffers and the thread reading from it.
+ * Frames written to them are tagged and written to the socket whole, one
+ * gathering write each, under the lock of the multiplexer so frames of
+ * different sessions never interleave. Sharded servers write messages for the
+ * lobby to the sessions on a writer thread of the multiplexer, and drop the
+ * connection if it falls too far behind, as they would a single client.
+ * 
+ * @author alfiewn
+ *
+ */
+class Multiplexer implements Runnable {
+
+	public static final int MAX_BACKLOG = 1024;
+
+	private ServerConnection connection;
+	private ChatServer server;
+	private ConcurrentHashMap<Integer, ServerConnection> sessions = new ConcurrentHashMap<Integer, ServerConnection>();
+	
+	// holds the stream id and length header of the next frame read
+	private ByteBuffer header = ByteBuffer.allocateDirect(4);
+	
+	// the stream id written in front of each frame, and the parts of a gathering
+	// write, only touched while holding the lock of the multiplexer
+	private ByteBuffer tag = ByteBuffer.allocateDirect(4);
+	private ByteBuffer[] parts = new ByteBuffer[2];
+	
+	// set when the server is sharded, writes messages for the lobby
+	private ExecutorService writer;
+	private AtomicInteger backlog = new AtomicInteger();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param connection
+	 * 		the connection carrying the sessions
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public Multiplexer(ServerConnection connection, ChatServer server) {
+		this.connection = connection;
+		this.server = server;
+		
+		if (server.isSharded()) {
+			this.writer = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	/**
+	 * Reads frames from the connection and hands each to the session of its
+	 * stream, opening a session for a new stream and closing one that ends or
+	 * whose client leaves. Once the connection closes every session on it is
+	 * closed.
+	 */
+	public void run() {
+		
+		this.server.log("New multiplexed connection");
+		this.server.addMultiplexer(this);
+		
+		try {
+			while (true) {
+				this.header.clear();
+				this.readFully(this.header);
+				
+				int stream = this.header.getShort(0) & 0xFFFF;
+				int length = this.header.getShort(2) & 0xFFFF;
+				ServerConnection session = this.sessions.get(stream);
+				
+				if (length == 0) {
+					if (session != null) {
+						this.close(stream, session);
+					}
+					continue;
+				}
+				if (session == null) {
+					session = new ServerConnection(new StreamChannel(this, stream), this.server);
+					this.sessions.put(stream, session);
+				}
+				
+				ByteBuffer frame = session.allocateFrame(length);
+				int offset = frame.position();
+				try {
+					this.readFully(frame);
+					frame.position(offset);
+					session.handleFrame(frame);
+				} finally {
+					this.server.getBuffers().release(frame);
+				}
+				
+				if (!session.shouldRun) {
+					this.close(stream, session);
+				}
+			}
+		} catch (IOException e) {
+			//client has disconnected
+		}
+		
+		this.server.removeMultiplexer(this);
+		for (Map.Entry<Integer, ServerConnection> session : this.sessions.entrySet()) {
+			this.close(session.getKey(), session.getValue());
+		}
+		if (this.writer != null) {
+			this.writer.shutdown();
+		}
+		this.server.log("Multiplexed connection closed");
+	}
+
+	/**
+	 * Closes a session carried by this connection
+	 * 
+	 * @param stream
+	 * 		the stream id of the session
+	 * @param session
+	 * 		the session
+	 */
+	private void close(int stream, ServerConnection session) {
+		
+		if (this.sessions.remove(stream) != null) {
+			session.closeSession();
+		}
+	}
+
+	/**
+	 * Writes frames for a session to the connection, each tagged with the stream
+	 * id of the session. All of them are written before the lock is let go.
+	 * 
+	 * @param stream
+	 * 		the stream id of the session
+	 * @param frames
+	 * 		one or more frames, each a length header and message
+	 * @return the number of bytes of the frames written
+	 * @throws IOException
+	 * 		if the connection has closed
+	 */
+	public synchronized int write(int stream, ByteBuffer frames) throws IOException {
+		
+		int written = frames.remaining();
+		ByteChannel channel = this.connection.channel;
+		
+		while (frames.remaining() >= 2) {
+			ByteBuffer frame = frames.duplicate();
+			frame.limit(frames.position() + 2 + (frames.getShort(frames.position()) & 0xFFFF));
+			
+			this.tag.clear();
+			this.tag.putShort((short) stream);
+			this.tag.flip();
+			
+			if (channel instanceof GatheringByteChannel) {
+				this.parts[0] = this.tag;
+				this.parts[1] = frame;
+				while (frame.hasRemaining()) {
+					((GatheringByteChannel) channel).write(this.parts);
+				}
+			} else {
+				while (this.tag.hasRemaining()) {
+					channel.write(this.tag);
+				}
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+			frames.position(frame.limit());
+		}
+		return written;
+	}
+
+	/**
+	 * Writes a frame for the lobby to every session carried by the connection
+	 * that has bound its name. The frame is copied once for each session behind
+	 * its stream id into pooled buffers, which go out in a single gathering write,
+	 * rather than a write for each session. A frame too large to tag in a pooled
+	 * buffer is written to each session in turn.
+	 * 
+	 * @param frame
+	 * 		a single frame, the length header and message, which is not changed
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 */
+	public synchronized void broadcast(ByteBuffer frame, long seq) {
+		
+		ByteBuffer view = frame.duplicate();
+		int tagged = 2 + view.limit();
+		if (tagged > BufferPool.LARGE_SIZE) {
+			for (ServerConnection session : this.sessions.values()) {
+				if (session.getName() != null && session.channel.isOpen()) {
+					session.sendToClient(view, seq);
+				}
+			}
+			return;
+		}
+		
+		BufferPool buffers = this.server.getBuffers();
+		ArrayList<ByteBuffer> batches = new ArrayList<ByteBuffer>();
+		ByteBuffer batch = null;
+		for (Map.Entry<Integer, ServerConnection> entry : this.sessions.entrySet()) {
+			
+			ServerConnection session = entry.getValue();
+			if (session.getName() == null || !session.channel.isOpen()) {
+				continue;
+			}
+			if (batch == null || batch.remaining() < tagged) {
+				batch = buffers.acquire(BufferPool.LARGE_SIZE);
+				batches.add(batch);
+			}
+			batch.putShort((short) entry.getKey().intValue());
+			view.position(0);
+			batch.put(view);
+			session.sent(1, seq);
+		}
+		if (batches.isEmpty()) {
+			return;
+		}
+		
+		ByteBuffer[] parts = batches.toArray(new ByteBuffer[batches.size()]);
+		for (ByteBuffer part : parts) {
+			part.flip();
+		}
+		
+		LatencyTracer tracer = this.server.getTracer();
+		long start = tracer == null ? 0 : System.nanoTime();
+		ByteChannel channel = this.connection.channel;
+		try {
+			if (channel instanceof GatheringByteChannel) {
+				while (parts[parts.length - 1].hasRemaining()) {
+					((GatheringByteChannel) channel).write(parts);
+				}
+			} else {
+				for (ByteBuffer part : parts) {
+					while (part.hasRemaining()) {
+						channel.write(part);
+					}
+				}
+			}
+		} catch (IOException e) {
+			this.connection.closeSocket();
+		} finally {
+			for (ByteBuffer part : parts) {
+				buffers.release(part);
+			}
+		}
+		if (tracer != null) {
+			tracer.write.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Tells the client a stream has ended with an empty frame
+	 * 
+	 * @param stream
+	 * 		the stream id of the session that has closed
+	 */
+	public synchronized void end(int stream) {
+		
+		this.tag.clear();
+		this.tag.putShort((short) stream);
+		this.tag.putShort((short) 0);
+		this.tag.flip();
+		
+		try {
+			while (this.tag.hasRemaining()) {
+				this.connection.channel.write(this.tag);
+			}
+		} catch (IOException e) {
+			//connection has closed
+		}
+	}
+
+	/**
+	 * Writes a frame for the lobby to every session on the writer thread, for a
+	 * sharded server. When the last shard or multiplexer has written it the frame
+	 * is released. A connection with too many frames waiting is dropped.
+	 * 
+	 * @param frame
+	 * 		the length header and message, shared with the shards
+	 * @param pending
+	 * 		the number of shards and multiplexers yet to write the frame
+	 * @param enqueued
+	 * 		when the frame was posted, in nanoseconds, timed by the tracer
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 */
+	public void deliver(final ByteBuffer frame, final AtomicInteger pending, final long enqueued, final long seq) {
+		
+		if (this.backlog.incrementAndGet() == MAX_BACKLOG + 1) {
+			this.server.log("Dropped a multiplexed connection that was not reading");
+			this.connection.closeSocket();
+		}
+		
+		Runnable write = new Runnable() {
+			public void run() {
+				
+				if (connection.channel.isOpen()) {
+					broadcast(frame, seq);
+				}
+				backlog.decrementAndGet();
+				
+				if (pending.decrementAndGet() == 0) {
+					server.getBuffers().release(frame);
+					
+					LatencyTracer tracer = server.getTracer();
+					if (tracer != null) {
+						tracer.fanOut.record(System.nanoTime() - enqueued);
+					}
+				}
+			}
+		};
+		
+		try {
+			this.writer.execute(write);
+		} catch (RejectedExecutionException e) {
+			
+			// the connection has closed, the frame is still counted as written
+			this.backlog.decrementAndGet();
+			if (pending.decrementAndGet() == 0) {
+				this.server.getBuffers().release(frame);
+			}
+		}
+	}
+
+	/**
+	 * @return the messages waiting on the writer thread, a frame for the lobby
+	 * 		counting once for each session
+	 */
+	public int backlog() {
+		return this.connection.channel.isOpen() ? this.backlog.get() * this.sessions.size() : 0;
+	}
+
+	/**
+	 * Reads from the connection until the buffer is full, starting with anything
+	 * the shard read before handing the connection over
+	 * 
+	 * @param buffer
+	 * 		the buffer to fill
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		
+		ByteBuffer unread = this.connection.unread;
+		if (unread != null) {
+			int limit = unread.limit();
+			unread.limit(Math.min(limit, unread.position() + buffer.remaining()));
+			buffer.put(unread);
+			unread.limit(limit);
+			
+			if (!unread.hasRemaining()) {
+				this.connection.unread = null;
+			}
+		}
+		
+		while (buffer.hasRemaining()) {
+			if (this.connection.channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sessions carried by the connection
+	 */
+	public int size() {
+		return this.sessions.size();
+	}
+}
+
+/**
+ * The channel of a session carried by a multiplexed connection. Writes go to
+ * the connection tagged with the stream id of the session, and closing it ends
+ * the stream. Sessions never read from it, as the multiplexer reads for them.
+ * 
+ * @author alfiewn
+ *
+ */
+class StreamChannel implements ByteChannel {
+
+	private Multiplexer mux;
+	private int stream;
+	private volatile boolean open = true;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param mux
+	 * 		the multiplexer of the connection carrying the session
+	 * @param stream
+	 * 		the stream id of the session
+	 */
+	public StreamChannel(Multiplexer mux, int stream) {
+		this.mux = mux;
+		this.stream = stream;
+	}
+
+	/**
+	 * @return the multiplexer of the connection carrying the session
+	 */
+	public Multiplexer getMultiplexer() {
+		return this.mux;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		throw new UnsupportedOperationException("Multiplexed sessions are read by their multiplexer");
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+		return this.mux.write(this.stream, src);
+	}
+
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	public void close() {
+		
+		if (this.open) {
+			this.open = false;
+			this.mux.end(this.stream);
+		}
+	}
+}
+
+/**
+ * A room of clients that messages are sent to. The members are held in an array
+ * that is replaced whenever a client joins or leaves, so sending a message
+ * never takes a lock or copies the member list. Rooms with fewer members than
+ * the fan-out threshold write to each member in turn on the sender's thread.
+ * Larger rooms are split into partitions that are written in parallel on the
+ * fan-out pool, so the last member does not wait for every other write.
+ * 
+ * @author alfiewn
+ *
+ */
+class Room {
+
+	private static final ServerConnection[] EMPTY = new ServerConnection[0];
+
+	private String name;
+	private ChatServer server;
+	private volatile ServerConnection[] members = EMPTY;
+	private MessageIndex history;
+	private Digest digest;
+	private AtomicLong sequence = new AtomicLong();
+	private LongAdder inline = new LongAdder();
+	private LongAdder partitioned = new LongAdder();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param name
+	 * 		the name of the room
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public Room(String name, ChatServer server) {
+		this.name = name;
+		this.server = server;
+		this.history = new MessageIndex(server.getIndexer(), server.getOptions().historySize);
+		this.digest = new Digest(server, server.getOptions().digestThreshold, server.getOptions().digestMillis);
+	}
+
+	/**
+	 * @return the name of the room
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the chat history of the room
+	 */
+	public MessageIndex getHistory() {
+		return this.history;
+	}
+
+	/**
+	 * @return the sequence number of the next chat line sent to the room
+	 */
+	public long nextSequence() {
+		return this.sequence.incrementAndGet();
+	}
+
+	/**
+	 * @return the sequence number of the last chat line sent to the room
+	 */
+	public long lastSequence() {
+		return this.sequence.get();
+	}
+
+	/**
+	 * Carries on numbering chat lines after those another server has sent
+	 * 
+	 * @param seq
+	 * 		the sequence number of a chat line sent by the other server
+	 */
+	public void skipSequence(long seq) {
+		long last = this.sequence.get();
+		while (last < seq && !this.sequence.compareAndSet(last, seq)) {
+			last = this.sequence.get();
+		}
+	}
+
+	/**
+	 * @return the digest chat lines are packed into while the room is busy
+	 */
+	public Digest getDigest() {
+		return this.digest;
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public int size() {
+		return this.members.length;
+	}
+
+	/**
+	 * Adds a member to the room
+	 * 
+	 * @param sc
+	 * 		the connection of the client joining
+	 */
+	public synchronized void add(ServerConnection sc) {
+		
+		ServerConnection[] members = Arrays.copyOf(this.members, this.members.length + 1);
+		members[members.length - 1] = sc;
+		this.members = members;
+	}
+
+	/**
+	 * Removes a member from the room
+	 * 
+	 * @param sc
+	 * 		the connection of the client leaving
+	 */
+	public synchronized void remove(ServerConnection sc) {
+		
+		ServerConnection[] members = this.members;
+		
+		for (int i = 0; i < members.length; i++) {
+			if (members[i] == sc) {
+				ServerConnection[] copy = new ServerConnection[members.length - 1];
+				System.arraycopy(members, 0, copy, 0, i);
+				System.arraycopy(members, i + 1, copy, i, members.length - i - 1);
+				this.members = copy;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes a frame to every member. Returns once every member has been written
+	 * to, so the frame can then be released.
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0 if it holds
+	 * 		none
+	 */
+	public void send(ByteBuffer frame, long seq) {
+		
+		ServerConnection[] members = this.members;
+		ServerOptions options = this.server.getOptions();
+		
+		if (members.length < options.fanOutThreshold) {
+			this.inline.increment();
+			for (int i = 0; i < members.length; i++) {
+				members[i].sendToClient(frame, seq);
+			}
+		} else {
+			this.partitioned.increment();
+			this.server.getFanOut()
+					.invoke(new FanOut(members, 0, members.length, frame, seq, options.fanOutPartition));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.members.length + " members, " + this.inline.sum() + " inline and " + this.partitioned.sum()
+				+ " partitioned sends";
+	}
+}
+
+/**
+ * Writes a frame to a range of room members. Ranges larger than a partition are
+ * split in two, so idle workers in the fan-out pool can steal the halves.
+ * 
+ * @author alfiewn
+ *
+ */
+class FanOut extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private ServerConnection[] members;
+	private int from;
+	private int to;
+	private ByteBuffer frame;
+	private long seq;
+	private int partition;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param members
+	 * 		the members of the room
+	 * @param from
+	 * 		the first member to write to
+	 * @param to
+	 * 		the member after the last one to write to
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 * @param partition
+	 * 		the largest number of members to write to on one thread
+	 */
+	public FanOut(ServerConnection[] members, int from, int to, ByteBuffer frame, long seq, int partition) {
+		this.members = members;
+		this.from = from;
+		this.to = to;
+		this.frame = frame;
+		this.seq = seq;
+		this.partition = partition;
+	}
+
+	/**
+	 * Writes to the members, or splits the range if it is larger than a partition.
+	 * Each partition writes through its own view of the frame, as writing moves
+	 * the position of the buffer.
+	 */
+	@Override
+	protected void compute() {
+		
+		if (this.to - this.from <= this.partition) {
+			ByteBuffer view = this.frame.duplicate();
+			for (int i = this.from; i < this.to; i++) {
+				this.members[i].sendToClient(view, this.seq);
+			}
+		} else {
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new FanOut(this.members, this.from, middle, this.frame, this.seq, this.partition),
+					new FanOut(this.members, middle, this.to, this.frame, this.seq, this.partition));
+		}
+	}
+}
+
+/**
+ * An event loop that owns a share of the connections when the server runs
+ * sharded. Each shard is a single thread with its own selector, so the
+ * connections pinned to it and its share of the lobby are only ever touched by
+ * that thread and need no locks. Other threads reach a shard by posting tasks to
+ * its mailbox, which is drained each time the selector wakes up.
+ * 
+ * @author alfiewn
+ *
+ */
+class Shard implements Runnable {
+
+	// the most bytes held in each lane for a client that is not reading before
+	// it is dropped
+	public static final int MAX_PENDING = BufferPool.LARGE_SIZE;
+
+	private int id;
+	private ChatServer server;
+	private Selector selector;
+	private Thread thread;
+	
+	// set while a wakeup is on its way, so a burst of posts only wakes the
+	// selector once
+	private ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+	private AtomicBoolean awake = new AtomicBoolean();
+	
+	// only touched on the shard thread
+	private ArrayList<ServerConnection> members = new ArrayList<ServerConnection>();
+	private ArrayList<ServerConnection> evicted = new ArrayList<ServerConnection>();
+	private ArrayList<Runnable> handoffs = new ArrayList<Runnable>();
+	private int connections;
+	
+	private LongAdder delivered = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+	
+	// the bytes waiting in each outbound lane, and the most that waited for one
+	// connection
+	private AtomicLongArray queued = new AtomicLongArray(OutboundLanes.LANES);
+	private AtomicLongArray peaks = new AtomicLongArray(OutboundLanes.LANES);
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param id
+	 * 		the number of the shard
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @throws IOException
+	 * 		if the selector cannot be opened
+	 */
+	public Shard(int id, ChatServer server) throws IOException {
+		this.id = id;
+		this.server = server;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Starts the thread of the shard
+	 */
+	public void start() {
+		this.thread = new Thread(this, "shard-" + this.id);
+		this.thread.start();
+	}
+
+	/**
+	 * Posts a task to be run on the shard thread
+	 * 
+	 * @param task
+	 * 		the task to run
+	 */
+	public void post(Runnable task) {
+		
+		this.mailbox.offer(task);
+		if (this.awake.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Pins a newly accepted connection to this shard
+	 * 
+	 * @param sc
+	 * 		the connection that has been accepted
+	 */
+	public void adopt(final ServerConnection sc) {
+		this.post(new Runnable() {
+			public void run() {
+				register(sc);
+			}
+		});
+	}
+
+	/**
+	 * Writes a frame to a connection pinned to this shard. Frames sent from other
+	 * threads are copied and posted to the shard.
+	 * 
+	 * @param sc
+	 * 		the connection to write to
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0 if it holds
+	 * 		none
+	 */
+	public void send(final ServerConnection sc, ByteBuffer frame, final long seq) {
+		
+		if (Thread.currentThread() == this.thread) {
+			this.write(sc, frame, seq);
+			return;
+		}
+		
+		final ByteBuffer copy = this.server.getBuffers().acquire(frame.limit());
+		frame.position(0);
+		copy.put(frame);
+		copy.flip();
+		
+		this.post(new Runnable() {
+			public void run() {
+				write(sc, copy, seq);
+				server.getBuffers().release(copy);
+			}
+		});
+	}
+
+	/**
+	 * Posts a frame to be written to every lobby member pinned to this shard. The
+	 * frame is shared with the other shards, and is released by the last one to
+	 * finish with it.
+	 * 
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param pending
+	 * 		the number of shards that have not yet written the frame
+	 * @param enqueued
+	 * 		when the frame was posted, in nanoseconds, timed by the tracer
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 */
+	public void deliver(final ByteBuffer frame, final AtomicInteger pending, final long enqueued, final long seq) {
+		this.post(new Runnable() {
+			public void run() {
+				
+				ByteBuffer view = frame.duplicate();
+				for (int i = 0; i < members.size(); i++) {
+					write(members.get(i), view, seq);
+				}
+				delivered.increment();
+				
+				if (pending.decrementAndGet() == 0) {
+					server.getBuffers().release(frame);
+					
+					LatencyTracer tracer = server.getTracer();
+					if (tracer != null) {
+						tracer.fanOut.record(System.nanoTime() - enqueued);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return whether there are no tasks posted to the shard and nothing waiting
+	 * 		for its clients, though a task may still be running
+	 */
+	public boolean isIdle() {
+		
+		if (!this.mailbox.isEmpty()) {
+			return false;
+		}
+		for (int lane = 0; lane < OutboundLanes.LANES; lane++) {
+			if (this.queued.get(lane) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds up the frames waiting for the clients of this shard on the shard
+	 * thread, after the tasks already posted to it
+	 * 
+	 * @return the count, which stays at -1 until the shard has counted
+	 */
+	public AtomicInteger countUndelivered() {
+		
+		final AtomicInteger count = new AtomicInteger(-1);
+		this.post(new Runnable() {
+			public void run() {
+				int frames = 0;
+				for (ServerConnection sc : members) {
+					if (sc.outbound != null) {
+						frames += sc.outbound.frames();
+					}
+				}
+				count.set(frames);
+			}
+		});
+		return count;
+	}
+
+	/**
+	 * Adds a connection pinned to this shard to its share of the lobby, on the
+	 * shard thread
+	 * 
+	 * @param sc
+	 * 		the connection of the client joining
+	 */
+	public void addMember(ServerConnection sc) {
+		this.members.add(sc);
+	}
+
+	/**
+	 * Removes a connection pinned to this shard from its share of the lobby, on
+	 * the shard thread
+	 * 
+	 * @param sc
+	 * 		the connection of the client leaving
+	 */
+	public void removeMember(ServerConnection sc) {
+		this.members.remove(sc);
+	}
+
+	/**
+	 * Hands a file lane or multiplexed connection over to a thread of its own, as
+	 * they block. The channel can only be made blocking again once the selector
+	 * has dropped it, so the lane is started at the end of the loop.
+	 * 
+	 * @param sc
+	 * 		the connection to hand over
+	 * @param lane
+	 * 		serves the connection until it is done
+	 */
+	public void detach(final ServerConnection sc, final Runnable lane) {
+		
+		if (sc.inbound.hasRemaining()) {
+			sc.unread = ByteBuffer.allocate(sc.inbound.remaining());
+			sc.unread.put(sc.inbound);
+			sc.unread.flip();
+		}
+		sc.key.cancel();
+		this.release(sc);
+		sc.shard = null;
+		
+		this.handoffs.add(new Runnable() {
+			public void run() {
+				try {
+					sc.s.getChannel().configureBlocking(true);
+					lane.run();
+				} catch (IOException e) {
+					//lane has disconnected
+				}
+				sc.closeSession();
+			}
+		});
+	}
+
+	/**
+	 * Runs the tasks posted to the shard and reads from and writes to the
+	 * connections pinned to it, until the server shuts down
+	 */
+	public void run() {
+		
+		while (true) {
+			
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			
+			this.awake.set(false);
+			Runnable task;
+			while ((task = this.mailbox.poll()) != null) {
+				task.run();
+			}
+			
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				ServerConnection sc = (ServerConnection) key.attachment();
+				if (key.isValid() && key.isWritable()) {
+					this.flush(sc);
+				}
+				if (key.isValid() && key.isReadable()) {
+					this.read(sc);
+				}
+			}
+			
+			for (ServerConnection sc : this.evicted) {
+				this.server.log("Dropped a client that was not reading: " + sc.getName());
+				this.evictions.increment();
+				
+				ChatEvents.Eviction event = new ChatEvents.Eviction();
+				if (event.shouldCommit()) {
+					event.session = sc.session;
+					event.name = sc.getName();
+					event.queued = sc.outbound == null ? 0 : sc.outbound.queued();
+					event.commit();
+				}
+				sc.leaving = "evicted";
+				this.close(sc);
+			}
+			this.evicted.clear();
+			
+			if (!this.handoffs.isEmpty()) {
+				try {
+					this.selector.selectNow();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				for (Runnable handoff : this.handoffs) {
+					new Thread(handoff).start();
+				}
+				this.handoffs.clear();
+			}
+		}
+	}
+
+	/**
+	 * Registers a connection with the selector of this shard
+	 * 
+	 * @param sc
+	 * 		the connection that has been accepted
+	 */
+	private void register(ServerConnection sc) {
+		
+		try {
+			SocketChannel channel = sc.s.getChannel();
+			channel.configureBlocking(false);
+			sc.key = channel.register(this.selector, SelectionKey.OP_READ, sc);
+			sc.inbound = this.server.getBuffers().acquire(BufferPool.SMALL_SIZE);
+			sc.shard = this;
+			this.connections++;
+		} catch (IOException e) {
+			sc.closeSocket();
+		}
+	}
+
+	/**
+	 * Reads what the client has sent and handles every complete frame. A partial
+	 * frame is kept for the next read, in a large buffer if it will not fit in a
+	 * small one.
+	 * 
+	 * @param sc
+	 * 		the connection to read from
+	 */
+	private void read(ServerConnection sc) {
+		
+		ByteBuffer in = sc.inbound;
+		
+		try {
+			if (sc.channel.read(in) < 0) {
+				this.close(sc);
+				return;
+			}
+		} catch (IOException e) {
+			this.close(sc);
+			return;
+		}
+		
+		in.flip();
+		while (in.remaining() >= 2) {
+			
+			int length = in.getShort(in.position()) & 0xFFFF;
+			if (in.remaining() < 2 + length) {
+				break;
+			}
+			
+			ByteBuffer frame = sc.allocateFrame(length);
+			int offset = frame.position();
+			int limit = in.limit();
+			in.position(in.position() + 2);
+			in.limit(in.position() + length);
+			frame.put(in);
+			in.limit(limit);
+			frame.position(offset);
+			
+			try {
+				sc.handleFrame(frame);
+			} finally {
+				this.server.getBuffers().release(frame);
+			}
+			
+			if (sc.key == null) {
+				return;
+			}
+			if (!sc.shouldRun) {
+				this.close(sc);
+				return;
+			}
+		}
+		in.compact();
+		
+		BufferPool buffers = this.server.getBuffers();
+		if (in.position() >= 2 && 2 + (in.getShort(0) & 0xFFFF) > in.capacity()) {
+			sc.inbound = buffers.acquire(BufferPool.LARGE_SIZE);
+			in.flip();
+			sc.inbound.put(in);
+			buffers.release(in);
+		} else if (in.position() == 0 && in.capacity() > BufferPool.SMALL_SIZE) {
+			sc.inbound = buffers.acquire(BufferPool.SMALL_SIZE);
+			buffers.release(in);
+		}
+	}
+
+	/**
+	 * Writes a frame to a connection without blocking. Whatever the socket will
+	 * not take straight away is held in the lane for the frame until it is
+	 * writable, and a client that falls too far behind is dropped rather than
+	 * holding up the shard.
+	 * 
+	 * @param sc
+	 * 		the connection to write to
+	 * @param frame
+	 * 		the length header and message to write
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 */
+	private void write(ServerConnection sc, ByteBuffer frame, long seq) {
+		
+		if (sc.key == null) {
+			return;
+		}
+		
+		frame.position(0);
+		int lane = OutboundLanes.laneOf(frame);
+		try {
+			if (sc.outbound == null) {
+				LatencyTracer tracer = this.server.getTracer();
+				long start = tracer == null ? 0 : System.nanoTime();
+				ChatEvents.Write event = new ChatEvents.Write();
+				event.begin();
+				
+				sc.channel.write(frame);
+				
+				if (tracer != null) {
+					tracer.write.record(System.nanoTime() - start);
+				}
+				event.end();
+				if (event.shouldCommit()) {
+					event.session = sc.session;
+					event.bytes = frame.position();
+					event.commit();
+				}
+				
+				if (!frame.hasRemaining()) {
+					sc.sent(frame, seq);
+					return;
+				}
+				sc.outbound = new OutboundLanes(sc, this.server.getBuffers(), this.queued, this.peaks);
+				this.enqueued(sc, frame.remaining(), lane);
+				sc.outbound.addPart(frame, lane, seq);
+				sc.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else {
+				this.enqueued(sc, frame.remaining(), lane);
+				if (!sc.outbound.add(frame, lane, seq)) {
+					this.evict(sc);
+				}
+			}
+		} catch (IOException e) {
+			this.evict(sc);
+		}
+	}
+
+	/**
+	 * Records a flight recorder event for a frame queued for a connection whose
+	 * socket is full
+	 * 
+	 * @param sc
+	 * 		the connection
+	 * @param bytes
+	 * 		the bytes of the frame being queued
+	 * @param lane
+	 * 		the lane it is queued on
+	 */
+	private void enqueued(ServerConnection sc, int bytes, int lane) {
+		
+		ChatEvents.Enqueue event = new ChatEvents.Enqueue();
+		if (event.shouldCommit()) {
+			event.session = sc.session;
+			event.room = this.server.getLobby().getName();
+			event.bytes = bytes;
+			event.lane = OutboundLanes.NAMES[lane];
+			event.queued = sc.outbound.queued() + bytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Writes the frames held for a connection once its socket is writable
+	 * 
+	 * @param sc
+	 * 		the connection to write to
+	 */
+	private void flush(ServerConnection sc) {
+		
+		OutboundLanes out = sc.outbound;
+		if (out == null) {
+			return;
+		}
+		
+		ChatEvents.Write event = new ChatEvents.Write();
+		event.begin();
+		long queued = out.queued();
+		try {
+			out.write(sc.channel);
+		} catch (IOException e) {
+			this.evict(sc);
+			return;
+		}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.session = sc.session;
+			event.bytes = (int) (queued - out.queued());
+			event.commit();
+		}
+		
+		if (out.isEmpty()) {
+			sc.outbound = null;
+			sc.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Marks a connection to be closed at the end of the loop, so the members are
+	 * not changed while a frame is being delivered to them
+	 * 
+	 * @param sc
+	 * 		the connection to close
+	 */
+	private void evict(ServerConnection sc) {
+		if (!this.evicted.contains(sc)) {
+			this.evicted.add(sc);
+		}
+	}
+
+	/**
+	 * Closes a connection pinned to this shard
+	 * 
+	 * @param sc
+	 * 		the connection to close
+	 */
+	private void close(ServerConnection sc) {
+		
+		if (sc.key == null) {
+			return;
+		}
+		sc.closeSession();
+		this.release(sc);
+	}
+
+	/**
+	 * Returns the buffers of a connection to the pool once it leaves the shard
+	 * 
+	 * @param sc
+	 * 		the connection leaving
+	 */
+	private void release(ServerConnection sc) {
+		
+		BufferPool buffers = this.server.getBuffers();
+		buffers.release(sc.inbound);
+		if (sc.outbound != null) {
+			sc.outbound.release();
+		}
+		
+		sc.inbound = null;
+		sc.outbound = null;
+		sc.key = null;
+		this.connections--;
+	}
+
+	@Override
+	public String toString() {
+		return "Shard " + this.id + ": " + this.connections + " connections, " + this.members.size()
+				+ " in the lobby, " + this.delivered.sum() + " frames delivered, " + this.evictions.sum()
+				+ " slow clients dropped" + this.describeLanes();
+	}
+
+	/**
+	 * @return the bytes waiting in each outbound lane
+	 */
+	private String describeLanes() {
+		
+		StringBuilder sb = new StringBuilder();
+		for (int lane = 0; lane < OutboundLanes.LANES; lane++) {
+			sb.append(", ").append(OutboundLanes.NAMES[lane]).append(" lane ").append(this.queued.get(lane))
+					.append(" bytes waiting (peak ").append(this.peaks.get(lane)).append(")");
+		}
+		return sb.toString();
+	}
+}
+
+/**
+ * The frames waiting to be written to a sharded connection whose socket is
+ * full, split into lanes by priority. Control frames such as presence changes
+ * and pongs are written before chat lines, and chat lines before bulk frames
+ * such as search results, so a client that has fallen behind still hears about
+ * people joining and leaving straight away. A lane that is passed over too many
+ * times in a row goes first on the next write, so the chat cannot be starved.
+ * 
+ * Frames are never split between lanes, once part of a frame has been written
+ * the rest of it is written before anything else. As lanes reorder frames, the
+ * connection is told about each frame when it has been written rather than
+ * when it is queued, so the acks of the client line up. Only touched on the
+ * shard thread.
+ * 
+ * Connections that are not on a shard have no lanes. Their frames are written
+ * in the order they are sent, each writer waiting for the connection, so a
+ * control frame waits behind the chat lines already being written.
+ * 
+ * @author alfiewn
+ *
+ */
+class OutboundLanes {
+
+	public static final int CONTROL = 0;
+	public static final int CHAT = 1;
+	public static final int BULK = 2;
+	public static final int LANES = 3;
+	public static final String[] NAMES = { "control", "chat", "bulk" };
+	
+	// how many writes a waiting lane can be passed over before it goes first
+	private static final int STARVATION_LIMIT = 8;
+	
+	// control messages that are part of the chat or are bulky, encoded after the
+	// control character
+	private static final byte[] DIGEST = ServerConnection.encodeUTF(ChatProtocol.DIGEST);
+	private static final byte[] TRACED = ServerConnection.encodeUTF(ChatProtocol.TRACED);
+	private static final byte[] RESULTS = ServerConnection.encodeUTF(ChatProtocol.RESULTS);
+
+	private ServerConnection connection;
+	private BufferPool buffers;
+	private AtomicLongArray queued;
+	private AtomicLongArray peaks;
+	private ByteBuffer[] lanes = new ByteBuffer[LANES];
+	private int[] passed = new int[LANES];
+	
+	// what was added to each lane and is not written in full yet, as the bytes,
+	// the frames and the last chat line of each add, and the bytes of the first
+	// add of each lane that have been written
+	private ArrayList<ArrayDeque<long[]>> adds = new ArrayList<ArrayDeque<long[]>>();
+	private long[] written = new long[LANES];
+	
+	// the lane whose first frame has been partly written, and how much is left
+	private int partLane = -1;
+	private int partLeft;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param connection
+	 * 		the connection the frames are written to
+	 * @param buffers
+	 * 		the pool the lanes take their buffers from
+	 * @param queued
+	 * 		the bytes waiting in each lane across the shard, kept up to date
+	 * @param peaks
+	 * 		the most bytes that have waited in each lane of one connection
+	 */
+	public OutboundLanes(ServerConnection connection, BufferPool buffers, AtomicLongArray queued,
+			AtomicLongArray peaks) {
+		this.connection = connection;
+		this.buffers = buffers;
+		this.queued = queued;
+		this.peaks = peaks;
+		for (int lane = 0; lane < LANES; lane++) {
+			this.adds.add(new ArrayDeque<long[]>());
+		}
+	}
+
+	/**
+	 * Works out which lane a frame is written on from the start of its message
+	 * 
+	 * @param frame
+	 * 		the length header and message, starting at position zero
+	 * @return the lane
+	 */
+	public static int laneOf(ByteBuffer frame) {
+		
+		if (frame.limit() < 4 || frame.get(2) != (byte) 0xC0 || frame.get(3) != (byte) 0x80) {
+			return CHAT;
+		} else if (startsWith(frame, DIGEST) || startsWith(frame, TRACED)) {
+			return CHAT;
+		} else if (startsWith(frame, RESULTS)) {
+			return BULK;
+		}
+		return CONTROL;
+	}
+
+	/**
+	 * @param frame
+	 * 		the length header and control message
+	 * @param prefix
+	 * 		the encoded start of a control message
+	 * @return whether the message starts with it after the control character
+	 */
+	private static boolean startsWith(ByteBuffer frame, byte[] prefix) {
+		
+		if (frame.limit() < 4 + prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (frame.get(4 + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a frame to the end of a lane
+	 * 
+	 * @param frame
+	 * 		the frame, positioned at the bytes still to write
+	 * @param lane
+	 * 		the lane to add it to
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 * @return whether there was room for it in the lane
+	 */
+	public boolean add(ByteBuffer frame, int lane, long seq) {
+		
+		ByteBuffer buffer = this.lanes[lane];
+		if (buffer == null) {
+			buffer = this.buffers.acquire(Shard.MAX_PENDING);
+			this.lanes[lane] = buffer;
+		}
+		if (buffer.remaining() < frame.remaining()) {
+			return false;
+		}
+		
+		int length = frame.remaining();
+		buffer.put(frame);
+		this.adds.get(lane).addLast(new long[] { length, ServerConnection.countFrames(frame), seq });
+		this.queued.addAndGet(lane, length);
+		if (buffer.position() > this.peaks.get(lane)) {
+			this.peaks.set(lane, buffer.position());
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the rest of a frame that has been partly written, which must be written
+	 * before anything else
+	 * 
+	 * @param frame
+	 * 		the frame, positioned at the bytes still to write
+	 * @param lane
+	 * 		the lane of the frame
+	 * @param seq
+	 * 		the sequence number of the last chat line in the frame, or 0
+	 */
+	public void addPart(ByteBuffer frame, int lane, long seq) {
+		this.partLane = lane;
+		this.partLeft = frame.remaining();
+		this.add(frame, lane, seq);
+	}
+
+	/**
+	 * @return the bytes waiting in every lane
+	 */
+	public long queued() {
+		
+		long queued = 0;
+		for (int lane = 0; lane < LANES; lane++) {
+			if (this.lanes[lane] != null) {
+				queued += this.lanes[lane].position();
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * @return the frames waiting in every lane, counting one that has been partly
+	 * 		written
+	 */
+	public int frames() {
+		
+		int frames = 0;
+		for (int lane = 0; lane < LANES; lane++) {
+			ByteBuffer buffer = this.lanes[lane];
+			if (buffer == null) {
+				continue;
+			}
+			
+			int offset = 0;
+			if (lane == this.partLane) {
+				offset = this.partLeft;
+				frames++;
+			}
+			while (offset + 2 <= buffer.position()) {
+				offset += 2 + (buffer.getShort(offset) & 0xFFFF);
+				frames++;
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return whether every lane has been written
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < LANES; i++) {
+			if (this.lanes[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes as much as the socket will take, the rest of a partly written frame
+	 * first and then the lanes in order of priority
+	 * 
+	 * @param channel
+	 * 		the channel of the connection
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	public void write(ByteChannel channel) throws IOException {
+		
+		if (this.partLane >= 0 && !this.writePart(channel)) {
+			return;
+		}
+		
+		int first = CONTROL;
+		for (int lane = LANES - 1; lane > CONTROL; lane--) {
+			if (this.passed[lane] >= STARVATION_LIMIT) {
+				first = lane;
+			}
+		}
+		
+		for (int i = 0; i < LANES; i++) {
+			int lane = (first + i) % LANES;
+			if (this.lanes[lane] == null) {
+				continue;
+			}
+			this.passed[lane] = 0;
+			
+			if (!this.writeLane(channel, lane)) {
+				for (int j = i + 1; j < LANES; j++) {
+					if (this.lanes[(first + j) % LANES] != null) {
+						this.passed[(first + j) % LANES]++;
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the rest of the frame that was partly written
+	 * 
+	 * @param channel
+	 * 		the channel of the connection
+	 * @return whether all of it was written
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	private boolean writePart(ByteChannel channel) throws IOException {
+		
+		int lane = this.partLane;
+		ByteBuffer buffer = this.lanes[lane];
+		buffer.flip();
+		int limit = buffer.limit();
+		buffer.limit(this.partLeft);
+		int written = channel.write(buffer);
+		buffer.limit(limit);
+		buffer.compact();
+		
+		this.queued.addAndGet(lane, -written);
+		this.written(lane, written);
+		this.partLeft -= written;
+		if (this.partLeft > 0) {
+			return false;
+		}
+		
+		this.partLane = -1;
+		this.releaseIfEmpty(lane);
+		return true;
+	}
+
+	/**
+	 * Writes the frames in a lane, noting where the socket stopped taking them if
+	 * that is part way through a frame
+	 * 
+	 * @param channel
+	 * 		the channel of the connection
+	 * @param lane
+	 * 		the lane to write
+	 * @return whether the lane was written in full
+	 * @throws IOException
+	 * 		if the client has disconnected
+	 */
+	private boolean writeLane(ByteChannel channel, int lane) throws IOException {
+		
+		ByteBuffer buffer = this.lanes[lane];
+		buffer.flip();
+		int written = channel.write(buffer);
+		
+		int next = 0;
+		while (next < written) {
+			next += 2 + (buffer.getShort(next) & 0xFFFF);
+		}
+		if (next > written) {
+			this.partLane = lane;
+			this.partLeft = next - written;
+		}
+		
+		buffer.compact();
+		this.queued.addAndGet(lane, -written);
+		this.written(lane, written);
+		return this.releaseIfEmpty(lane);
+	}
+
+	/**
+	 * Tells the connection about the frames of a lane that have now been written
+	 * in full
+	 * 
+	 * @param lane
+	 * 		the lane
+	 * @param bytes
+	 * 		the bytes just written from the front of it
+	 */
+	private void written(int lane, int bytes) {
+		
+		ArrayDeque<long[]> adds = this.adds.get(lane);
+		long written = this.written[lane] + bytes;
+		
+		while (!adds.isEmpty() && adds.peekFirst()[0] <= written) {
+			long[] add = adds.removeFirst();
+			written -= add[0];
+			this.connection.sent((int) add[1], add[2]);
+		}
+		this.written[lane] = written;
+	}
+
+	/**
+	 * Returns the buffer of a lane to the pool once it has been written
+	 * 
+	 * @param lane
+	 * 		the lane
+	 * @return whether the lane was empty
+	 */
+	private boolean releaseIfEmpty(int lane) {
+		
+		if (this.lanes[lane].position() > 0) {
+			return false;
+		}
+		this.buffers.release(this.lanes[lane]);
+		this.lanes[lane] = null;
+		return true;
+	}
+
+	/**
+	 * Returns the buffers of every lane to the pool when the connection closes
+	 */
+	public void release() {
+		for (int lane = 0; lane < LANES; lane++) {
+			if (this.lanes[lane] != null) {
+				this.queued.addAndGet(lane, -this.lanes[lane].position());
+				this.buffers.release(this.lanes[lane]);
+				this.lanes[lane] = null;
+			}
+		}
+	}
+}
+
+/**
+ * Keeps the chat lines sent to a room and an inverted index over their words,
+ * so clients can search what was said earlier. Lines are indexed on the indexer
+ * thread rather than the thread that sent them, and searches run on it too, so
+ * the index is only ever touched by one thread. Lines are held in segments of a
+ * fixed size, and the oldest segment is dropped once the room holds more than
+ * the history size given in the server options.
+ * 
+ * @author alfiewn
+ *
+ */
+class MessageIndex {
+
+	public static final int MAX_RESULTS = 10;
+
+	// keeps a result message well inside the largest frame
+	private static final int MAX_RESULT_CHARS = 16000;
+
+	private ExecutorService indexer;
+	private int historySize;
+	
+	// only touched on the indexer thread
+	private ArrayDeque<IndexSegment> segments = new ArrayDeque<IndexSegment>();
+	private long stored;
+	
+	private LongAdder searches = new LongAdder();
+	private volatile String summary = "0 lines";
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param indexer
+	 * 		the single thread lines are indexed and searched on
+	 * @param historySize
+	 * 		the number of lines to keep
+	 */
+	public MessageIndex(ExecutorService indexer, int historySize) {
+		this.indexer = indexer;
+		this.historySize = historySize;
+	}
+
+	/**
+	 * Hands a chat line to the indexer thread
+	 * 
+	 * @param sender
+	 * 		the name of the client that sent the line
+	 * @param text
+	 * 		the line in the modified UTF-8 format, without the name prefix
+	 */
+	public void record(String sender, byte[] text) {
+		this.record(sender, text, System.currentTimeMillis());
+	}
+
+	/**
+	 * Hands a chat line sent at an earlier time to the indexer thread
+	 * 
+	 * @param sender
+	 * 		the name of the client that sent the line
+	 * @param text
+	 * 		the line in the modified UTF-8 format, without the name prefix
+	 * @param time
+	 * 		the time the line was sent, in milliseconds
+	 */
+	public void record(final String sender, final byte[] text, final long time) {
+		
+		if (this.historySize <= 0) {
+			return;
+		}
+		
+		this.indexer.execute(new Runnable() {
+			public void run() {
+				add(sender, text, time);
+			}
+		});
+	}
+
+	/**
+	 * Runs a search on the indexer thread and sends the results to the client
+	 * that asked for them
+	 * 
+	 * @param sc
+	 * 		the connection of the client searching
+	 * @param request
+	 * 		the search request, without the search prefix
+	 */
+	public void search(final ServerConnection sc, final String request) {
+		this.indexer.execute(new Runnable() {
+			public void run() {
+				searches.increment();
+				sc.sendToClient(query(request));
+			}
+		});
+	}
+
+	/**
+	 * Stores and indexes a chat line
+	 * 
+	 * @param sender
+	 * 		the name of the client that sent the line
+	 * @param text
+	 * 		the encoded line
+	 * @param time
+	 * 		the time the line was sent, in milliseconds
+	 */
+	private void add(String sender, byte[] text, long time) {
+		
+		IndexSegment segment = this.segments.peekLast();
+		if (segment == null || segment.isFull()) {
+			segment = new IndexSegment();
+			this.segments.addLast(segment);
+		}
+		
+		segment.add(sender, text, time, tokenize(ServerConnection.decodeUTF(ByteBuffer.wrap(text))));
+		this.stored++;
+		
+		while (this.stored - this.segments.peekFirst().size() >= this.historySize) {
+			this.stored -= this.segments.pollFirst().size();
+		}
+		this.summary = this.stored + " lines in " + this.segments.size() + " segments";
+	}
+
+	/**
+	 * Finds the most recent lines that contain every word of a search, newest
+	 * first. Besides words the search may hold from:name to only match lines
+	 * sent by that client, and after:time and before:time, in milliseconds, to
+	 * only match lines sent in that range.
+	 * 
+	 * @param request
+	 * 		the search request
+	 * @return the control message holding the results
+	 */
+	String query(String request) {
+		
+		ArrayList<String> terms = new ArrayList<String>();
+		long after = Long.MIN_VALUE;
+		long before = Long.MAX_VALUE;
+		
+		for (String word : request.trim().split("\\s+")) {
+			try {
+				if (word.startsWith("from:")) {
+					terms.add(IndexSegment.senderTerm(word.substring(5)));
+				} else if (word.startsWith("after:")) {
+					after = Long.parseLong(word.substring(6));
+				} else if (word.startsWith("before:")) {
+					before = Long.parseLong(word.substring(7));
+				} else {
+					terms.addAll(tokenize(word));
+				}
+			} catch (NumberFormatException e) {
+				//leave out a time that cannot be read
+			}
+		}
+		
+		StringBuilder results = new StringBuilder();
+		int found = 0;
+		
+		Iterator<IndexSegment> newestFirst = this.segments.descendingIterator();
+		while (newestFirst.hasNext() && found < MAX_RESULTS) {
+			
+			IndexSegment segment = newestFirst.next();
+			if (segment.lastTime() < after) {
+				break;
+			}
+			
+			int[] matches = segment.find(terms, after, before);
+			for (int i = matches.length - 1; i >= 0 && found < MAX_RESULTS; i--) {
+				String line = segment.describe(matches[i]);
+				if (results.length() + line.length() > MAX_RESULT_CHARS) {
+					break;
+				}
+				results.append('\n').append(line);
+				found++;
+			}
+		}
+		
+		return ChatProtocol.CONTROL + ChatProtocol.RESULTS + found + results;
+	}
+
+	/**
+	 * Splits text into lower case words of letters and digits
+	 * 
+	 * @param text
+	 * 		the text to split
+	 * @return the words, each once
+	 */
+	static List<String> tokenize(String text) {
+		
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (!inWord && start >= 0) {
+				String word = text.substring(start, i).toLowerCase();
+				if (!words.contains(word)) {
+					words.add(word);
+				}
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	@Override
+	public String toString() {
+		return this.summary + ", " + this.searches.sum() + " searches";
+	}
+}
+
+/**
+ * A fixed number of consecutive chat lines and the index over them. Each word
+ * maps to the positions of the lines that contain it, held as a list of
+ * variable length gaps so common words take little space.
+ * 
+ * @author alfiewn
+ *
+ */
+class IndexSegment {
+
+	public static final int SIZE = 1 << 16;
+
+	private int count;
+	private long[] times = new long[SIZE];
+	private String[] senders = new String[SIZE];
+	private byte[][] texts = new byte[SIZE][];
+	private HashMap<String, Postings> terms = new HashMap<String, Postings>();
+
+	/**
+	 * The term a line is indexed under for its sender. It starts with the
+	 * control character, which words never contain.
+	 * 
+	 * @param sender
+	 * 		the name of the client
+	 * @return the term
+	 */
+	static String senderTerm(String sender) {
+		return ChatProtocol.CONTROL + sender;
+	}
+
+	/**
+	 * @return the number of lines in the segment
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * @return whether the segment has no room for another line
+	 */
+	public boolean isFull() {
+		return this.count == SIZE;
+	}
+
+	/**
+	 * @return the time the newest line in the segment was sent
+	 */
+	public long lastTime() {
+		return this.times[this.count - 1];
+	}
+
+	/**
+	 * Adds a line to the segment
+	 * 
+	 * @param sender
+	 * 		the name of the client that sent the line
+	 * @param text
+	 * 		the encoded line
+	 * @param time
+	 * 		the time the line was sent
+	 * @param words
+	 * 		the words of the line
+	 */
+	public void add(String sender, byte[] text, long time, List<String> words) {
+		
+		int line = this.count++;
+		this.times[line] = time;
+		this.senders[line] = sender;
+		this.texts[line] = text;
+		
+		this.postings(senderTerm(sender)).add(line);
+		for (String word : words) {
+			this.postings(word).add(line);
+		}
+	}
+
+	/**
+	 * Finds the lines containing every term that were sent in a time range
+	 * 
+	 * @param terms
+	 * 		the terms to match, or none to match every line
+	 * @param after
+	 * 		the earliest time to match
+	 * @param before
+	 * 		the latest time to match
+	 * @return the positions of the matching lines, oldest first
+	 */
+	public int[] find(List<String> terms, long after, long before) {
+		
+		int from = this.firstAtOrAfter(after);
+		int to = before == Long.MAX_VALUE ? this.count : this.firstAtOrAfter(before + 1);
+		
+		int[] lines = null;
+		for (String term : terms) {
+			Postings postings = this.terms.get(term);
+			if (postings == null) {
+				return new int[0];
+			}
+			lines = lines == null ? postings.decode() : intersect(lines, postings.decode());
+		}
+		
+		if (lines == null) {
+			lines = new int[Math.max(0, to - from)];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = from + i;
+			}
+			return lines;
+		}
+		
+		int start = 0;
+		while (start < lines.length && lines[start] < from) {
+			start++;
+		}
+		int end = lines.length;
+		while (end > start && lines[end - 1] >= to) {
+			end--;
+		}
+		return Arrays.copyOfRange(lines, start, end);
+	}
+
+	/**
+	 * Describes a line as a search result, as the time it was sent, the sender
+	 * and the line itself
+	 * 
+	 * @param line
+	 * 		the position of the line in the segment
+	 * @return the result
+	 */
+	public String describe(int line) {
+		String text = ServerConnection.decodeUTF(ByteBuffer.wrap(this.texts[line]));
+		return this.times[line] + " " + this.senders[line] + " " + text.replace('\n', ' ');
+	}
+
+	/**
+	 * Finds the first line sent at or after a time. Lines are added in the order
+	 * they are sent, so the times are sorted.
+	 * 
+	 * @param time
+	 * 		the time
+	 * @return the position of the line, or the number of lines if there is none
+	 */
+	private int firstAtOrAfter(long time) {
+		
+		int low = 0;
+		int high = this.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.times[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Gets the postings of a term, adding them if the term is new
+	 * 
+	 * @param term
+	 * 		the term
+	 * @return the postings
+	 */
+	private Postings postings(String term) {
+		
+		Postings postings = this.terms.get(term);
+		if (postings == null) {
+			postings = new Postings();
+			this.terms.put(term, postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * Intersects two sorted lists of lines
+	 * 
+	 * @param a
+	 * 		the first list
+	 * @param b
+	 * 		the second list
+	 * @return the lines in both lists, sorted
+	 */
+	private static int[] intersect(int[] a, int[] b) {
+		
+		int[] both = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				both[count++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(both, count);
+	}
+}
+
+/**
+ * The lines of a segment a term appears in, written as the gaps between them in
+ * seven bit groups, so that lines close together take a single byte each
+ * 
+ * @author alfiewn
+ *
+ */
+class Postings {
+
+	private byte[] data = new byte[4];
+	private int size;
+	private int count;
+	private int last = -1;
+
+	/**
+	 * Adds a line, which must come after every line already added
+	 * 
+	 * @param line
+	 * 		the position of the line in its segment
+	 */
+	public void add(int line) {
+		
+		if (this.size + 5 > this.data.length) {
+			this.data = Arrays.copyOf(this.data, this.data.length * 2);
+		}
+		
+		int gap = line - this.last;
+		while (gap >= 0x80) {
+			this.data[this.size++] = (byte) (gap | 0x80);
+			gap >>>= 7;
+		}
+		this.data[this.size++] = (byte) gap;
+		
+		this.last = line;
+		this.count++;
+	}
+
+	/**
+	 * @return the lines, sorted
+	 */
+	public int[] decode() {
+		
+		int[] lines = new int[this.count];
+		int pos = 0;
+		int line = -1;
+		
+		for (int i = 0; i < this.count; i++) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = this.data[pos++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			
+			line += gap;
+			lines[i] = line;
+		}
+		return lines;
+	}
+}
+
+/**
+ * Measures where the time goes between a chat line arriving at the server and
+ * being written to every client. Each stage has a histogram: queue is from the
+ * line being read to it being handed to the room, fan-out is from then until it
+ * has been written to every member, and write is each single write to a client.
+ * 
+ * @author alfiewn
+ *
+ */
+class LatencyTracer {
+
+	LatencyHistogram queue = new LatencyHistogram();
+	LatencyHistogram fanOut = new LatencyHistogram();
+	LatencyHistogram write = new LatencyHistogram();
+
+	/**
+	 * Writes the histograms to a file, one line per bucket, so they can be
+	 * compared in a spreadsheet
+	 * 
+	 * @param file
+	 * 		the file to write
+	 * @throws IOException
+	 * 		if the file cannot be written
+	 */
+	public void export(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println("stage,from_us,to_us,count");
+			this.queue.export(out, "queue");
+			this.fanOut.export(out, "fanout");
+			this.write.export(out, "write");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "queue " + this.queue + "\nfan-out " + this.fanOut + "\nwrite " + this.write;
+	}
+}
+
+/**
+ * Filters the chat lines sent to the lobby against a file of rules, one per
+ * line, ignoring the case of English letters. What a rule matches is masked
+ * with stars, and a line matching a rule that starts with ! is not sent at
+ * all. Blank lines and lines starting with # are skipped. For example:
+ * 
+ * # mask a word anywhere
+ * darn
+ * # block links
+ * !://
+ * !www.
+ * 
+ * The rules are compiled into one automaton, so a line is checked against
+ * every rule in a single pass, however many there are. Reloading compiles the
+ * new rules off to the side and swaps them in atomically, so messages are never
+ * held up; a line being checked at the time finishes with the old rules.
+ * 
+ * @author alfiewn
+ *
+ */
+class ContentFilter {
+
+	private File file;
+	private AtomicReference<FilterRules> rules = new AtomicReference<FilterRules>();
+	private LongAdder scanned = new LongAdder();
+	private LongAdder masked = new LongAdder();
+	private LongAdder blocked = new LongAdder();
+
+	/**
+	 * Constructor method, sets default fields. There are no rules until they are
+	 * loaded.
+	 * 
+	 * @param file
+	 * 		the file of rules, or null for no filter
+	 */
+	public ContentFilter(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the file of rules, or null if there is no filter
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Reads and compiles the rules, then swaps them in
+	 * 
+	 * @return the number of rules
+	 * @throws IOException
+	 * 		if the file cannot be read, in which case the rules are not changed
+	 */
+	public int reload() throws IOException {
+		
+		FilterRules rules = FilterRules.compile(Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8));
+		this.rules.set(rules);
+		return rules.size();
+	}
+
+	/**
+	 * Checks a chat line against the rules, masking what they match in place
+	 * 
+	 * @param buffer
+	 * 		the buffer holding the line in the modified UTF-8 format
+	 * @param from
+	 * 		where the line starts
+	 * @param to
+	 * 		where the line ends
+	 * @return whether the line may be sent
+	 */
+	public boolean scan(ByteBuffer buffer, int from, int to) {
+		
+		FilterRules rules = this.rules.get();
+		if (rules == null) {
+			return true;
+		}
+		
+		this.scanned.increment();
+		int verdict = rules.scan(buffer, from, to);
+		if (verdict == FilterRules.MASKED) {
+			this.masked.increment();
+		} else if (verdict == FilterRules.BLOCKED) {
+			this.blocked.increment();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		
+		FilterRules rules = this.rules.get();
+		if (rules == null) {
+			return "off";
+		}
+		return rules + ", " + this.scanned.sum() + " lines scanned, " + this.masked.sum() + " masked, "
+				+ this.blocked.sum() + " blocked";
+	}
+}
+
+/**
+ * A set of filter rules compiled into an Aho-Corasick automaton over the bytes
+ * of the modified UTF-8 format, so lines are never decoded to be checked. Every
+ * transition is filled in, making it a table lookup per byte with no failure
+ * links to follow while scanning. To keep the table small, bytes are grouped
+ * into classes: one class per byte that appears in a rule, with upper and
+ * lower case letters sharing a class, and one for every other byte. Each state
+ * holds the length of the longest rule ending there and whether any rule
+ * ending there blocks. The rules are never changed once compiled.
+ * 
+ * @author alfiewn
+ *
+ */
+class FilterRules {
+
+	public static final int CLEAN = 0;
+	public static final int MASKED = 1;
+	public static final int BLOCKED = 2;
+
+	private int rules;
+	private int states;
+	private int classes;
+	private int[] classOf = new int[256];
+	
+	// the next state for each state and class, and the longest rule and whether
+	// any rule that blocks ends at each state
+	private int[] next;
+	private int[] longest;
+	private boolean[] blocks;
+
+	/**
+	 * Compiles the lines of a rules file
+	 * 
+	 * @param lines
+	 * 		the lines of the file
+	 * @return the compiled rules
+	 */
+	public static FilterRules compile(List<String> lines) {
+		
+		ArrayList<byte[]> patterns = new ArrayList<byte[]>();
+		ArrayList<Boolean> blocking = new ArrayList<Boolean>();
+		int bytes = 0;
+		
+		for (String line : lines) {
+			String rule = line.trim();
+			boolean block = rule.startsWith("!");
+			if (block) {
+				rule = rule.substring(1).trim();
+			}
+			if (rule.isEmpty() || rule.startsWith("#")) {
+				continue;
+			}
+			
+			byte[] pattern = ServerConnection.encodeUTF(rule);
+			for (int i = 0; i < pattern.length; i++) {
+				if (pattern[i] >= 'A' && pattern[i] <= 'Z') {
+					pattern[i] += 'a' - 'A';
+				}
+			}
+			patterns.add(pattern);
+			blocking.add(block);
+			bytes += pattern.length;
+		}
+		
+		FilterRules compiled = new FilterRules();
+		compiled.rules = patterns.size();
+		compiled.classes = 1;
+		for (byte[] pattern : patterns) {
+			for (byte b : pattern) {
+				if (compiled.classOf[b & 0xFF] == 0) {
+					compiled.classOf[b & 0xFF] = compiled.classes++;
+				}
+			}
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			compiled.classOf[c] = compiled.classOf[c + 'a' - 'A'];
+		}
+		
+		compiled.build(patterns, blocking, bytes + 1);
+		return compiled;
+	}
+
+	/**
+	 * Builds the trie of the rules, then fills in every missing transition in
+	 * breadth first order from the failure state, the longest suffix that is
+	 * also in the trie
+	 * 
+	 * @param patterns
+	 * 		the encoded rules
+	 * @param blocking
+	 * 		whether each rule blocks
+	 * @param most
+	 * 		the most states there can be
+	 */
+	private void build(ArrayList<byte[]> patterns, ArrayList<Boolean> blocking, int most) {
+		
+		int classes = this.classes;
+		int[] next = new int[most * classes];
+		int[] longest = new int[most];
+		boolean[] blocks = new boolean[most];
+		int states = 1;
+		
+		for (int i = 0; i < patterns.size(); i++) {
+			byte[] pattern = patterns.get(i);
+			int state = 0;
+			for (byte b : pattern) {
+				int slot = state * classes + this.classOf[b & 0xFF];
+				if (next[slot] == 0) {
+					next[slot] = states++;
+				}
+				state = next[slot];
+			}
+			longest[state] = pattern.length;
+			blocks[state] |= blocking.get(i).booleanValue();
+		}
+		
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int c = 0; c < classes; c++) {
+			if (next[c] != 0) {
+				queue[tail++] = next[c];
+			}
+		}
+		
+		while (head < tail) {
+			int state = queue[head++];
+			for (int c = 0; c < classes; c++) {
+				int slot = state * classes + c;
+				int child = next[slot];
+				int fallback = next[fail[state] * classes + c];
+				
+				if (child == 0) {
+					next[slot] = fallback;
+				} else {
+					fail[child] = fallback;
+					longest[child] = Math.max(longest[child], longest[fallback]);
+					blocks[child] |= blocks[fallback];
+					queue[tail++] = child;
+				}
+			}
+		}
+		
+		this.states = states;
+		this.next = Arrays.copyOf(next, states * classes);
+		this.longest = Arrays.copyOf(longest, states);
+		this.blocks = Arrays.copyOf(blocks, states);
+	}
+
+	/**
+	 * Scans a line in one pass, masking each match with stars as it is found.
+	 * Masking whole matches keeps the line valid, as a match always starts and
+	 * ends on a whole character.
+	 * 
+	 * @param buffer
+	 * 		the buffer holding the line in the modified UTF-8 format
+	 * @param from
+	 * 		where the line starts
+	 * @param to
+	 * 		where the line ends
+	 * @return CLEAN, MASKED or BLOCKED
+	 */
+	public int scan(ByteBuffer buffer, int from, int to) {
+		
+		int verdict = CLEAN;
+		int state = 0;
+		
+		for (int i = from; i < to; i++) {
+			state = this.next[state * this.classes + this.classOf[buffer.get(i) & 0xFF]];
+			
+			int length = this.longest[state];
+			if (length != 0) {
+				if (this.blocks[state]) {
+					return BLOCKED;
+				}
+				for (int j = Math.max(from, i - length + 1); j <= i; j++) {
+					buffer.put(j, (byte) '*');
+				}
+				verdict = MASKED;
+			}
+		}
+		return verdict;
+	}
+
+	/**
+	 * @return the number of rules
+	 */
+	public int size() {
+		return this.rules;
+	}
+
+	@Override
+	public String toString() {
+		return this.rules + " rules in " + this.states + " states of " + this.classes + " byte classes";
+	}
+}
+
+/**
+ * Packs the chat lines of a busy room into digests, so each client is sent one
+ * frame holding every line from a short window rather than one frame per line.
+ * Lines are only packed while the room is sending more than the threshold a
+ * second, so a quiet room is not slowed down. A digest is sent as a control
+ * message, "digest" followed by one line per chat line.
+ * 
+ * Anything else sent to the room sends the digest first, so clients see
+ * everything in the order it was sent. A digest is written out under a lock of
+ * its own rather than the one lines are packed under, so lines can still be
+ * packed into the next digest while one is being written to slow clients, and
+ * a digest whose window is up is written on the fan-out pool rather than on
+ * the timers.
+ * 
+ * @author alfiewn
+ *
+ */
+class Digest implements Runnable {
+
+	private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final byte[] HEADER = ServerConnection.encodeUTF(ChatProtocol.CONTROL + ChatProtocol.DIGEST);
+
+	private ChatServer server;
+	private int threshold;
+	private long windowMillis;
+	
+	// held while a digest is written out, so digests and what follows them are
+	// written in order
+	private Object order = new Object();
+	
+	// the lines counted in this second and the last, which decide whether lines
+	// are packed
+	private long second;
+	private int thisSecond;
+	private int lastSecond;
+	
+	// the digest being filled, with its length header and control header written
+	private ByteBuffer pending;
+	private int lines;
+	private long lastSeq;
+	
+	private long digests;
+	private long packed;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param threshold
+	 * 		the lines a second above which lines are packed, or 0 to never pack them
+	 * @param windowMillis
+	 * 		how long a line may wait in a digest before it is sent
+	 */
+	public Digest(ChatServer server, int threshold, long windowMillis) {
+		this.server = server;
+		this.threshold = threshold;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Adds a chat line to the digest if the room is busy
+	 * 
+	 * @param frame
+	 * 		the length header and chat line
+	 * @param seq
+	 * 		the sequence number of the line
+	 * @return whether the line was added, otherwise it must be sent on its own
+	 */
+	public boolean add(ByteBuffer frame, long seq) {
+		
+		if (this.threshold <= 0) {
+			return false;
+		}
+		if (!this.isBusy() || isControl(frame) || contains(frame, (byte) '\n')) {
+			this.flush();
+			return false;
+		}
+		
+		int length = frame.limit() - 2;
+		while (true) {
+			synchronized (this) {
+				if (this.pending == null) {
+					if (HEADER.length + 1 + length > BufferPool.LARGE_SIZE - 2) {
+						return false;
+					}
+					this.pending = this.server.getBuffers().acquire(BufferPool.LARGE_SIZE);
+					this.pending.limit(BufferPool.LARGE_SIZE);
+					this.pending.position(2);
+					this.pending.put(HEADER);
+					this.server.getTimers().schedule(this, this.windowMillis, TimeUnit.MILLISECONDS);
+				}
+				
+				if (this.pending.remaining() >= 1 + length) {
+					this.pending.put((byte) '\n');
+					frame.position(2);
+					this.pending.put(frame);
+					this.lines++;
+					this.lastSeq = seq;
+					return true;
+				}
+			}
+			
+			// the digest is full, so it is sent and the line goes in the next one
+			this.flush();
+		}
+	}
+
+	/**
+	 * Counts a line sent to the room
+	 * 
+	 * @return whether the room is sending more than the threshold a second
+	 */
+	private synchronized boolean isBusy() {
+		
+		long now = System.nanoTime();
+		if (now - this.second >= SECOND_NANOS) {
+			this.lastSecond = now - this.second < 2 * SECOND_NANOS ? this.thisSecond : 0;
+			this.thisSecond = 0;
+			this.second = now;
+		}
+		this.thisSecond++;
+		return Math.max(this.thisSecond, this.lastSecond) >= this.threshold;
+	}
+
+	/**
+	 * Hands the digest to the fan-out pool once its window is up, as writing it
+	 * may block on slow clients and the timers must keep running
+	 */
+	public void run() {
+		this.server.getFanOut().execute(new Runnable() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Sends the lines waiting in the digest to every client, and returns once
+	 * they and any digest sent before them have been written
+	 */
+	public void flush() {
+		
+		synchronized (this.order) {
+			ByteBuffer digest;
+			long seq;
+			
+			synchronized (this) {
+				digest = this.pending;
+				if (digest == null) {
+					return;
+				}
+				this.pending = null;
+				seq = this.lastSeq;
+				
+				this.digests++;
+				this.packed += this.lines;
+				this.lines = 0;
+			}
+			
+			digest.flip();
+			digest.putShort(0, (short) (digest.limit() - 2));
+			this.server.deliverToAllClients(digest, seq);
+			this.server.getBuffers().release(digest);
+		}
+	}
+
+	/**
+	 * Checks whether a frame holds a control message, such as a traced line,
+	 * which clients would not recognise inside a digest
+	 * 
+	 * @param frame
+	 * 		the length header and message
+	 * @return whether it starts with the control character
+	 */
+	private static boolean isControl(ByteBuffer frame) {
+		return frame.limit() >= 4 && frame.get(2) == (byte) 0xC0 && frame.get(3) == (byte) 0x80;
+	}
+
+	/**
+	 * Checks whether the message in a frame holds the given byte
+	 * 
+	 * @param frame
+	 * 		the length header and message
+	 * @param b
+	 * 		the byte to look for
+	 * @return whether it is found
+	 */
+	private static boolean contains(ByteBuffer frame, byte b) {
+		for (int i = 2; i < frame.limit(); i++) {
+			if (frame.get(i) == b) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.packed + " lines packed into " + this.digests + " digests";
+	}
+}
+
+/**
+ * Keeps track of which clients are online. A client is sent a snapshot of the
+ * roster when it joins, then versioned deltas. Joins and leaves are collected
+ * over a short window and sent as one delta, so when many clients reconnect at
+ * once each client receives one message rather than one per reconnecting
+ * client. A client that misses a delta asks for the changes since the last
+ * version it has, and recent deltas are kept so that can be answered without a
+ * full snapshot.
+ * 
+ * Snapshots are sent as "roster [version]" and deltas as
+ * "presence [from version] [to version]", each followed by one line per name,
+ * where names in a delta start with + if they joined and - if they left. No
+ * message is longer than a frame can carry: a snapshot that is too long is
+ * sent as parts, "names [version]" followed by names, ahead of the "roster"
+ * message that ends it, and the changes of a window that are too long for one
+ * delta are spread over several versions.
+ * 
+ * @author alfiewn
+ *
+ */
+class Roster implements Runnable {
+
+	public static final long WINDOW_MILLIS = 200;
+	public static final int MAX_NAME_BYTES = 1024;
+	private static final int HISTORY = 256;
+	
+	// the most bytes of names one message carries, leaving room for its header
+	private static final int PART_BYTES = BufferPool.LARGE_SIZE - 2 - 64;
+
+	private ChatServer server;
+	private long version;
+	private TreeSet<String> online = new TreeSet<String>();
+	
+	// changes waiting for the end of the window, true for a join
+	private LinkedHashMap<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+	
+	// recent deltas, each entry holds the changes that led to version + 1
+	private ArrayDeque<LinkedHashMap<String, Boolean>> history = new ArrayDeque<LinkedHashMap<String, Boolean>>();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public Roster(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Records a client joining
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @return the messages of the snapshot to send to the client, in order
+	 */
+	public synchronized ArrayList<String> join(String name) {
+		this.pending.put(name, Boolean.TRUE);
+		return this.snapshot();
+	}
+
+	/**
+	 * Records a client leaving
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 */
+	public synchronized void leave(String name) {
+		this.pending.put(name, Boolean.FALSE);
+	}
+
+	/**
+	 * Gives the snapshot of the current version of the roster, split into parts
+	 * if the names do not fit in one frame
+	 * 
+	 * @return the messages of the snapshot, in order
+	 */
+	public synchronized ArrayList<String> snapshot() {
+		
+		ArrayList<String> parts = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		int bytes = 0;
+		
+		for (String name : this.online) {
+			int length = 1 + ServerConnection.encodeUTF(name).length;
+			if (bytes + length > PART_BYTES) {
+				parts.add(ChatProtocol.CONTROL + ChatProtocol.NAMES + this.version + sb);
+				sb.setLength(0);
+				bytes = 0;
+			}
+			sb.append('\n').append(name);
+			bytes += length;
+		}
+		parts.add(ChatProtocol.CONTROL + ChatProtocol.ROSTER + this.version + sb);
+		return parts;
+	}
+
+	/**
+	 * Merges the deltas since a version into one, or gives a snapshot if the
+	 * version is too old to have its deltas kept or they do not fit in one frame
+	 * 
+	 * @param since
+	 * 		the last version the client has
+	 * @return the messages to send to the client, in order
+	 */
+	public synchronized ArrayList<String> changesSince(long since) {
+		
+		long oldest = this.version - this.history.size();
+		if (since < oldest || since > this.version) {
+			return this.snapshot();
+		}
+		
+		LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+		Iterator<LinkedHashMap<String, Boolean>> deltas = this.history.iterator();
+		
+		for (long v = oldest; deltas.hasNext(); v++) {
+			LinkedHashMap<String, Boolean> delta = deltas.next();
+			if (v >= since) {
+				changes.putAll(delta);
+			}
+		}
+		if (split(changes).size() > 1) {
+			return this.snapshot();
+		}
+		
+		ArrayList<String> messages = new ArrayList<String>();
+		messages.add(delta(since, this.version, changes));
+		return messages;
+	}
+
+	/**
+	 * @return the number of clients online
+	 */
+	public synchronized int size() {
+		return this.online.size();
+	}
+
+	/**
+	 * Sends the changes collected over the last window to all clients as a single
+	 * delta, or as one delta per version if they do not fit in one frame. Changes
+	 * that cancel out, such as a quick reconnect, are dropped.
+	 */
+	public void run() {
+		
+		ArrayList<String> messages = new ArrayList<String>();
+		
+		synchronized (this) {
+			LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+			
+			for (Map.Entry<String, Boolean> change : this.pending.entrySet()) {
+				if (change.getValue().booleanValue() != this.online.contains(change.getKey())) {
+					changes.put(change.getKey(), change.getValue());
+				}
+			}
+			this.pending.clear();
+			
+			if (changes.isEmpty()) {
+				return;
+			}
+			
+			for (LinkedHashMap<String, Boolean> part : split(changes)) {
+				for (Map.Entry<String, Boolean> change : part.entrySet()) {
+					if (change.getValue().booleanValue()) {
+						this.online.add(change.getKey());
+					} else {
+						this.online.remove(change.getKey());
+					}
+				}
+				
+				this.history.addLast(part);
+				if (this.history.size() > HISTORY) {
+					this.history.removeFirst();
+				}
+				
+				this.version++;
+				messages.add(delta(this.version - 1, this.version, part));
+			}
+		}
+		
+		for (String message : messages) {
+			this.server.sendToAllClients(message);
+		}
+	}
+
+	/**
+	 * Splits changes into parts that each fit in one delta
+	 * 
+	 * @param changes
+	 * 		the names that changed, true for a join
+	 * @return the parts, in order
+	 */
+	private static ArrayList<LinkedHashMap<String, Boolean>> split(LinkedHashMap<String, Boolean> changes) {
+		
+		ArrayList<LinkedHashMap<String, Boolean>> parts = new ArrayList<LinkedHashMap<String, Boolean>>();
+		LinkedHashMap<String, Boolean> part = new LinkedHashMap<String, Boolean>();
+		int bytes = 0;
+		
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			int length = 2 + ServerConnection.encodeUTF(change.getKey()).length;
+			if (bytes + length > PART_BYTES) {
+				parts.add(part);
+				part = new LinkedHashMap<String, Boolean>();
+				bytes = 0;
+			}
+			part.put(change.getKey(), change.getValue());
+			bytes += length;
+		}
+		parts.add(part);
+		return parts;
+	}
+
+	/**
+	 * Builds a delta message
+	 * 
+	 * @param from
+	 * 		the version the delta applies to
+	 * @param to
+	 * 		the version the delta leads to
+	 * @param changes
+	 * 		the names that changed, true for a join
+	 * @return the message
+	 */
+	private static String delta(long from, long to, LinkedHashMap<String, Boolean> changes) {
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(ChatProtocol.CONTROL).append(ChatProtocol.PRESENCE).append(from).append(' ').append(to);
+		
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			sb.append('\n').append(change.getValue().booleanValue() ? '+' : '-').append(change.getKey());
+		}
+		return sb.toString();
+	}
+}
+
+/**
+ * A hierarchical timer wheel. Each level is a ring of SLOTS slots, a slot of
+ * the first level lasting one tick and a slot of each level above lasting a
+ * whole turn of the level below. A timer goes in the slot of the lowest level
+ * whose turn reaches it, so adding or cancelling one is O(1) however many are
+ * pending. When a level comes round to its first slot the next slot of the
+ * level above is emptied down into it, so each timer is moved at most once per
+ * level, and each tick only looks at the timers due on it. With 256 slots a
+ * level and 100 ms ticks, four levels reach over 13 years; timers further off
+ * wait in the last slot of the top level and are put back when it comes round.
+ * 
+ * @author alfiewn
+ *
+ */
+class TimerWheel {
+
+	public static final int LEVELS = 4;
+	private static final int BITS = 8;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	/**
+	 * A pending timer, linked into the slot it waits in
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	static class Timer {
+
+		private long due;
+		private Runnable task;
+		private Timer previous;
+		private Timer next;
+		private int level = -1;
+		private int slot;
+	}
+
+	private long tickNanos;
+	private long started = System.nanoTime();
+	private long tick;
+	private int size;
+	private Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param tickMillis
+	 * 		how long each tick lasts
+	 */
+	public TimerWheel(long tickMillis) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	}
+
+	/**
+	 * Adds a timer, which runs on the first tick at or after the delay
+	 * 
+	 * @param delayMillis
+	 * 		how long until the task is due
+	 * @param task
+	 * 		the task to run
+	 * @return the timer, to cancel it
+	 */
+	public synchronized Timer add(long delayMillis, Runnable task) {
+		
+		// due from the clock rather than the last tick, which lags behind it until
+		// the wheel is next advanced, so the timer cannot run early
+		long due = System.nanoTime() - this.started + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		Timer timer = new Timer();
+		timer.task = task;
+		timer.due = Math.max(this.tick + 1, (due + this.tickNanos - 1) / this.tickNanos);
+		this.place(timer);
+		this.size++;
+		return timer;
+	}
+
+	/**
+	 * Cancels a timer that has not yet run
+	 * 
+	 * @param timer
+	 * 		the timer
+	 * @return whether it was pending
+	 */
+	public synchronized boolean cancel(Timer timer) {
+		
+		if (timer.level < 0) {
+			return false;
+		}
+		this.unlink(timer);
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * Moves the wheel on to the current time, ticking over every slot on the
+	 * way, and takes out the timers that are due
+	 * 
+	 * @return the tasks of the timers that are due, to be run by the caller
+	 */
+	public synchronized ArrayList<Runnable> advance() {
+		
+		ArrayList<Runnable> due = new ArrayList<Runnable>();
+		long now = (System.nanoTime() - this.started) / this.tickNanos;
+		
+		while (this.tick < now) {
+			this.tick++;
+			
+			// empty the slots above that have come round, from the top down
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((this.tick & ((1L << (BITS * level)) - 1)) == 0) {
+					Timer timer = this.slots[level][(int) ((this.tick >> (BITS * level)) & MASK)];
+					while (timer != null) {
+						Timer next = timer.next;
+						this.unlink(timer);
+						this.place(timer);
+						timer = next;
+					}
+				}
+			}
+			
+			Timer timer = this.slots[0][(int) (this.tick & MASK)];
+			while (timer != null) {
+				Timer next = timer.next;
+				this.unlink(timer);
+				if (timer.due <= this.tick) {
+					due.add(timer.task);
+					this.size--;
+				} else {
+					this.place(timer);
+				}
+				timer = next;
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * @return the number of pending timers
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Links a timer into the slot of the lowest level whose turn reaches it
+	 * 
+	 * @param timer
+	 * 		the timer
+	 */
+	private void place(Timer timer) {
+		
+		long due = Math.min(timer.due, this.tick + SPAN - 1);
+		long delta = due - this.tick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		
+		timer.level = level;
+		timer.slot = (int) ((due >> (BITS * level)) & MASK);
+		timer.previous = null;
+		timer.next = this.slots[level][timer.slot];
+		if (timer.next != null) {
+			timer.next.previous = timer;
+		}
+		this.slots[level][timer.slot] = timer;
+	}
+
+	/**
+	 * Takes a timer out of its slot
+	 * 
+	 * @param timer
+	 * 		the timer
+	 */
+	private void unlink(Timer timer) {
+		
+		if (timer.previous == null) {
+			this.slots[timer.level][timer.slot] = timer.next;
+		} else {
+			timer.previous.next = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+		timer.level = -1;
+	}
+}
+
+/**
+ * Chat lines clients have scheduled to be sent later, once or over and over,
+ * held on a timer wheel ticked by the timers of the server. When a line is due
+ * it is sent to the lobby like any other chat line, so when many are due at
+ * once they are packed into digests by the room rather than sent as a burst.
+ * A client can have at most MAX_PER_CLIENT lines pending.
+ * 
+ * Pending lines are kept in a journal in the spool directory, a record for
+ * each line scheduled and for each cancelled or sent, written on a thread of
+ * its own. When the server starts it reads the journal back, schedules the
+ * lines again for the times they were due, and writes a fresh journal of only
+ * those still pending. Lines that fell due while the server was down are sent
+ * straight away, and repeating lines carry on from their next time.
+ * 
+ * @author alfiewn
+ *
+ */
+class Scheduler implements Runnable {
+
+	public static final long TICK_MILLIS = 100;
+	public static final long MIN_PERIOD_MILLIS = 1000;
+	public static final int MAX_PER_CLIENT = 100;
+	
+	private static final int ADD = 1;
+	private static final int REMOVE = 2;
+
+	private ChatServer server;
+	private TimerWheel wheel = new TimerWheel(TICK_MILLIS);
+	private ConcurrentHashMap<Long, Post> posts = new ConcurrentHashMap<Long, Post>();
+	private ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+	private AtomicLong ids = new AtomicLong();
+	private LongAdder sent = new LongAdder();
+	
+	// the journal and the thread writing to it, which flushes when it catches up
+	private File file;
+	private DataOutputStream journal;
+	private ExecutorService writer = Executors.newSingleThreadExecutor();
+	private AtomicInteger waiting = new AtomicInteger();
+	private volatile IOException failed;
+
+	/**
+	 * A chat line waiting to be sent
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	private class Post implements Runnable {
+
+		private long id;
+		private String name;
+		private String text;
+		private long due;
+		private long period;
+		private TimerWheel.Timer timer;
+
+		/**
+		 * Sends the line and schedules it again if it repeats
+		 */
+		public void run() {
+			send(this);
+		}
+	}
+
+	/**
+	 * Constructor method, reads back the lines pending when the server stopped
+	 * and starts a fresh journal
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param file
+	 * 		the journal
+	 * @throws IOException
+	 * 		if the journal cannot be written
+	 */
+	public Scheduler(ChatServer server, File file) throws IOException {
+		this.server = server;
+		this.file = file;
+		
+		LinkedHashMap<Long, Post> pending = this.read();
+		long now = System.currentTimeMillis();
+		for (Post post : pending.values()) {
+			if (post.period > 0 && post.due < now) {
+				post.due += ((now - post.due) / post.period + 1) * post.period;
+			}
+			this.count(post.name).incrementAndGet();
+			this.start(post, now);
+		}
+		
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create " + parent);
+		}
+		File fresh = new File(parent, file.getName() + ".new");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fresh)))) {
+			for (Post post : pending.values()) {
+				write(out, post);
+			}
+		}
+		Files.move(fresh.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		
+		if (!pending.isEmpty()) {
+			server.log("Scheduled lines: " + pending.size() + " read back from " + file);
+		}
+	}
+
+	/**
+	 * Reads the journal, which may end part way through a record if the server
+	 * stopped while writing it
+	 * 
+	 * @return the lines still pending, by id
+	 * @throws IOException
+	 * 		if the journal cannot be read
+	 */
+	private LinkedHashMap<Long, Post> read() throws IOException {
+		
+		LinkedHashMap<Long, Post> pending = new LinkedHashMap<Long, Post>();
+		if (!this.file.isFile()) {
+			return pending;
+		}
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+			while (true) {
+				int type = in.read();
+				if (type == ADD) {
+					Post post = new Post();
+					post.id = in.readLong();
+					post.due = in.readLong();
+					post.period = in.readLong();
+					post.name = in.readUTF();
+					post.text = in.readUTF();
+					pending.put(post.id, post);
+					this.ids.set(Math.max(this.ids.get(), post.id));
+				} else if (type == REMOVE) {
+					pending.remove(in.readLong());
+				} else {
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			//the last record was cut short
+		}
+		return pending;
+	}
+
+	/**
+	 * Schedules a chat line
+	 * 
+	 * @param name
+	 * 		the name of the client sending it
+	 * @param text
+	 * 		the chat line, without the name
+	 * @param delay
+	 * 		how long until it is sent, in milliseconds
+	 * @param period
+	 * 		how often it is sent again, in milliseconds, or 0 to send it once
+	 * @return the id of the line, or -1 if the client already has MAX_PER_CLIENT
+	 * 		lines pending
+	 */
+	public long schedule(String name, String text, long delay, long period) {
+		
+		AtomicInteger count = this.count(name);
+		if (count.incrementAndGet() > MAX_PER_CLIENT) {
+			count.decrementAndGet();
+			return -1;
+		}
+		
+		long now = System.currentTimeMillis();
+		Post post = new Post();
+		post.id = this.ids.incrementAndGet();
+		post.name = name;
+		post.text = text;
+		post.due = now + delay;
+		post.period = period;
+		
+		this.start(post, now);
+		this.journal(ADD, post);
+		return post.id;
+	}
+
+	/**
+	 * Cancels a line scheduled by a client
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @param id
+	 * 		the id of the line
+	 * @return whether the client had a line pending with that id
+	 */
+	public boolean cancel(String name, long id) {
+		
+		Post post = this.posts.get(id);
+		if (post == null || !post.name.equals(name) || !this.remove(post)) {
+			return false;
+		}
+		this.wheel.cancel(post.timer);
+		return true;
+	}
+
+	/**
+	 * Takes a line out of those pending and out of the journal
+	 * 
+	 * @param post
+	 * 		the line
+	 * @return whether it was still pending
+	 */
+	private boolean remove(Post post) {
+		
+		if (!this.posts.remove(post.id, post)) {
+			return false;
+		}
+		this.count(post.name).decrementAndGet();
+		this.journal(REMOVE, post);
+		return true;
+	}
+
+	/**
+	 * @param name
+	 * 		the name of a client
+	 * @return the number of lines the client has pending
+	 */
+	private AtomicInteger count(String name) {
+		
+		AtomicInteger count = this.counts.get(name);
+		if (count == null) {
+			AtomicInteger fresh = new AtomicInteger();
+			count = this.counts.putIfAbsent(name, fresh);
+			if (count == null) {
+				count = fresh;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Lists the lines a client has scheduled
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @return the list to show the client
+	 */
+	public String describe(String name) {
+		
+		StringBuilder sb = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (Post post : this.posts.values()) {
+			if (post.name.equals(name)) {
+				sb.append('\n').append(post.id).append(": in ").append(Math.max(0, post.due - now) / 1000).append('s');
+				if (post.period > 0) {
+					sb.append(", then every ").append(post.period / 1000).append('s');
+				}
+				sb.append(", ").append(post.text);
+			}
+		}
+		return sb.length() == 0 ? "You have nothing scheduled" : "Scheduled:" + sb;
+	}
+
+	/**
+	 * Ticks the wheel over and sends the lines that are due
+	 */
+	public void run() {
+		for (Runnable post : this.wheel.advance()) {
+			post.run();
+		}
+	}
+
+	/**
+	 * Puts a line on the wheel for the time it is due
+	 * 
+	 * @param post
+	 * 		the line
+	 * @param now
+	 * 		the time in milliseconds
+	 */
+	private void start(Post post, long now) {
+		this.posts.put(post.id, post);
+		post.timer = this.wheel.add(post.due - now, post);
+	}
+
+	/**
+	 * Sends a line that is due to the lobby, then puts it back on the wheel if
+	 * it repeats or takes it out of the journal if it does not
+	 * 
+	 * @param post
+	 * 		the line
+	 */
+	private void send(Post post) {
+		
+		if (this.posts.get(post.id) != post) {
+			return;
+		}
+		
+		String line = "<" + post.name + "> " + post.text;
+		ByteBuffer frame = this.server.encodeFrame(line);
+		if (frame == null) {
+			this.server.log("A scheduled line from " + post.name + " was too long to send");
+			this.remove(post);
+			return;
+		}
+		if (this.server.getOptions().logMessages) {
+			this.server.log(line);
+		}
+		long seq = this.server.sendLineToAllClients(frame);
+		this.server.getBuffers().release(frame);
+		byte[] text = ServerConnection.encodeUTF(post.text);
+		this.server.getReplication().line(seq, post.name, text);
+		this.server.getLobby().getHistory().record(post.name, text);
+		this.server.getPlugins().message(post.name, text);
+		if (post.text.indexOf('@') >= 0) {
+			this.server.getOffline().mentions(post.name, text);
+		}
+		this.sent.increment();
+		
+		if (post.period > 0) {
+			post.due += post.period;
+			post.timer = this.wheel.add(post.due - System.currentTimeMillis(), post);
+		} else {
+			this.remove(post);
+		}
+	}
+
+	/**
+	 * Hands a record to the thread writing the journal
+	 * 
+	 * @param type
+	 * 		ADD or REMOVE
+	 * @param post
+	 * 		the line
+	 */
+	private void journal(final int type, final Post post) {
+		
+		this.waiting.incrementAndGet();
+		this.writer.execute(new Runnable() {
+			public void run() {
+				try {
+					if (type == ADD) {
+						write(journal, post);
+					} else {
+						journal.writeByte(REMOVE);
+						journal.writeLong(post.id);
+					}
+					
+					if (waiting.decrementAndGet() == 0) {
+						journal.flush();
+					}
+				} catch (IOException e) {
+					failed = e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the record of a line being scheduled
+	 * 
+	 * @param out
+	 * 		the journal
+	 * @param post
+	 * 		the line
+	 * @throws IOException
+	 * 		if the journal cannot be written
+	 */
+	private static void write(DataOutputStream out, Post post) throws IOException {
+		out.writeByte(ADD);
+		out.writeLong(post.id);
+		out.writeLong(post.due);
+		out.writeLong(post.period);
+		out.writeUTF(post.name);
+		out.writeUTF(post.text);
+	}
+
+	@Override
+	public String toString() {
+		IOException failed = this.failed;
+		return this.wheel.size() + " pending, " + this.sent.sum() + " sent"
+				+ (failed == null ? "" : ", the last journal write failed: " + failed.getMessage());
+	}
+}
+
+/**
+ * Keeps the last chat lines sent to the lobby, with the sequence numbers they
+ * were sent under, and the last line each client has acknowledged. A client
+ * that loses its connection, reconnects and sends resume after its name is
+ * sent the lines it missed, from the line after the last it acknowledged up to
+ * the line before it joined again.
+ * 
+ * A server started with -csreplica also ships both to standby servers. A
+ * standby started with -csstandby connects to that port, is sent all that is
+ * kept, then each line and acknowledgement as it happens and a heartbeat every
+ * HEARTBEAT_MILLIS. It adds the lines to its own history, so searches carry on
+ * working once it takes over. When the primary has not been heard from for the
+ * failover time and cannot be reached again, the standby takes over. It opens
+ * its own port to clients and numbers lines on from the last the primary sent,
+ * so clients can resume on it. Records are written to each standby on a
+ * thread of its own, and a standby that falls MAX_BACKLOG records behind is
+ * dropped and has to connect again.
+ * 
+ * Before anything is shipped the primary and the standby each prove they know
+ * the key given by -csreplicakey, by answering a random nonce from the other
+ * with a MAC of it, so the key itself is never sent. Without a key the port is
+ * only bound on the loopback address. With -cstls the link runs over TLS, with
+ * the key store and trust store the servers use for clients.
+ * 
+ * @author alfiewn
+ *
+ */
+class Replication implements Runnable {
+
+	public static final long HEARTBEAT_MILLIS = 500;
+	public static final long EXPIRE_MINUTES = 1;
+	private static final int MAX_BACKLOG = 64 * 1024;
+	
+	private static final int LINE = 1;
+	private static final int POSITION = 2;
+	private static final int HEARTBEAT = 3;
+	
+	private static final int NONCE_BYTES = 16;
+	private static final int HANDSHAKE_MILLIS = 5000;
+	private static final String PRIMARY = "primary ";
+	private static final String STANDBY = "standby ";
+
+	private ChatServer server;
+	private int size;
+	
+	// the kept lines, each in the slot its sequence number falls in, replacing
+	// an older line there without a lock. Records are only shipped, under the
+	// lock, while there are standbys, and a standby connecting is added before
+	// it is sent what is kept, so it misses no line.
+	private AtomicReferenceArray<Entry> lines;
+	private ConcurrentHashMap<String, Long> positions = new ConcurrentHashMap<String, Long>();
+	private volatile Standby[] standbys = new Standby[0];
+	
+	private LongAdder resumed = new LongAdder();
+	private LongAdder replayed = new LongAdder();
+	private LongAdder received = new LongAdder();
+	private volatile String following;
+	
+	// heartbeats go out on a thread of their own, so a standby only takes over
+	// when this server has stopped, not when its timers are held up
+	private ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * A chat line, or the last line a client has acknowledged when it has no text
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	private static class Entry {
+
+		private long seq;
+		private long time;
+		private String name;
+		private byte[] text;
+
+		/**
+		 * Constructor method, sets default fields
+		 * 
+		 * @param seq
+		 * 		the sequence number of the line
+		 * @param time
+		 * 		the time the line was sent, in milliseconds
+		 * @param name
+		 * 		the name of the client
+		 * @param text
+		 * 		the encoded line without the name, or null
+		 */
+		public Entry(long seq, long time, String name, byte[] text) {
+			this.seq = seq;
+			this.time = time;
+			this.name = name;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * A standby connected to this server, written to on a thread of its own
+	 * 
+	 * @author alfiewn
+	 *
+	 */
+	private class Standby {
+
+		private Socket socket;
+		private DataOutputStream out;
+		private ExecutorService writer = Executors.newSingleThreadExecutor();
+		private AtomicInteger waiting = new AtomicInteger();
+		private int limit = MAX_BACKLOG;
+		private AtomicBoolean closed = new AtomicBoolean();
+
+		/**
+		 * Constructor method, sets default fields
+		 * 
+		 * @param socket
+		 * 		the connection from the standby
+		 * @throws IOException
+		 * 		if the connection has closed
+		 */
+		public Standby(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		}
+
+		/**
+		 * Hands a record to the writer thread, or drops the standby if it is too
+		 * far behind
+		 * 
+		 * @param type
+		 * 		LINE, POSITION or HEARTBEAT
+		 * @param entry
+		 * 		the line or position, or the last sequence number for a heartbeat
+		 */
+		public void write(final int type, final Entry entry) {
+			
+			if (this.closed.get()) {
+				return;
+			}
+			if (this.waiting.incrementAndGet() > this.limit) {
+				this.drop("it fell " + this.limit + " records behind");
+				return;
+			}
+			
+			this.writer.execute(new Runnable() {
+				public void run() {
+					try {
+						out.writeByte(type);
+						out.writeLong(entry.seq);
+						if (type != HEARTBEAT) {
+							out.writeUTF(entry.name);
+						}
+						if (type == LINE) {
+							out.writeLong(entry.time);
+							out.writeShort(entry.text.length);
+							out.write(entry.text);
+						}
+						
+						if (waiting.decrementAndGet() == 0) {
+							out.flush();
+						}
+					} catch (IOException e) {
+						drop(e.getMessage());
+					}
+				}
+			});
+		}
+
+		/**
+		 * Closes the connection to the standby and stops shipping to it
+		 * 
+		 * @param reason
+		 * 		why the standby was dropped
+		 */
+		public void drop(String reason) {
+			
+			if (!this.closed.compareAndSet(false, true)) {
+				return;
+			}
+			this.writer.shutdownNow();
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				//the standby has gone anyway
+			}
+			remove(this);
+			server.log("Standby " + this.socket.getRemoteSocketAddress() + " dropped, " + reason);
+		}
+	}
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param size
+	 * 		the number of chat lines to keep
+	 */
+	public Replication(ChatServer server, int size) {
+		this.server = server;
+		this.size = Math.max(1, size);
+		this.lines = new AtomicReferenceArray<Entry>(this.size);
+	}
+
+	/**
+	 * Starts sending heartbeats to the standbys, and expiring the positions no
+	 * longer needed
+	 */
+	public void start() {
+		this.heartbeats.scheduleWithFixedDelay(this, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+		this.heartbeats.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expire();
+			}
+		}, EXPIRE_MINUTES, EXPIRE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Keeps a chat line sent to the lobby and ships it to the standbys
+	 * 
+	 * @param seq
+	 * 		the sequence number the line was sent under
+	 * @param name
+	 * 		the name of the client that sent it
+	 * @param text
+	 * 		the encoded line without the name
+	 */
+	public void line(long seq, String name, byte[] text) {
+		this.add(new Entry(seq, System.currentTimeMillis(), name, text));
+	}
+
+	/**
+	 * Keeps the last line a client has acknowledged and ships it to the standbys
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @param seq
+	 * 		the sequence number of the line
+	 */
+	public void position(String name, long seq) {
+		
+		this.positions.put(name, seq);
+		if (this.standbys.length > 0) {
+			this.ship(POSITION, new Entry(seq, 0, name, null));
+		}
+	}
+
+	/**
+	 * Keeps a chat line in the slot of its sequence number, unless a line as new
+	 * is already there, and ships it to the standbys if there are any. Lines only
+	 * drop out when a line the size later takes their slot.
+	 * 
+	 * @param entry
+	 * 		the line
+	 * @return whether it was new
+	 */
+	private boolean add(Entry entry) {
+		
+		int slot = (int) (entry.seq % this.size);
+		Entry kept;
+		do {
+			kept = this.lines.get(slot);
+			if (kept != null && kept.seq >= entry.seq) {
+				return false;
+			}
+		} while (!this.lines.compareAndSet(slot, kept, entry));
+		
+		if (this.standbys.length > 0) {
+			this.ship(LINE, entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Ships a record to every standby, under the lock so records are handed to
+	 * each standby in the same order
+	 * 
+	 * @param type
+	 * 		LINE or POSITION
+	 * @param entry
+	 * 		the line or position
+	 */
+	private synchronized void ship(int type, Entry entry) {
+		for (Standby standby : this.standbys) {
+			standby.write(type, entry);
+		}
+	}
+
+	/**
+	 * @return the kept lines, oldest first
+	 */
+	private ArrayList<Entry> kept() {
+		
+		ArrayList<Entry> kept = new ArrayList<Entry>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			Entry entry = this.lines.get(i);
+			if (entry != null) {
+				kept.add(entry);
+			}
+		}
+		kept.sort(new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.seq, b.seq);
+			}
+		});
+		return kept;
+	}
+
+	/**
+	 * Forgets the last line acknowledged by each client that is not connected,
+	 * once that line is no longer kept. A client that returns after that is told
+	 * the server has no record of what it received, as it would have been sent
+	 * no more than the kept lines anyway.
+	 */
+	private void expire() {
+		
+		long oldest = this.server.getLobby().lastSequence() - this.size;
+		Iterator<Map.Entry<String, Long>> positions = this.positions.entrySet().iterator();
+		while (positions.hasNext()) {
+			Map.Entry<String, Long> position = positions.next();
+			if (position.getValue() < oldest && this.server.findByName(position.getKey()) == null) {
+				positions.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sends a client that has reconnected the lines it missed, from the line after
+	 * the last it acknowledged up to the last line sent before it joined. The
+	 * lines after that have already been sent to it.
+	 * 
+	 * @param sc
+	 * 		the connection of the client
+	 */
+	public void resume(ServerConnection sc) {
+		
+		Long position = this.positions.get(sc.getName());
+		if (position == null) {
+			sc.sendToClient("Reconnected, the server has no record of the messages you had received");
+			return;
+		}
+		
+		long joined = sc.joinedSeq;
+		if (sc.ackedSeq < 0) {
+			sc.joinedSeq = Math.min(joined, position);
+		}
+		
+		long first = Math.max(position + 1, joined - this.size + 1);
+		boolean dropped = first > position + 1;
+		int missed = 0;
+		BufferPool buffers = this.server.getBuffers();
+		
+		for (long seq = first; seq <= joined; seq++) {
+			Entry entry = this.lines.get((int) (seq % this.size));
+			if (entry == null || entry.seq != seq) {
+				dropped |= entry != null && entry.seq > seq;
+				continue;
+			}
+			byte[] prefix = ServerConnection.encodeUTF("<" + entry.name + "> ");
+			ByteBuffer frame = buffers.acquire(2 + prefix.length + entry.text.length);
+			frame.putShort((short) (prefix.length + entry.text.length));
+			frame.put(prefix);
+			frame.put(entry.text);
+			frame.flip();
+			sc.sendToClient(frame, entry.seq);
+			buffers.release(frame);
+			missed++;
+		}
+		
+		this.resumed.increment();
+		this.replayed.add(missed);
+		sc.sendToClient("Reconnected, " + missed + " messages you missed were sent"
+				+ (dropped ? ", older ones are no longer kept" : ""));
+	}
+
+	/**
+	 * Accepts standbys on a port, on a thread of its own
+	 * 
+	 * @param port
+	 * 		the port standbys connect to
+	 * @throws IOException
+	 * 		if the port could not be bound
+	 */
+	public void listen(int port) throws IOException {
+		
+		String key = this.server.getOptions().replicaKey;
+		InetAddress address = key == null ? InetAddress.getLoopbackAddress() : null;
+		SSLContext context = this.server.sslContext;
+		
+		final ServerSocket listener = context == null ? new ServerSocket(port, 50, address)
+				: context.getServerSocketFactory().createServerSocket(port, 50, address);
+		this.server.log("Standbys can connect on port " + port + (context == null ? "" : " over TLS")
+				+ (key == null ? ", from this host only as no -csreplicakey was given" : ""));
+		
+		new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						admit(listener.accept());
+					} catch (IOException e) {
+						server.log("Could not accept a standby: " + e.getMessage());
+					}
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Checks that a standby that has connected knows the key, on a thread of its
+	 * own so a standby that never answers does not hold up the others, then
+	 * starts shipping to it
+	 * 
+	 * @param socket
+	 * 		the connection from the standby
+	 */
+	private void admit(final Socket socket) {
+		
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					socket.setSoTimeout(HANDSHAKE_MILLIS);
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					
+					byte[] nonce = nonce();
+					out.write(nonce);
+					out.flush();
+					
+					byte[] theirs = new byte[NONCE_BYTES];
+					in.readFully(theirs);
+					byte[] proof = new byte[prove(STANDBY, nonce).length];
+					in.readFully(proof);
+					if (!MessageDigest.isEqual(proof, prove(STANDBY, nonce))) {
+						server.log("Refused a standby from " + socket.getRemoteSocketAddress()
+								+ ", it does not know the replica key");
+						socket.close();
+						return;
+					}
+					out.write(prove(PRIMARY, theirs));
+					out.flush();
+					
+					socket.setSoTimeout(0);
+					connect(socket);
+				} catch (IOException e) {
+					server.log("Could not accept a standby from " + socket.getRemoteSocketAddress() + ", " + e);
+					try {
+						socket.close();
+					} catch (IOException f) {
+						//the standby has gone anyway
+					}
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Proves to the primary that this standby knows the key, and checks that the
+	 * primary does too
+	 * 
+	 * @param in
+	 * 		the stream from the primary
+	 * @param out
+	 * 		the stream to the primary
+	 * @throws IOException
+	 * 		if the primary refused the standby or does not know the key
+	 */
+	private void join(DataInputStream in, DataOutputStream out) throws IOException {
+		
+		byte[] theirs = new byte[NONCE_BYTES];
+		in.readFully(theirs);
+		
+		byte[] nonce = this.nonce();
+		out.write(nonce);
+		out.write(this.prove(STANDBY, theirs));
+		out.flush();
+		
+		byte[] proof = new byte[prove(PRIMARY, nonce).length];
+		try {
+			in.readFully(proof);
+		} catch (EOFException e) {
+			throw new IOException("the primary does not accept this replica key");
+		}
+		if (!MessageDigest.isEqual(proof, this.prove(PRIMARY, nonce))) {
+			throw new IOException("the primary does not know the replica key");
+		}
+	}
+
+	/**
+	 * @return a random nonce
+	 */
+	private byte[] nonce() {
+		
+		byte[] nonce = new byte[NONCE_BYTES];
+		this.random.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Works out the MAC of a nonce under the replica key, so one side can show
+	 * the other it knows the key without sending it
+	 * 
+	 * @param role
+	 * 		PRIMARY or STANDBY, the side giving the proof, so a proof cannot be sent
+	 * 		back the other way
+	 * @param nonce
+	 * 		the nonce sent by the other side
+	 * @return the MAC
+	 * @throws IOException
+	 * 		if the MAC is not available
+	 */
+	private byte[] prove(String role, byte[] nonce) throws IOException {
+		
+		String key = this.server.getOptions().replicaKey;
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(("replica " + (key == null ? "" : key)).getBytes(StandardCharsets.UTF_8),
+					"HmacSHA256"));
+			mac.update(role.getBytes(StandardCharsets.UTF_8));
+			return mac.doFinal(nonce);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Sends a standby that has connected everything kept so far, then starts
+	 * shipping to it
+	 * 
+	 * @param socket
+	 * 		the connection from the standby
+	 * @throws IOException
+	 * 		if the connection has closed
+	 */
+	private synchronized void connect(Socket socket) throws IOException {
+		
+		socket.setTcpNoDelay(true);
+		Standby standby = new Standby(socket);
+		standby.limit += this.size + this.positions.size();
+		
+		// added first, so a line kept while the rest are sent is shipped to it, if
+		// perhaps twice, which the standby ignores
+		Standby[] standbys = Arrays.copyOf(this.standbys, this.standbys.length + 1);
+		standbys[standbys.length - 1] = standby;
+		this.standbys = standbys;
+		
+		for (Entry entry : this.kept()) {
+			standby.write(LINE, entry);
+		}
+		for (Map.Entry<String, Long> position : this.positions.entrySet()) {
+			standby.write(POSITION, new Entry(position.getValue(), 0, position.getKey(), null));
+		}
+		standby.write(HEARTBEAT, new Entry(this.server.getLobby().lastSequence(), 0, null, null));
+		this.server.log("Standby connected from " + socket.getRemoteSocketAddress());
+	}
+
+	/**
+	 * Stops shipping to a standby that has been dropped
+	 * 
+	 * @param standby
+	 * 		the standby
+	 */
+	private synchronized void remove(Standby standby) {
+		
+		ArrayList<Standby> standbys = new ArrayList<Standby>(Arrays.asList(this.standbys));
+		standbys.remove(standby);
+		this.standbys = standbys.toArray(new Standby[standbys.size()]);
+	}
+
+	/**
+	 * Sends a heartbeat to every standby, carrying the sequence number of the
+	 * last line sent to the lobby
+	 */
+	public void run() {
+		
+		Entry heartbeat = new Entry(this.server.getLobby().lastSequence(), 0, null, null);
+		for (Standby standby : this.standbys) {
+			standby.write(HEARTBEAT, heartbeat);
+		}
+	}
+
+	/**
+	 * @return an unconnected socket to the primary, over TLS if this server uses
+	 * 		it, checking the primary's certificate is for the host it is reached on
+	 * @throws IOException
+	 * 		if the socket cannot be made
+	 */
+	private Socket socket() throws IOException {
+		
+		SSLContext context = this.server.sslContext;
+		if (context == null) {
+			return new Socket();
+		}
+		
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket();
+		SSLParameters parameters = socket.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		socket.setSSLParameters(parameters);
+		return socket;
+	}
+
+	/**
+	 * Stands by for a primary, applying what it ships, until it has not been
+	 * heard from for the failover time and cannot be reached again. Once that
+	 * time has passed the standby connects once more, and only takes over if
+	 * that connection does not bring a record either, so a primary that is slow
+	 * but still running is never taken over from. Retries until the primary has
+	 * been reached once, so a standby can be started first.
+	 * 
+	 * @param primary
+	 * 		the address the primary accepts standbys on
+	 * @param failoverMillis
+	 * 		how long the primary may go unheard before the standby takes over
+	 */
+	public void follow(InetSocketAddress primary, long failoverMillis) {
+		
+		long contact = 0;
+		Room lobby = this.server.getLobby();
+		
+		while (true) {
+			
+			long attempt = System.currentTimeMillis();
+			boolean connected = false;
+			try (Socket socket = this.socket()) {
+				socket.connect(primary, (int) failoverMillis);
+				socket.setSoTimeout((int) failoverMillis);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+				try {
+					this.join(in, new DataOutputStream(socket.getOutputStream()));
+				} catch (IOException e) {
+					this.server.log("Could not follow " + primary + ", " + e.getMessage());
+					throw e;
+				}
+				connected = true;
+				this.following = "following " + primary;
+				this.server.log("Following " + primary);
+				
+				while (true) {
+					int type = in.readUnsignedByte();
+					long seq = in.readLong();
+					contact = System.currentTimeMillis();
+					
+					if (type == LINE) {
+						String name = in.readUTF();
+						long time = in.readLong();
+						byte[] text = new byte[in.readUnsignedShort()];
+						in.readFully(text);
+						
+						if (this.add(new Entry(seq, time, name, text))) {
+							lobby.getHistory().record(name, text, time);
+							this.received.increment();
+						}
+					} else if (type == POSITION) {
+						this.position(in.readUTF(), seq);
+					} else if (type != HEARTBEAT) {
+						throw new IOException("unknown record " + type);
+					}
+					lobby.skipSequence(seq);
+				}
+			} catch (IOException e) {
+				if (connected) {
+					this.server.log("Lost the connection to " + primary);
+				}
+			}
+			
+			if (contact > 0 && contact < attempt && attempt - contact >= failoverMillis) {
+				break;
+			}
+			try {
+				Thread.sleep(HEARTBEAT_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		
+		this.following = "took over from " + primary;
+		this.server.log("Taking over from " + primary + ", not heard from for "
+				+ (System.currentTimeMillis() - contact) + " ms, carrying on after line " + lobby.lastSequence());
+	}
+
+	@Override
+	public String toString() {
+		return this.kept().size() + " lines kept, " + this.positions.size() + " clients tracked, " + this.resumed.sum()
+				+ " resumed with " + this.replayed.sum() + " lines, " + this.standbys.length + " standbys"
+				+ (this.following == null ? "" : ", " + this.following + ", " + this.received.sum() + " lines received");
+	}
+}
+
+/**
+ * Sends each client a read receipt for the last chat line it sent, saying how
+ * many of the other clients have acknowledged receiving it. Runs once a second
+ * on the fan-out pool, gathering the last line each client has acknowledged and
+ * sorting them, so the count for any line is one binary search. Only clients
+ * that send acknowledgements are counted and sent receipts, and a receipt is
+ * only sent when it has changed.
+ * 
+ * @author alfiewn
+ *
+ */
+class ReadReceipts implements Runnable {
+
+	public static final long INTERVAL_MILLIS = 1000;
+
+	private ChatServer server;
+	private long sent;
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public ReadReceipts(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Counts the acknowledgements of the last line each client sent, and sends
+	 * the receipts that have changed
+	 */
+	public void run() {
+		
+		List<Object> connections = this.server.getConnections();
+		long[] acked = new long[connections.size()];
+		int n = 0;
+		
+		for (Object connection : connections) {
+			long seq = ((ServerConnection) connection).ackedSeq;
+			if (seq >= 0 && n < acked.length) {
+				acked[n++] = seq;
+			}
+		}
+		if (n < 2) {
+			return;
+		}
+		Arrays.sort(acked, 0, n);
+		
+		for (Object connection : connections) {
+			ServerConnection sc = (ServerConnection) connection;
+			long seq = sc.lastLineSeq;
+			if (seq == 0 || sc.ackedSeq < 0) {
+				continue;
+			}
+			
+			// the first client to have acknowledged the line, less the sender
+			int from = Arrays.binarySearch(acked, 0, n, seq);
+			if (from < 0) {
+				from = -from - 1;
+			} else {
+				while (from > 0 && acked[from - 1] == seq) {
+					from--;
+				}
+			}
+			int count = n - from - (sc.ackedSeq >= seq ? 1 : 0);
+			
+			if (seq != sc.receiptSeq || count != sc.receiptCount) {
+				sc.receiptSeq = seq;
+				sc.receiptCount = count;
+				sc.sendToClient(ChatProtocol.CONTROL + ChatProtocol.RECEIPT + seq + " " + count + " " + (n - 1));
+				this.sent++;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of receipts sent
+	 */
+	@Override
+	public String toString() {
+		return this.sent + " sent";
+	}
+}
+
+/**
+ * The plugins loaded from the command line, see ChatPlugin. Events are handed
+ * to every plugin without waiting for any of them. Also checks on the timers
+ * for plugins that have spent too long on an event, and interrupts them.
+ * 
+ * @author alfiewn
+ *
+ */
+class Plugins implements Runnable {
+
+	private PluginRunner[] runners;
+
+	/**
+	 * Loads and starts the plugins named in the options of the server. A plugin
+	 * that cannot be loaded, or whose name is taken, is left out.
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 */
+	public Plugins(ChatServer server) {
+		
+		ArrayList<PluginRunner> runners = new ArrayList<PluginRunner>();
+		for (String className : server.getOptions().plugins) {
+			
+			ChatPlugin plugin;
+			try {
+				plugin = Class.forName(className).asSubclass(ChatPlugin.class).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				server.log("Could not load plugin " + className + ": " + e);
+				continue;
+			}
+			
+			if (!server.addClientName(plugin.getName())) {
+				server.log("Could not start plugin " + className + ", the name " + plugin.getName() + " is taken");
+				continue;
+			}
+			
+			PluginRunner runner = new PluginRunner(server, plugin);
+			runner.start();
+			runners.add(runner);
+			server.log("Started plugin " + plugin.getName());
+		}
+		this.runners = runners.toArray(new PluginRunner[runners.size()]);
+	}
+
+	/**
+	 * @return whether no plugins are running
+	 */
+	public boolean isEmpty() {
+		return this.runners.length == 0;
+	}
+
+	/**
+	 * Hands a chat line to every plugin
+	 * 
+	 * @param name
+	 * 		the name of the client that sent it
+	 * @param text
+	 * 		the line in the modified UTF-8 format, without the name prefix, which
+	 * 		is not changed afterwards
+	 */
+	public void message(String name, byte[] text) {
+		for (PluginRunner runner : this.runners) {
+			runner.submit(PluginRunner.MESSAGE, name, text);
+		}
+	}
+
+	/**
+	 * Tells every plugin a client has joined
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 */
+	public void join(String name) {
+		for (PluginRunner runner : this.runners) {
+			runner.submit(PluginRunner.JOIN, name, null);
+		}
+	}
+
+	/**
+	 * Tells every plugin a client has left
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 */
+	public void leave(String name) {
+		for (PluginRunner runner : this.runners) {
+			runner.submit(PluginRunner.LEAVE, name, null);
+		}
+	}
+
+	/**
+	 * Interrupts the plugins that have spent too long on an event
+	 */
+	public void run() {
+		
+		long now = System.nanoTime();
+		for (PluginRunner runner : this.runners) {
+			runner.checkTimeout(now);
+		}
+	}
+
+	/**
+	 * @return the statistics of each plugin, one per line
+	 */
+	@Override
+	public String toString() {
+		
+		StringBuilder sb = new StringBuilder();
+		for (PluginRunner runner : this.runners) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(runner);
+		}
+		return sb.toString();
+	}
+}
+
+/**
+ * Runs the events of one plugin on a thread of its own. Events wait in a queue
+ * while the plugin is busy. When the server sheds load the queue is bounded
+ * and events that do not fit are dropped and counted, otherwise every event is
+ * kept however far behind the plugin falls. The time each event waited and
+ * took to handle is kept in a histogram.
+ * 
+ * @author alfiewn
+ *
+ */
+class PluginRunner implements ChatPlugin.Context {
+
+	static final int START = 0;
+	static final int MESSAGE = 1;
+	static final int JOIN = 2;
+	static final int LEAVE = 3;
+
+	private ChatServer server;
+	private ChatPlugin plugin;
+	private String name;
+	private ThreadPoolExecutor executor;
+	private long timeoutNanos;
+	
+	// the thread of the plugin and when it started the event it is handling, or
+	// 0 when it is idle, watched by the timers
+	private volatile Thread worker;
+	private volatile long started;
+	private long interrupted;
+	
+	private LatencyHistogram waiting = new LatencyHistogram();
+	private LatencyHistogram handling = new LatencyHistogram();
+	private LongAdder handled = new LongAdder();
+	private LongAdder shed = new LongAdder();
+	private LongAdder failed = new LongAdder();
+	private LongAdder timedOut = new LongAdder();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param plugin
+	 * 		the plugin to run
+	 */
+	public PluginRunner(ChatServer server, ChatPlugin plugin) {
+		this.server = server;
+		this.plugin = plugin;
+		this.name = plugin.getName();
+		
+		ServerOptions options = server.getOptions();
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.pluginMillis);
+		
+		BlockingQueue<Runnable> queue = options.pluginShed ? new ArrayBlockingQueue<Runnable>(options.pluginQueue)
+				: new LinkedBlockingQueue<Runnable>();
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "plugin " + name);
+				thread.setDaemon(true);
+				worker = thread;
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts the plugin on its thread
+	 */
+	public void start() {
+		this.submit(START, null, null);
+	}
+
+	/**
+	 * Queues an event for the plugin, or drops it if the queue is full
+	 * 
+	 * @param type
+	 * 		the type of event
+	 * @param client
+	 * 		the name of the client the event is about
+	 * @param text
+	 * 		the chat line of a message
+	 */
+	public void submit(final int type, final String client, final byte[] text) {
+		
+		final long queued = System.nanoTime();
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					handle(type, client, text, queued);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.shed.increment();
+		}
+	}
+
+	/**
+	 * Hands an event to the plugin, timing it
+	 * 
+	 * @param type
+	 * 		the type of event
+	 * @param client
+	 * 		the name of the client the event is about
+	 * @param text
+	 * 		the chat line of a message
+	 * @param queued
+	 * 		when the event was queued, in nanoseconds
+	 */
+	private void handle(int type, String client, byte[] text, long queued) {
+		
+		long start = System.nanoTime();
+		this.waiting.record(start - queued);
+		this.started = start;
+		
+		try {
+			if (type == START) {
+				this.plugin.start(this);
+			} else if (type == MESSAGE) {
+				this.plugin.message(this, client, ServerConnection.decodeUTF(ByteBuffer.wrap(text)));
+			} else if (type == JOIN) {
+				this.plugin.join(this, client);
+			} else {
+				this.plugin.leave(this, client);
+			}
+			this.handled.increment();
+		} catch (RuntimeException e) {
+			this.failed.increment();
+			this.server.log("Plugin " + this.name + " failed: " + e);
+		} finally {
+			this.started = 0;
+			
+			// an interrupt that came too late for this event must not reach the next
+			Thread.interrupted();
+			this.handling.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Interrupts the plugin if it has spent too long on the event it is
+	 * handling, once per event. It is up to the plugin to stop when interrupted.
+	 * 
+	 * @param now
+	 * 		the time in nanoseconds
+	 */
+	void checkTimeout(long now) {
+		
+		long started = this.started;
+		if (started != 0 && started != this.interrupted && now - started > this.timeoutNanos) {
+			this.interrupted = started;
+			this.timedOut.increment();
+			this.worker.interrupt();
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean reply(String client, String text) {
+		
+		ServerConnection sc = this.server.findByName(client);
+		if (sc == null) {
+			return false;
+		}
+		sc.sendToClient("[private] <" + this.name + "> " + text);
+		return true;
+	}
+
+	public void post(String text) {
+		
+		String line = "<" + this.name + "> " + text;
+		if (ServerConnection.encodeUTF(line).length > BufferPool.LARGE_SIZE - 2) {
+			throw new IllegalArgumentException("Line too long to send");
+		}
+		
+		// the filter checks plugins' lines like clients', masking them in place
+		ByteBuffer frame = this.server.encodeFrame(line);
+		int from = frame.limit() - ServerConnection.encodeUTF(text).length;
+		if (!this.server.getFilter().scan(frame, from, frame.limit())) {
+			this.server.getBuffers().release(frame);
+			this.server.log("Plugin " + this.name + " posted a line the filter blocks, it has not been sent");
+			return;
+		}
+		byte[] bytes = new byte[frame.limit() - from];
+		frame.position(from);
+		frame.get(bytes);
+		if (this.server.getOptions().logMessages) {
+			this.server.log("<" + this.name + "> " + ServerConnection.decodeUTF(ByteBuffer.wrap(bytes)));
+		}
+		
+		long seq = this.server.sendLineToAllClients(frame);
+		this.server.getBuffers().release(frame);
+		this.server.getReplication().line(seq, this.name, bytes);
+		this.server.getLobby().getHistory().record(this.name, bytes);
+	}
+
+	@Override
+	public String toString() {
+		return this.name + ": " + this.handled.sum() + " events, " + this.executor.getQueue().size() + " queued, "
+				+ this.shed.sum() + " shed, " + this.failed.sum() + " failed, " + this.timedOut.sum()
+				+ " timed out\n  waiting " + this.waiting + "\n  handling " + this.handling;
+	}
+}
+
+/**
+ * A pool of direct buffers for socket reads and writes, so that frames do not
+ * allocate new arrays and strings for every message. Buffers are sliced from
+ * one slab per size, small buffers for ordinary chat lines and large ones for
+ * frames up to the 64 KB limit. When a size runs out a new buffer is allocated
+ * and counted as a miss; it joins the pool when released if there is room.
+ * 
+ * @author alfiewn
+ *
+ */
+class BufferPool {
+
+	public static final int SMALL_SIZE = 1024;
+	public static final int LARGE_SIZE = 2 + 65535;
+
+	private ArrayBlockingQueue<ByteBuffer> small;
+	private ArrayBlockingQueue<ByteBuffer> large;
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates the pool with the default number of buffers of each size
+	 */
+	public BufferPool() {
+		this(1024, 32);
+	}
+
+	/**
+	 * Constructor method, allocates the slabs and slices them into buffers
+	 * 
+	 * @param smallBuffers
+	 * 		the number of small buffers
+	 * @param largeBuffers
+	 * 		the number of large buffers
+	 */
+	public BufferPool(int smallBuffers, int largeBuffers) {
+		this.small = slice(SMALL_SIZE, smallBuffers);
+		this.large = slice(LARGE_SIZE, largeBuffers);
+	}
+
+	/**
+	 * Allocates a slab of direct memory and slices it into buffers
+	 * 
+	 * @param size
+	 * 		the size of each buffer
+	 * @param count
+	 * 		the number of buffers
+	 * @return the queue of free buffers
+	 */
+	private static ArrayBlockingQueue<ByteBuffer> slice(int size, int count) {
+		
+		ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(count);
+		ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+		
+		for (int i = 0; i < count; i++) {
+			slab.limit((i + 1) * size);
+			slab.position(i * size);
+			free.offer(slab.slice());
+		}
+		return free;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool
+	 * 
+	 * @param size
+	 * 		the number of bytes the buffer must hold
+	 * @return a buffer with at least that capacity
+	 */
+	public ByteBuffer acquire(int size) {
+		
+		boolean isSmall = size <= SMALL_SIZE;
+		ByteBuffer buffer = (isSmall ? this.small : this.large).poll();
+		
+		if (buffer == null) {
+			this.misses.increment();
+			buffer = ByteBuffer.allocateDirect(isSmall ? SMALL_SIZE : LARGE_SIZE);
+		} else {
+			this.hits.increment();
+		}
+		
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers are dropped if the pool is full.
+	 * 
+	 * @param buffer
+	 * 		a buffer taken from the pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == SMALL_SIZE) {
+			this.small.offer(buffer);
+		} else {
+			this.large.offer(buffer);
+		}
+	}
+
+	/**
+	 * @return the number of buffers taken from the pool
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of buffers that had to be allocated
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + this.getHits() + " misses=" + this.getMisses() + " free small="
+				+ this.small.size() + " free large=" + this.large.size();
+	}
+}
+
+/**
+ * Extends ChatServer with additional methods for creating GUI elements and
+ * dealing with eventlisteners for input
+ * 
+ * @author alfiewn
+ *
+ */
+class GUIChatServer extends ChatServer {
+
+	private JFrame frame;
+	private JTextArea textArea;
+	private static GUIChatServer instance;
+
+	/**
+	 * Launch the application, checking for an args entry to change the port
+	 */
+	public static void main(String[] args) {
+		
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				instance = new GUIChatServer(ServerOptions.parse(args));
+				instance.frame.setVisible(true);
+			}
+		});
+	}
+
+	/**
+	 * Initialises GUI elements, defines shutdown procedure and calls the method to
+	 * start the server
+	 * 
+	 * @param options
+	 * 		The options parsed from the command line arguments
+	 */
+	private GUIChatServer(ServerOptions options) {
+
+		super();
+
+		frame = new JFrame();
+		frame.setBounds(100, 100, 450, 300);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.getContentPane().setLayout(null);
+
+		textArea = new JTextArea();
+		textArea.setEditable(false);
+		textArea.setBounds(6, 6, 438, 266);
+		frame.getContentPane().add(textArea);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				shutdownServer();
+			}
+		});
+
+		try {
+			this.configure(options);
+		} catch (GeneralSecurityException e) {
+			this.appendTextArea("Could not start TLS, please check the key store settings\n");
+			return;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		this.startServer(options.port);
+	}
+
+	/**
+	 * Creates a new server socket, outputs instructions to the user. Creates a new
+	 * thread to listen for connections from clients and a new thread to listen
+	 * for an exit command from the command line 
+	 * 
+	 * @param port
+	 * 		The port of the socket
+	 */
+	private void startServer(int port) {
+		
+		try {
+			
+			this.transport = new SocketTransport(port);
+			this.appendTextArea("Listening for connections on port " + port + "\n");
+			textArea.append("To shutdown the server, close this window\n");
+
+			Thread t = new Thread(new ServerInput(this));
+			t.start();
+			
+			ListenForConnection lfc = new ListenForConnection(this, this.transport);
+			Thread t2 = new Thread(lfc);
+			t2.start();
+			
+			if (this.options.sharedMemory) {
+				this.localTransport = new SharedMemoryTransport(SharedMemoryTransport.directoryFor(port));
+				new Thread(new ListenForConnection(this, this.localTransport)).start();
+			}
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Method to output to the text area
+	 * 
+	 * @param input
+	 * 		The message input from  the client
+	 */
+	public void appendTextArea(String input) {
+		textArea.append(input);
+	}
+
+	/**
+	 * outputs a server event to the text area instead of the command line
+	 * 
+	 * @param message
+	 * 		the event to output
+	 */
+	@Override
+	protected void log(String message) {
+		this.appendTextArea(message + "\n");
+	}
+
+}
+
+/**
+ * Listens for and handles new connections from clients
+ * 
+ * @author alfiewn
+ *
+ */
+class ListenForConnection implements Runnable {
+
+	private GUIChatServer server;
+	private Transport transport;
+
+	/**
+	 * Constructor method, sets defualt fields
+	 * 
+	 * @param server
+	 * 		An instance of the gui chatserver
+	 * @param transport
+	 * 		the transport of the gui chatserver
+	 */
+	public ListenForConnection(GUIChatServer server, Transport transport) {
+		this.server = server;
+		this.transport = transport;
+	}
+
+	/**
+	 * Listens for connections from new clients, when received, starts a new
+	 * connection thread. The connection adds itself to the arraylist once its
+	 * name is bound.
+	 */
+	public synchronized void run() {
+		while (!Thread.interrupted()) {
+			try {
+
+				GUIServerConnection sc = new GUIServerConnection(this.transport.accept(), server);
+				server.startConnection(sc);
+
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
+
+/**
+ * Extends the ServerConnection class for clients of the GUI chatserver. Session
+ * handling is shared with ServerConnection, events are output through the GUI
+ * chatserver's log method
+ * 
+ * @author alfiewn
+ *
+ */
+class GUIServerConnection extends ServerConnection implements Runnable {
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param channel
+	 * 		the channel accepted from the transport of the gui chatserver
+	 * @param server
+	 * 		An instancae of the gui chatserver
+	 */
+	public GUIServerConnection(ByteChannel channel, GUIChatServer server) {
+		super(channel, server);
+	}
+}
+
+/**
+ * Spools files shared between clients to disk and sends them on to the clients
+ * that fetch them. Transfers run over file lanes, separate connections opened by
+ * the client with its lane token, so a large file never holds up chat messages
+ * on the client's chat connection.
+ * 
+ * A lane sends a single request as its first message:
+ * 
+ * file put [token] [size] [file name]
+ * 		the server replies "offset [n] [id]" and the client streams the file from
+ * 		byte n. An unfinished upload of the same file by the same client resumes
+ * 		where it stopped. 
+ * file get [token] [id] [offset]
+ * 		the server replies "size [n] [file name]" and streams the file from the
+ * 		offset, straight from the spool file to the socket with transferTo.
+ * 
+ * Any other reply is an error message for the user.
+ * 
+ * Files are dropped by a timer once they have not been written to for the time
+ * to live, along with spool files left behind by an earlier run of the server.
+ * 
+ * @author alfiewn
+ *
+ */
+class FileSpool implements Runnable {
+
+	public static final long MAX_FILE_SIZE = 1L << 30;
+	public static final long EXPIRE_MINUTES = 10;
+	private static final long CHUNK_SIZE = 1 << 20;
+
+	private ChatServer server;
+	private File directory;
+	private long timeToLive;
+	private ConcurrentHashMap<Integer, SpooledFile> files = new ConcurrentHashMap<Integer, SpooledFile>();
+	private AtomicInteger nextId = new AtomicInteger();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param directory
+	 * 		the directory files are spooled to
+	 * @param timeToLive
+	 * 		how long files are kept for, in milliseconds
+	 */
+	public FileSpool(ChatServer server, File directory, long timeToLive) {
+		this.server = server;
+		this.directory = directory;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Drops the files that have not been written to for the time to live, and any
+	 * spool file that does not belong to a file of this run
+	 */
+	public void run() {
+		
+		long expired = System.currentTimeMillis() - this.timeToLive;
+		
+		for (SpooledFile spooled : this.files.values()) {
+			if (spooled.touched < expired) {
+				this.files.remove(spooled.id);
+				spooled.file.delete();
+				this.server.log("Dropped file " + spooled.id + ", " + spooled.fileName);
+			}
+		}
+		
+		// uploads are added to the map before their spool file is created, so
+		// anything else here is left over from before the server restarted
+		File[] found = this.directory.listFiles();
+		if (found != null) {
+			for (File file : found) {
+				if (file.getName().endsWith(".spool") && !this.isTracked(file)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a spool file belongs to a file of this run
+	 * 
+	 * @param file
+	 * 		the spool file
+	 * @return whether the file is in the map
+	 */
+	private boolean isTracked(File file) {
+		
+		for (SpooledFile spooled : this.files.values()) {
+			if (spooled.file.getName().equals(file.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Serves the request sent as the first message of a file lane
+	 * 
+	 * @param lane
+	 * 		the connection of the file lane
+	 * @param request
+	 * 		the request, without the file prefix
+	 */
+	public void serve(ServerConnection lane, String request) {
+		
+		String[] args = request.trim().split(" ", 4);
+		ServerConnection owner = args.length > 1 ? this.server.findByLaneToken(args[1]) : null;
+		
+		try {
+			if (owner == null) {
+				lane.sendToClient("File transfer refused, please reconnect and try again");
+			} else if (args[0].equals("put") && args.length == 4) {
+				this.receive(lane, owner, Long.parseLong(args[2]), args[3]);
+			} else if (args[0].equals("get") && args.length == 4) {
+				this.send(lane, Integer.parseInt(args[2]), Long.parseLong(args[3]));
+			} else {
+				lane.sendToClient("Invalid file request");
+			}
+		} catch (NumberFormatException e) {
+			lane.sendToClient("Invalid file request");
+		} catch (IOException e) {
+			//lane has disconnected, an upload can be resumed
+		}
+	}
+
+	/**
+	 * Spools a file uploaded by a client. The file is read from the lane in chunks
+	 * straight into the spool file. Once it is complete, all clients are told how
+	 * to fetch it.
+	 * 
+	 * @param lane
+	 * 		the connection of the file lane
+	 * @param owner
+	 * 		the connection of the client sharing the file
+	 * @param size
+	 * 		the size of the file in bytes
+	 * @param fileName
+	 * 		the name of the file
+	 * @throws IOException
+	 * 		if the lane disconnects before the file is complete
+	 */
+	private void receive(ServerConnection lane, ServerConnection owner, long size, String fileName)
+			throws IOException {
+		
+		fileName = new File(fileName).getName();
+		
+		if (size < 0 || size > MAX_FILE_SIZE) {
+			lane.sendToClient("Files must be smaller than " + (MAX_FILE_SIZE >> 20) + " MB");
+			return;
+		}
+		
+		SpooledFile spooled = this.findUpload(owner.getName(), fileName, size);
+		
+		synchronized (spooled) {
+			try (FileChannel out = new RandomAccessFile(spooled.file, "rw").getChannel()) {
+				
+				long position = out.size();
+				lane.sendToClient("offset " + position + " " + spooled.id);
+				
+				while (position < size) {
+					long read = out.transferFrom(lane.channel, position, Math.min(CHUNK_SIZE, size - position));
+					if (read <= 0) {
+						throw new IOException("lane closed");
+					}
+					position += read;
+					spooled.touched = System.currentTimeMillis();
+				}
+			}
+			
+			spooled.complete = true;
+		}
+		
+		if (this.files.get(spooled.id) != spooled) {
+			lane.sendToClient("The upload took too long and was dropped, please try again");
+			return;
+		}
+		
+		this.server.log(owner.getName() + " shared " + fileName + " as file " + spooled.id);
+		this.server.sendToAllClients(owner.getName() + " shared " + fileName + " (" + size + " bytes), type /get "
+				+ spooled.id + " to download it");
+	}
+
+	/**
+	 * Finds the unfinished upload of a file so it can be resumed, or starts a new
+	 * one
+	 * 
+	 * @param owner
+	 * 		the name of the client sharing the file
+	 * @param fileName
+	 * 		the name of the file
+	 * @param size
+	 * 		the size of the file in bytes
+	 * @return the spooled file
+	 * @throws IOException
+	 * 		if the spool directory cannot be created
+	 */
+	private synchronized SpooledFile findUpload(String owner, String fileName, long size) throws IOException {
+		
+		for (SpooledFile spooled : this.files.values()) {
+			if (!spooled.complete && spooled.owner.equals(owner) && spooled.fileName.equals(fileName)
+					&& spooled.size == size) {
+				return spooled;
+			}
+		}
+		
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Could not create " + this.directory);
+		}
+		
+		int id = this.nextId.incrementAndGet();
+		SpooledFile spooled = new SpooledFile(id, owner, fileName, size, new File(this.directory, id + ".spool"));
+		
+		// ids start again when the server restarts, so clear out any old spool file
+		spooled.file.delete();
+		this.files.put(id, spooled);
+		return spooled;
+	}
+
+	/**
+	 * Sends a spooled file to a client from the requested offset. The file is
+	 * transferred straight from the spool file to the socket, without being
+	 * copied through the heap.
+	 * 
+	 * @param lane
+	 * 		the connection of the file lane
+	 * @param id
+	 * 		the id of the file
+	 * @param offset
+	 * 		the number of bytes the client already has
+	 * @throws IOException
+	 * 		if the lane disconnects before the file is sent
+	 */
+	private void send(ServerConnection lane, int id, long offset) throws IOException {
+		
+		SpooledFile spooled = this.files.get(id);
+		
+		if (spooled == null || !spooled.complete) {
+			lane.sendToClient("There is no file " + id);
+			return;
+		}
+		
+		try (FileChannel in = new RandomAccessFile(spooled.file, "r").getChannel()) {
+			
+			long position = Math.max(0, Math.min(offset, spooled.size));
+			lane.sendToClient("size " + spooled.size + " " + spooled.fileName);
+			
+			while (position < spooled.size) {
+				position += in.transferTo(position, Math.min(CHUNK_SIZE, spooled.size - position), lane.channel);
+			}
+		}
+	}
+}
+
+/**
+ * A file shared by a client, held in the spool directory
+ * 
+ * @author alfiewn
+ *
+ */
+class SpooledFile {
+
+	int id;
+	String owner;
+	String fileName;
+	long size;
+	File file;
+	volatile boolean complete;
+	volatile long touched = System.currentTimeMillis();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param id
+	 * 		the id clients fetch the file with
+	 * @param owner
+	 * 		the name of the client sharing the file
+	 * @param fileName
+	 * 		the name of the file
+	 * @param size
+	 * 		the size of the file in bytes
+	 * @param file
+	 * 		the spool file
+	 */
+	public SpooledFile(int id, String owner, String fileName, long size, File file) {
+		this.id = id;
+		this.owner = owner;
+		this.fileName = fileName;
+		this.size = size;
+		this.file = file;
+	}
+}
+/**
+ * Holds direct messages and mentions for clients that are offline, and hands
+ * them over when the client next binds its name. Each client that has used the
+ * server has a directory, named after its name in hex, holding its messages in
+ * segment files. A record is the time it was held followed by the message as a
+ * frame, so the segments can be streamed to the client without decoding them.
+ * When a client goes over its quota the oldest segment is dropped, and segments
+ * older than the time to live are dropped by a timer. All of the work runs on
+ * the spooler thread, so the files are only ever touched by one thread.
+ * 
+ * @author alfiewn
+ *
+ */
+class OfflineSpool implements Runnable {
+
+	public static final int SEGMENT_SIZE = 16 * 1024;
+	public static final long COMPACT_MINUTES = 60;
+
+	private ChatServer server;
+	private File directory;
+	private long quota;
+	private long timeToLive;
+	private ExecutorService spooler = Executors.newSingleThreadExecutor();
+	private LongAdder held = new LongAdder();
+	private LongAdder delivered = new LongAdder();
+	private LongAdder dropped = new LongAdder();
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param server
+	 * 		an instance of the chatserver
+	 * @param directory
+	 * 		the directory the client directories are kept in
+	 * @param quota
+	 * 		the most bytes held for each client
+	 * @param timeToLive
+	 * 		how long messages are held for, in milliseconds
+	 */
+	public OfflineSpool(ChatServer server, File directory, long quota, long timeToLive) {
+		this.server = server;
+		this.directory = directory;
+		this.quota = quota;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Registers a client that has bound its name, then streams it the messages
+	 * held for it
+	 * 
+	 * @param sc
+	 * 		the connection of the client
+	 */
+	public void deliver(final ServerConnection sc) {
+		this.spooler.execute(new Runnable() {
+			public void run() {
+				try {
+					stream(sc);
+				} catch (IOException e) {
+					server.log("Could not deliver the messages held for " + sc.getName() + ": " + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a direct message, holding it if the recipient is offline
+	 * 
+	 * @param sender
+	 * 		the connection of the client sending it
+	 * @param recipient
+	 * 		the name of the client it is for
+	 * @param text
+	 * 		the message
+	 */
+	public void direct(final ServerConnection sender, final String recipient, final String text) {
+		this.spooler.execute(new Runnable() {
+			public void run() {
+				
+				String line = "[private] <" + sender.getName() + "> " + text;
+				ServerConnection sc = server.findByName(recipient);
+				
+				if (sc != null) {
+					sc.sendToClient(line);
+					sender.sendToClient("[private to " + recipient + "] " + text);
+				} else if (userDirectory(recipient).isDirectory()) {
+					hold(recipient, line);
+					sender.sendToClient(recipient + " is offline and will get your message when they return");
+				} else {
+					sender.sendToClient("Nobody called " + recipient + " has used this server");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Holds a chat line for each offline client it mentions with an @ in front of
+	 * their name
+	 * 
+	 * @param sender
+	 * 		the name of the client that sent the line
+	 * @param text
+	 * 		the line in the modified UTF-8 format, without the name prefix
+	 */
+	public void mentions(final String sender, final byte[] text) {
+		this.spooler.execute(new Runnable() {
+			public void run() {
+				
+				String line = ServerConnection.decodeUTF(ByteBuffer.wrap(text));
+				ArrayList<String> mentioned = new ArrayList<String>();
+				
+				for (String word : line.split("\\s+")) {
+					String name = word.startsWith("@") ? trimPunctuation(word.substring(1)) : "";
+					if (!name.isEmpty() && !mentioned.contains(name) && server.findByName(name) == null
+							&& userDirectory(name).isDirectory()) {
+						mentioned.add(name);
+						hold(name, "<" + sender + "> " + line);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drops the segments that have outlived the time to live
+	 */
+	public void run() {
+		this.spooler.execute(new Runnable() {
+			public void run() {
+				
+				File[] users = directory.listFiles();
+				long oldest = System.currentTimeMillis() - timeToLive;
+				
+				for (File user : users == null ? new File[0] : users) {
+					for (File segment : segments(user)) {
+						if (segment.lastModified() < oldest) {
+							drop(segment);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends a message to the newest segment of a client, starting a new segment
+	 * when it is full and dropping the oldest while the client is over its quota
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @param line
+	 * 		the message
+	 */
+	private void hold(String name, String line) {
+		
+		File user = userDirectory(name);
+		File[] segments = segments(user);
+		
+		File segment;
+		if (segments.length == 0 || segments[segments.length - 1].length() >= SEGMENT_SIZE) {
+			long next = segments.length == 0 ? 0 : sequence(segments[segments.length - 1]) + 1;
+			segment = new File(user, String.format("%016d.seg", next));
+		} else {
+			segment = segments[segments.length - 1];
+		}
+		
+		byte[] bytes = ServerConnection.encodeUTF(line);
+		ByteBuffer record = ByteBuffer.allocate(8 + 2 + bytes.length);
+		record.putLong(System.currentTimeMillis());
+		record.putShort((short) bytes.length);
+		record.put(bytes);
+		record.flip();
+		
+		try (FileChannel out = new FileOutputStream(segment, true).getChannel()) {
+			while (record.hasRemaining()) {
+				out.write(record);
+			}
+		} catch (IOException e) {
+			this.server.log("Could not hold a message for " + name + ": " + e);
+			return;
+		}
+		this.held.increment();
+		
+		segments = segments(user);
+		long total = 0;
+		for (File s : segments) {
+			total += s.length();
+		}
+		for (int i = 0; i < segments.length - 1 && total > this.quota; i++) {
+			total -= segments[i].length();
+			this.drop(segments[i]);
+		}
+	}
+
+	/**
+	 * Streams the messages held for a client in order, as frames packed into
+	 * pooled buffers, and deletes them once they have been sent. If the
+	 * connection has closed after any batch, as it does when a write fails, the
+	 * segments are kept for the next time the client binds its name. A client on
+	 * a shard has its frames queued rather than written, so only a failure before
+	 * the last batch is queued is seen. The directory of the client is created
+	 * the first time it binds its name.
+	 * 
+	 * @param sc
+	 * 		the connection of the client
+	 * @throws IOException
+	 * 		if a segment cannot be read, or the client has disconnected
+	 */
+	private void stream(ServerConnection sc) throws IOException {
+		
+		File user = userDirectory(sc.getName());
+		if (!user.isDirectory() && !user.mkdirs()) {
+			throw new IOException("Could not create " + user);
+		}
+		
+		File[] segments = segments(user);
+		if (segments.length == 0) {
+			return;
+		}
+		
+		BufferPool buffers = this.server.getBuffers();
+		ByteBuffer batch = buffers.acquire(BufferPool.LARGE_SIZE);
+		long oldest = System.currentTimeMillis() - this.timeToLive;
+		int count = 0;
+		
+		try {
+			for (File segment : segments) {
+				
+				ByteBuffer records = ByteBuffer.allocate((int) segment.length());
+				try (FileChannel in = new FileInputStream(segment).getChannel()) {
+					while (records.hasRemaining()) {
+						if (in.read(records) < 0) {
+							break;
+						}
+					}
+				}
+				records.flip();
+				
+				while (records.remaining() >= 10) {
+					long time = records.getLong();
+					int length = 2 + (records.getShort(records.position()) & 0xFFFF);
+					if (records.remaining() < length) {
+						break;
+					}
+					
+					if (time < oldest) {
+						records.position(records.position() + length);
+						continue;
+					}
+					if (count == 0) {
+						sc.sendToClient("Messages that arrived while you were away:");
+					}
+					if (batch.remaining() < length) {
+						batch.flip();
+						sc.sendToClient(batch);
+						batch.clear();
+						checkOpen(sc);
+					}
+					
+					int limit = records.limit();
+					records.limit(records.position() + length);
+					batch.put(records);
+					records.limit(limit);
+					count++;
+				}
+			}
+			
+			if (batch.position() > 0) {
+				batch.flip();
+				sc.sendToClient(batch);
+				checkOpen(sc);
+			}
+		} finally {
+			buffers.release(batch);
+		}
+		
+		for (File segment : segments) {
+			segment.delete();
+		}
+		this.delivered.add(count);
+	}
+
+	/**
+	 * @param sc
+	 * 		the connection of a client being sent its held messages
+	 * @throws IOException
+	 * 		if the connection has closed, so what was sent may not have arrived
+	 */
+	private static void checkOpen(ServerConnection sc) throws IOException {
+		if (!sc.channel.isOpen()) {
+			throw new IOException("The client disconnected, the messages are still held");
+		}
+	}
+
+	/**
+	 * Finds the segments of a client
+	 * 
+	 * @param user
+	 * 		the directory of the client
+	 * @return the segments, oldest first
+	 */
+	private static File[] segments(File user) {
+		
+		File[] segments = user.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * @param segment
+	 * 		a segment file
+	 * @return the number of the segment
+	 */
+	private static long sequence(File segment) {
+		return Long.parseLong(segment.getName().substring(0, segment.getName().length() - 4));
+	}
+
+	/**
+	 * Deletes a segment that will not be delivered
+	 * 
+	 * @param segment
+	 * 		the segment file
+	 */
+	private void drop(File segment) {
+		if (segment.delete()) {
+			this.dropped.increment();
+		}
+	}
+
+	/**
+	 * Finds the directory of a client. Names are written in hex so that any name
+	 * is a valid file name.
+	 * 
+	 * @param name
+	 * 		the name of the client
+	 * @return the directory
+	 */
+	private File userDirectory(String name) {
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : ServerConnection.encodeUTF(name)) {
+			hex.append(String.format("%02x", b));
+		}
+		return new File(this.directory, hex.toString());
+	}
+
+	/**
+	 * Removes trailing punctuation from a mentioned name, so "@bob," mentions bob
+	 * 
+	 * @param name
+	 * 		the word after the @
+	 * @return the name
+	 */
+	private static String trimPunctuation(String name) {
+		
+		int end = name.length();
+		while (end > 0 && ",.;:!?)".indexOf(name.charAt(end - 1)) >= 0) {
+			end--;
+		}
+		return name.substring(0, end);
+	}
+
+	@Override
+	public String toString() {
+		return this.held.sum() + " held, " + this.delivered.sum() + " delivered, " + this.dropped.sum()
+				+ " segments dropped";
+	}
+}
+
+/**
+ * Benchmarks parts of the server on this machine, each in a server started
+ * inside the benchmark. The first argument names the benchmark and the rest
+ * are its options, for example:
+ * 
+ * java ChatBenchmark handshake -cbcount 2000 -cbthreads 4
+ * java ChatBenchmark fanout -cbcount 2000
+ * java ChatBenchmark shards -cbcount 20000 -cbclients 100
+ * java -Xmx4g ChatBenchmark search -cblines 10000000
+ * java ChatBenchmark loopback -cbcount 20000 -cbclients 100
+ * java ChatBenchmark filter
+ * 
+ * @author alfiewn
+ *
+ */
+class ChatBenchmark {
+
+	private static final String PASSWORD = "benchmark";
+	private static final byte[] CONTROL = ServerConnection.encodeUTF("" + ChatProtocol.CONTROL);
+	private static final byte[] ROSTER = ServerConnection.encodeUTF(ChatProtocol.CONTROL + ChatProtocol.ROSTER);
+	
+	// the lines a client may have on their way to it before the senders wait,
+	// well short of what a shard queues for a client before dropping it
+	private static final int WINDOW = 128;
+
+	private int port = 14101;
+	private int count = 2000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int clients = 100;
+	private int shards = Runtime.getRuntime().availableProcessors();
+	private int lines = 10000000;
+	private File directory;
+	private AtomicInteger names = new AtomicInteger();
+
+	/**
+	 * Runs the benchmark named by the first argument
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		ChatBenchmark benchmark = new ChatBenchmark();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-cbport") && i + 1 < args.length) {
+				benchmark.port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cbcount") && i + 1 < args.length) {
+				benchmark.count = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cbthreads") && i + 1 < args.length) {
+				benchmark.threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cbclients") && i + 1 < args.length) {
+				benchmark.clients = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cbshards") && i + 1 < args.length) {
+				benchmark.shards = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cblines") && i + 1 < args.length) {
+				benchmark.lines = Integer.parseInt(args[++i]);
+			}
+		}
+		benchmark.directory = new File(System.getProperty("java.io.tmpdir"), "chat-benchmark-" + ProcessHandle.current().pid());
+		benchmark.directory.mkdirs();
+		
+		if (args.length > 0 && args[0].equals("handshake")) {
+			benchmark.handshakes();
+		} else if (args.length > 0 && args[0].equals("fanout")) {
+			benchmark.fanOut();
+		} else if (args.length > 0 && args[0].equals("shards")) {
+			benchmark.shards();
+		} else if (args.length > 0 && args[0].equals("search")) {
+			benchmark.search();
+		} else if (args.length > 0 && args[0].equals("loopback")) {
+			benchmark.loopback();
+		} else if (args.length > 0 && args[0].equals("filter")) {
+			benchmark.filter();
+		} else {
+			System.out.println("Usage: java ChatBenchmark handshake|fanout|shards|search|loopback|filter [options]");
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return the options of a server for the benchmark, quiet and spooling to
+	 * 		the benchmark's directory
+	 */
+	private ServerOptions serverOptions() {
+		ServerOptions options = ServerOptions.forPort(this.port);
+		options.logMessages = false;
+		options.spoolDirectory = new File(this.directory, "spool");
+		return options;
+	}
+
+	/**
+	 * Starts a server listening on the port of its options that logs nothing, so
+	 * printing does not slow it down
+	 * 
+	 * @param options
+	 * 		the options of the server
+	 * @return the server
+	 */
+	private ChatServer start(ServerOptions options) throws GeneralSecurityException, IOException {
+		
+		ChatServer server = new ChatServer() {
+			@Override
+			protected void log(String message) {
+			}
+		};
+		server.configure(options);
+		server.transport = new SocketTransport(options.port);
+		server.listenInBackground(server.transport);
+		return server;
+	}
+
+	/**
+	 * Measures how long a chat line takes to reach every member of rooms of 1k,
+	 * 10k and 50k members. The members write through the same path as when the
+	 * server runs one thread per connection, to channels that only note when
+	 * they were written to, so the time is the server's and not the network's.
+	 * Each room is measured with every member written to in turn on the sending
+	 * thread, then split into partitions on the fan-out pool. A line is sent a
+	 * twentieth of the count times, after a tenth of that to warm up.
+	 */
+	private void fanOut() throws Exception {
+		
+		ServerOptions options = this.serverOptions();
+		ChatServer server = new ChatServer() {
+			@Override
+			protected void log(String message) {
+			}
+		};
+		server.configure(options);
+		int threshold = options.fanOutThreshold;
+		int lines = Math.max(10, this.count / 20);
+		
+		final AtomicLong sent = new AtomicLong();
+		final AtomicInteger written = new AtomicInteger();
+		final long[][] members = new long[1][];
+		ByteChannel sink = new ByteChannel() {
+			public int read(ByteBuffer dst) {
+				return -1;
+			}
+
+			public int write(ByteBuffer src) {
+				int i = written.getAndIncrement();
+				if (i < members[0].length) {
+					members[0][i] = System.nanoTime() - sent.get();
+				}
+				int length = src.remaining();
+				src.position(src.limit());
+				return length;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+		
+		ByteBuffer frame = server.encodeFrame("<benchmark> a chat line about as long as most of them");
+		for (int size : new int[] { 1000, 10000, 50000 }) {
+			
+			Room room = new Room("benchmark", server);
+			for (int i = 0; i < size; i++) {
+				ServerConnection sc = new ServerConnection();
+				sc.channel = sink;
+				room.add(sc);
+			}
+			members[0] = new long[size * lines];
+			
+			for (boolean partitioned : new boolean[] { false, true }) {
+				options.fanOutThreshold = partitioned ? threshold : Integer.MAX_VALUE;
+				long[] last = new long[lines];
+				
+				for (int i = -lines / 10; i < lines; i++) {
+					if (i == 0) {
+						written.set(0);
+					}
+					sent.set(System.nanoTime());
+					room.send(frame, 0);
+					if (i >= 0) {
+						last[i] = System.nanoTime() - sent.get();
+					}
+				}
 				
-				String message = inputFromClient.readUTF();
-				
-				if (message.length() > 4) {
-					if (message.substring(0, 4).equals("exit")) {
-						String name = message.substring(4);
-						server.removeConnection(name);
-						server.appendTextArea("Client disconnected: " + name + "\n");
-						sendToAllClients(name + " has left the chat");
-					} else if (message.substring(0, 4).equals("name")) {
-						String name = message.substring(4);
-						server.addClientName(name);
-						server.appendTextArea("New client: " + name + "\n");
-						sendToAllClients(name + " has joined the chat");
+				System.out.printf("%d members, %s: 99%% of members in %d us, last member 99%% %d us, median %d us%n",
+						size, partitioned ? "partitioned on " + server.getFanOut().getParallelism() + " threads"
+								: "inline", percentile(members[0], 0.99), percentile(last, 0.99),
+						percentile(last, 0.5));
+			}
+		}
+		server.getBuffers().release(frame);
+	}
+
+	/**
+	 * @param nanos
+	 * 		the times measured, in nanoseconds
+	 * @param fraction
+	 * 		the fraction of the times at or below the one returned
+	 * @return the time in microseconds that the fraction of the times are at or
+	 * 		below
+	 */
+	private static long percentile(long[] nanos, double fraction) {
+		
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000;
+	}
+
+	/**
+	 * Measures how many chat lines a second a sharded server delivers with 1, 2,
+	 * 4 and so on shards, up to the number of shards asked for. Each server has a
+	 * port of its own, the benchmark's port plus its number of shards, and packs
+	 * no lines into digests, so every line is a frame of its own to every client.
+	 */
+	private void shards() throws Exception {
+		
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		for (int k = 1; k < this.shards; k *= 2) {
+			counts.add(k);
+		}
+		counts.add(Math.max(1, this.shards));
+		
+		double single = 0;
+		for (int k : counts) {
+			ServerOptions options = this.serverOptions();
+			options.port = this.port + k;
+			options.shards = k;
+			options.digestThreshold = 0;
+			options.spoolDirectory = new File(this.directory, "spool-" + k);
+			ChatServer server = this.start(options);
+			
+			SocketChannel[] channels = new SocketChannel[this.clients];
+			for (int i = 0; i < channels.length; i++) {
+				channels[i] = SocketChannel.open(new InetSocketAddress("localhost", options.port));
+				channels[i].socket().setTcpNoDelay(true);
+			}
+			
+			double delivered = this.flood(channels);
+			if (k == 1) {
+				single = delivered;
+			}
+			System.out.printf("%d shards: %.0f deliveries a second, %.0f lines a second, %.2f times 1 shard%n", k,
+					delivered, delivered / this.clients, delivered / single);
+			
+			for (SocketChannel channel : channels) {
+				channel.close();
+			}
+			server.transport.close();
+		}
+	}
+
+	/**
+	 * Measures how many chat lines a second a server running one thread per
+	 * connection delivers to clients in the same process on the loopback
+	 * transport, then to the same number of clients over sockets, to show what
+	 * the network stack costs. Last the loopback clients connect to a sharded
+	 * server, which cannot pin them to its shards, to check they are still sent
+	 * every line.
+	 */
+	private void loopback() throws Exception {
+		
+		this.checkLoopback();
+		
+		ServerOptions options = this.serverOptions();
+		options.digestThreshold = 0;
+		options.spoolDirectory = new File(this.directory, "spool-loopback");
+		double loopback = this.floodLoopback(options);
+		
+		options = this.serverOptions();
+		options.digestThreshold = 0;
+		options.spoolDirectory = new File(this.directory, "spool-sockets");
+		ChatServer server = this.start(options);
+		ByteChannel[] channels = new ByteChannel[this.clients];
+		for (int i = 0; i < channels.length; i++) {
+			SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", options.port));
+			socket.socket().setTcpNoDelay(true);
+			channels[i] = socket;
+		}
+		double sockets = this.flood(channels);
+		for (ByteChannel channel : channels) {
+			channel.close();
+		}
+		server.transport.close();
+		
+		options = this.serverOptions();
+		options.digestThreshold = 0;
+		options.shards = Math.max(1, this.shards);
+		options.spoolDirectory = new File(this.directory, "spool-loopback-sharded");
+		double sharded = this.floodLoopback(options);
+		
+		System.out.printf("Loopback: %.0f messages a second to %d clients%n", loopback, this.clients);
+		System.out.printf("Sockets: %.0f messages a second to %d clients%n", sockets, this.clients);
+		System.out.printf("The loopback transport is %.1f times faster%n", loopback / sockets);
+		System.out.printf("Loopback to %d shards: %.0f messages a second to %d clients%n", options.shards, sharded,
+				this.clients);
+	}
+
+	/**
+	 * Checks on a single thread, driving a server and its clients in turn through
+	 * a driven loopback transport, that a chat line reaches the other client
+	 * stamped with the sender's name, and that a name already taken is refused. Throws if either does not happen.
+	 */
+	private void checkLoopback() throws Exception {
+		
+		ServerOptions options = this.serverOptions();
+		options.digestThreshold = 0;
+		options.spoolDirectory = new File(this.directory, "spool-driven");
+		LoopbackTransport transport = new LoopbackTransport(true);
+		ChatServer server = ChatServer.drive(options, transport);
+		
+		ByteChannel alice = transport.connect();
+		ByteChannel bob = transport.connect();
+		write(alice, "namealice");
+		write(bob, "namebob");
+		server.step();
+		received(alice);
+		received(bob);
+		
+		write(alice, "hello bob");
+		server.step();
+		if (!received(bob).contains("<alice> hello bob")) {
+			throw new IllegalStateException("The chat line did not reach the other client");
+		}
+		
+		ByteChannel impostor = transport.connect();
+		write(impostor, "namealice");
+		server.step();
+		if (!received(impostor).contains("The name alice is already taken, please reconnect with a different name")) {
+			throw new IllegalStateException("A name already taken was bound again");
+		}
+		
+		transport.close();
+		System.out.println("Driven on one thread: a chat line reached the other client and a taken name was refused");
+	}
+
+	/**
+	 * Reads the messages sent to a client of a driven transport without waiting
+	 * 
+	 * @param channel
+	 * 		the channel of the client
+	 * @return the messages, including control messages
+	 */
+	private static ArrayList<String> received(ByteChannel channel) throws IOException {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (channel.read(buffer) > 0) {
+			buffer.flip();
+			bytes.write(buffer.array(), 0, buffer.limit());
+			buffer.clear();
+		}
+		
+		ArrayList<String> messages = new ArrayList<String>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		while (in.available() > 0) {
+			messages.add(in.readUTF());
+		}
+		return messages;
+	}
+
+	/**
+	 * Floods a server that logs nothing with chat lines from clients connected
+	 * through the loopback transport
+	 * 
+	 * @param options
+	 * 		the options of the server
+	 * @return the chat lines read a second, counting a line once for each client
+	 *		that reads it
+	 */
+	private double floodLoopback(ServerOptions options) throws Exception {
+		
+		ChatServer server = new ChatServer() {
+			@Override
+			protected void log(String message) {
+			}
+		};
+		server.configure(options);
+		LoopbackTransport transport = new LoopbackTransport();
+		server.transport = transport;
+		server.listenInBackground(transport);
+		
+		ByteChannel[] channels = new ByteChannel[this.clients];
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = transport.connect();
+		}
+		double delivered = this.flood(channels);
+		for (ByteChannel channel : channels) {
+			channel.close();
+		}
+		transport.close();
+		return delivered;
+	}
+
+	/**
+	 * Measures how long sets of 100, 1000 and 10,000 random filter rules take to
+	 * compile, a tenth of them blocking, and how fast each scans chat lines. The
+	 * lines are made up beforehand, mostly of words no rule matches with one in a
+	 * hundred words taken from the rules, and each is copied into the same buffer
+	 * before it is scanned, as masking changes it. Each set scans for half a
+	 * second to warm up, then for two seconds.
+	 */
+	private void filter() {
+		
+		Random random = new Random(1);
+		byte[][] lines = new byte[10000][];
+		
+		for (int size : new int[] { 100, 1000, 10000 }) {
+			ArrayList<String> words = new ArrayList<String>();
+			ArrayList<String> rules = new ArrayList<String>();
+			for (int i = 0; i < size; i++) {
+				StringBuilder word = new StringBuilder();
+				for (int c = 4 + random.nextInt(7); c > 0; c--) {
+					word.append((char) ('a' + random.nextInt(26)));
+				}
+				words.add(word.toString());
+				rules.add(i % 10 == 0 ? "!" + word : word.toString());
+			}
+			
+			long bytes = 0;
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < lines.length; i++) {
+				line.setLength(0);
+				for (int w = 0; w < 10; w++) {
+					line.append(w == 0 ? "" : " ");
+					if (random.nextInt(100) == 0) {
+						line.append(words.get(random.nextInt(size)).toUpperCase());
 					} else {
-						server.appendTextArea(message + "\n");
-						sendToAllClients(message);
+						line.append("Chat").append(random.nextInt(100000));
 					}
-				} else {
-					sendToAllClients(message);
 				}
+				lines[i] = ServerConnection.encodeUTF(line.toString());
+				bytes += lines[i].length;
 			}
+			
+			long start = System.nanoTime();
+			FilterRules compiled = FilterRules.compile(rules);
+			long compile = System.nanoTime() - start;
+			
+			ByteBuffer buffer = ByteBuffer.allocate(BufferPool.LARGE_SIZE);
+			long[] verdicts = new long[3];
+			long scanned = 0;
+			long elapsed = 0;
+			for (boolean warm : new boolean[] { false, true }) {
+				scanned = 0;
+				Arrays.fill(verdicts, 0);
+				start = System.nanoTime();
+				long until = start + TimeUnit.MILLISECONDS.toNanos(warm ? 2000 : 500);
+				do {
+					for (byte[] text : lines) {
+						buffer.clear();
+						buffer.put(text);
+						verdicts[compiled.scan(buffer, 0, text.length)]++;
+					}
+					scanned++;
+					elapsed = System.nanoTime() - start;
+				} while (start + elapsed < until);
+			}
+			
+			double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+			System.out.printf("%d rules: compiled in %d ms to %s, %.0f lines a second, %.0f MB a second, "
+					+ "%d%% masked, %d%% blocked%n", size, TimeUnit.NANOSECONDS.toMillis(compile), compiled,
+					scanned * lines.length / seconds, scanned * bytes / seconds / (1024 * 1024),
+					verdicts[FilterRules.MASKED] * 100 / (scanned * lines.length),
+					verdicts[FilterRules.BLOCKED] * 100 / (scanned * lines.length));
+		}
+	}
 
-			this.inputFromClient.close();
-			this.outputToClient.close();
-			this.s.close();
+	/**
+	 * Measures how long searches of a room's history take once it holds the
+	 * number of lines asked for, which by default needs a heap of a few GB. The
+	 * lines are eight words each from 1000 senders, with words picked so the
+	 * first is by far the most common and each after it rarer, as in what people
+	 * write. The time range searched is the second after the middle line. Each
+	 * kind of search is timed on the indexer thread, as clients' searches run,
+	 * and its median and 99th percentile are compared with 50 ms.
+	 */
+	private void search() throws Exception {
+		
+		ExecutorService indexer = Executors.newSingleThreadExecutor();
+		final MessageIndex index = new MessageIndex(indexer, this.lines);
+		Random random = new Random(1);
+		int vocabulary = 50000;
+		String[] senders = new String[1000];
+		for (int i = 0; i < senders.length; i++) {
+			senders[i] = "bench" + i;
+		}
+		
+		long middle = 0;
+		long start = System.nanoTime();
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < this.lines; i++) {
+			line.setLength(0);
+			for (int w = 0; w < 8; w++) {
+				line.append(w == 0 ? "w" : " w").append((int) Math.pow(vocabulary, random.nextDouble()) - 1);
+			}
+			if (i == this.lines / 2) {
+				middle = System.currentTimeMillis();
+			}
+			index.record(senders[random.nextInt(senders.length)], ServerConnection.encodeUTF(line.toString()));
+			
+			// keeps the lines waiting to be indexed from filling the heap
+			if (i % 100000 == 0) {
+				indexer.submit(new Runnable() {
+					public void run() {
+					}
+				}).get();
+			}
+		}
+		indexer.submit(new Runnable() {
+			public void run() {
+			}
+		}).get();
+		System.out.printf("Indexed %d lines in %d ms, %s%n", this.lines,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index);
+		
+		final String[] kinds = { "rare word", "common word", "two words", "from", "after and before" };
+		final String[] requests = { "w" + (vocabulary - 2), "w0", "w0 w1", "from:bench7",
+				"w3 after:" + middle + " before:" + (middle + 1000) };
+		final long[][] times = new long[requests.length][200];
+		indexer.submit(new Runnable() {
+			public void run() {
+				for (int k = 0; k < requests.length; k++) {
+					for (int i = -20; i < 200; i++) {
+						long started = System.nanoTime();
+						index.query(requests[k]);
+						if (i >= 0) {
+							times[k][i] = System.nanoTime() - started;
+						}
+					}
+				}
+			}
+		}).get();
+		indexer.shutdown();
+		
+		for (int k = 0; k < requests.length; k++) {
+			long p99 = percentile(times[k], 0.99);
+			System.out.printf("%s (%s): median %d us, 99%% %d us, %s 50 ms%n", kinds[k], requests[k],
+					percentile(times[k], 0.5), p99, p99 <= 50000 ? "within" : "over");
+		}
+	}
 
-		} catch (IOException e) {
-			//client has disconnected
+	/**
+	 * Names a client on each channel and waits for the server to send each its
+	 * roster, then sends the count of chat lines from the client threads, which
+	 * take the channels in turn, and waits for every client to read every line.
+	 * The senders wait while any client could be more than the window behind, so
+	 * none falls far enough behind to be dropped.
+	 * 
+	 * @param channels
+	 * 		the connected channels of the clients
+	 * @return the chat lines read a second, counting a line once for each client
+	 *		that reads it
+	 */
+	@SuppressWarnings("auxiliaryclass")
+	private double flood(final ByteChannel[] channels) throws Exception {
+		
+		final LongAdder delivered = new LongAdder();
+		final AtomicInteger lost = new AtomicInteger();
+		final CountDownLatch joined = new CountDownLatch(channels.length);
+		
+		for (int i = 0; i < channels.length; i++) {
+			final ByteChannel channel = channels[i];
+			write(channel, "name" + "bench" + Integer.toString(names.incrementAndGet(), 36));
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					DataInputStream in = new DataInputStream(
+							new BufferedInputStream(ClientOptions.inputStream(channel), 64 * 1024));
+					byte[] body = new byte[65535];
+					boolean named = false;
+					try {
+						while (true) {
+							int length = in.readUnsignedShort();
+							in.readFully(body, 0, length);
+							if (startsWith(body, length, CONTROL)) {
+								if (!named && startsWith(body, length, ROSTER)) {
+									named = true;
+									joined.countDown();
+								}
+							} else if (length > 6 && body[0] == '<' && body[1] == 'b') {
+								delivered.increment();
+							}
+						}
+					} catch (IOException e) {
+						if (channel.isOpen()) {
+							lost.incrementAndGet();
+						}
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+		if (!joined.await(60, TimeUnit.SECONDS)) {
+			throw new IOException("Not every client was named within a minute");
+		}
+		
+		final long window = (long) WINDOW * channels.length;
+		final AtomicLong sent = new AtomicLong();
+		Thread[] senders = new Thread[Math.min(this.threads, channels.length)];
+		long start = System.nanoTime();
+		for (int i = 0; i < senders.length; i++) {
+			final int first = i;
+			final int step = senders.length;
+			senders[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int c = first; sent.getAndIncrement() < count; c += step) {
+							while ((sent.get() * channels.length) - delivered.sum() > window && lost.get() == 0) {
+								Thread.yield();
+							}
+							if (c >= channels.length) {
+								c = first;
+							}
+							write(channels[c], "a chat line about as long as most of them");
+						}
+					} catch (IOException e) {
+						lost.incrementAndGet();
+					}
+				}
+			});
+			senders[i].start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		
+		long expected = (long) this.count * channels.length;
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		while (delivered.sum() < expected && lost.get() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		if (delivered.sum() < expected) {
+			System.out.println((expected - delivered.sum()) + " deliveries missing, " + lost.get() + " clients lost");
+		}
+		return delivered.sum() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * Writes a message to a channel with its length header
+	 * 
+	 * @param channel
+	 * 		the channel to write to
+	 * @param message
+	 * 		the message
+	 */
+	private static void write(ByteChannel channel, String message) throws IOException {
+		
+		byte[] body = ServerConnection.encodeUTF(message);
+		ByteBuffer frame = ByteBuffer.allocate(2 + body.length);
+		frame.putShort((short) body.length).put(body).flip();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	/**
+	 * @return whether the first length bytes of a message start with a prefix
+	 */
+	private static boolean startsWith(byte[] body, int length, byte[] prefix) {
+		
+		if (length < prefix.length) {
+			return false;
 		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (body[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Measures how many TLS handshakes per second a server takes, first full
+	 * handshakes, with a new context for every connection so none can resume,
+	 * then resumed ones, with one context shared by every connection. An RSA key
+	 * pair for localhost is made with keytool in a temporary key store, which the
+	 * server uses as its key store and the clients as their trust store. Every
+	 * connection binds a name, as a client reconnecting would.
+	 */
+	private void handshakes() throws Exception {
+		
+		File keyStore = new File(this.directory, "localhost.p12");
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048", "-dname",
+				"CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1", "-storetype", "PKCS12",
+				"-keystore", keyStore.getPath(), "-storepass", PASSWORD).inheritIO().start();
+		if (keytool.waitFor() != 0) {
+			throw new IOException("keytool could not make a key store");
+		}
+		System.setProperty("javax.net.ssl.keyStore", keyStore.getPath());
+		System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+		System.setProperty("javax.net.ssl.trustStore", keyStore.getPath());
+		System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+		
+		ServerOptions options = this.serverOptions();
+		options.tls = true;
+		ChatServer server = this.start(options);
+		
+		// warm up both kinds before measuring
+		this.connect(this.count / 10, false);
+		this.connect(this.count / 10, true);
+		
+		long served = server.handshakeCount.sum();
+		long nanos = server.handshakeNanos.sum();
+		double full = this.connect(this.count, false);
+		long fullServer = (server.handshakeNanos.sum() - nanos) / Math.max(1, server.handshakeCount.sum() - served);
+		
+		served = server.handshakeCount.sum();
+		nanos = server.handshakeNanos.sum();
+		double resumed = this.connect(this.count, true);
+		long resumedServer = (server.handshakeNanos.sum() - nanos) / Math.max(1, server.handshakeCount.sum() - served);
+		
+		System.out.printf("Full handshakes: %.0f per second, %d us each on the server%n", full, fullServer / 1000);
+		System.out.printf("Resumed handshakes: %.0f per second, %d us each on the server%n", resumed, resumedServer / 1000);
+		System.out.printf("Resuming is %.1f times faster, with %d client threads%n", resumed / full, this.threads);
+		server.transport.close();
+	}
+
+	/**
+	 * Opens connections with TLS from every client thread until the count is
+	 * reached. Each binds a name and is closed once the server answers.
+	 * 
+	 * @param connections
+	 * 		the number of connections to open
+	 * @param resume
+	 * 		whether the connections share a context and so resume its session
+	 * @return the connections opened per second
+	 */
+	private double connect(int connections, final boolean resume) throws Exception {
+		
+		final SSLContext shared = this.context();
+		final AtomicInteger left = new AtomicInteger(connections);
+		final AtomicInteger failed = new AtomicInteger();
+		
+		Thread[] clients = new Thread[this.threads];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new Thread(new Runnable() {
+				public void run() {
+					while (left.getAndDecrement() > 0) {
+						try {
+							SSLEngine engine = (resume ? shared : context()).createSSLEngine("localhost", port);
+							engine.setUseClientMode(true);
+							
+							SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+							socket.socket().setTcpNoDelay(true);
+							TlsChannel channel = new TlsChannel(socket, engine);
+							channel.handshake();
+							
+							// the server sends the session ticket after the handshake, so the
+							// client only has it to resume with once it reads something
+							DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+							out.writeUTF("name" + Integer.toString(names.incrementAndGet(), 36));
+							new DataInputStream(Channels.newInputStream(channel)).readUTF();
+							channel.close();
+						} catch (IOException | GeneralSecurityException e) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			});
+			clients[i].start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		if (failed.get() > 0) {
+			System.out.println(failed.get() + " handshakes failed");
+		}
+		return (connections - failed.get()) / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * @return a new context trusting the benchmark's key store, with a session
+	 * 		cache of its own
+	 * @throws GeneralSecurityException
+	 * 		if the trust store cannot be loaded
+	 */
+	private SSLContext context() throws GeneralSecurityException {
+		
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init((KeyStore) null);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
 	}
 }
@@ -0,0 +1,115 @@
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that are a microsecond wide below 64 us, and
+ * after that split each power of two into 32, so every bucket is within about
+ * three percent of the durations in it. Counts are atomic so any thread can
+ * record without a lock.
+ * 
+ * @author alfiewn
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int BUCKETS = LINEAR + (64 - 6) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos
+	 * 		the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		this.counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+	}
+
+	/**
+	 * @param micros
+	 * 		a duration in microseconds
+	 * @return the bucket it is counted in
+	 */
+	private static int bucket(long micros) {
+		
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket
+	 * 		a bucket
+	 * @return the shortest duration counted in it, in microseconds
+	 */
+	private static long lowest(int bucket) {
+		
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 6;
+		int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return (1L << exponent) + ((long) sub << (exponent - 5));
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long count() {
+		
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the duration a fraction of the recorded durations are shorter than
+	 * 
+	 * @param fraction
+	 * 		the fraction, such as 0.99
+	 * @return the lowest duration of the bucket holding it, in microseconds
+	 */
+	public long percentile(double fraction) {
+		
+		long target = (long) Math.ceil(this.count() * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= target && seen > 0) {
+				return lowest(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes the buckets that hold any durations
+	 * 
+	 * @param out
+	 * 		the writer
+	 * @param stage
+	 * 		the name of the stage the histogram measures
+	 */
+	public void export(PrintWriter out, String stage) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = this.counts.get(i);
+			if (count > 0) {
+				out.println(stage + "," + lowest(i) + "," + (i + 1 < BUCKETS ? lowest(i + 1) : "") + "," + count);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.count() + " samples, median " + this.percentile(0.5) + " us, 99% " + this.percentile(0.99)
+				+ " us, 99.9% " + this.percentile(0.999) + " us";
+	}
+}
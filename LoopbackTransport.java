@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects clients to a server in the same process without the network. Each
+ * connection is a pair of channels joined by a ring of bytes in each direction,
+ * so the server logic can be run and measured without the costs of the kernel,
+ * and without a free port.
+ * 
+ * A driven transport never waits: a read with nothing to read returns 0, and
+ * clients waiting to connect are polled for, so a single thread can drive the
+ * server and its clients in turn, see ChatServer.step.
+ * 
+ * @author alfiewn
+ *
+ */
+public class LoopbackTransport implements Transport {
+
+	private static final ByteChannel CLOSED = new LoopbackChannel(new Pipe(false), new Pipe(false));
+
+	private LinkedBlockingQueue<ByteChannel> pending = new LinkedBlockingQueue<ByteChannel>();
+	private boolean driven;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a transport whose reads wait for something to read
+	 */
+	public LoopbackTransport() {
+		this(false);
+	}
+
+	/**
+	 * Constructor method, sets default fields
+	 * 
+	 * @param driven
+	 * 		whether reads return 0 rather than waiting when there is nothing to read
+	 */
+	public LoopbackTransport(boolean driven) {
+		this.driven = driven;
+	}
+
+	/**
+	 * Connects a new client to the server
+	 * 
+	 * @return the channel of the client
+	 * @throws IOException
+	 * 		if the transport has been closed
+	 */
+	public ByteChannel connect() throws IOException {
+		
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+		
+		Pipe up = new Pipe(this.driven);
+		Pipe down = new Pipe(this.driven);
+		this.pending.add(new LoopbackChannel(up, down));
+		return new LoopbackChannel(down, up);
+	}
+
+	public ByteChannel accept() throws IOException {
+		
+		ByteChannel channel;
+		try {
+			channel = this.pending.take();
+		} catch (InterruptedException e) {
+			throw new AsynchronousCloseException();
+		}
+		
+		if (channel == CLOSED) {
+			this.pending.add(CLOSED);
+			throw new AsynchronousCloseException();
+		}
+		return channel;
+	}
+
+	/**
+	 * Accepts a client without waiting, for a driven transport
+	 * 
+	 * @return the channel of a client that has connected, or null if none is
+	 * 		waiting or the transport has been closed
+	 */
+	public ByteChannel poll() {
+		
+		ByteChannel channel = this.pending.poll();
+		if (channel == CLOSED) {
+			this.pending.add(CLOSED);
+			return null;
+		}
+		return channel;
+	}
+
+	public void close() {
+		this.closed = true;
+		this.pending.add(CLOSED);
+	}
+
+	/**
+	 * The bytes travelling one way along a connection, held in a ring that is
+	 * reused for every write and only grows when a write does not fit. Any number
+	 * of threads may write and one thread reads, each taking the lock of the pipe
+	 * while it copies. The reader spins briefly when the ring is empty before
+	 * parking until a writer unparks it, unless the pipe is driven.
+	 */
+	private static class Pipe {
+
+		private static final int SPINS = 100;
+		private static final int INITIAL_SIZE = 16 * 1024;
+
+		// the bytes not yet read start at head and wrap around the end of the ring,
+		// whose size is a power of two
+		private byte[] ring = new byte[INITIAL_SIZE];
+		private int head;
+		private volatile int count;
+		
+		private boolean driven;
+		private volatile Thread reader;
+		private volatile boolean closed;
+
+		/**
+		 * Constructor method, sets default fields
+		 * 
+		 * @param driven
+		 * 		whether reads return 0 rather than waiting
+		 */
+		Pipe(boolean driven) {
+			this.driven = driven;
+		}
+
+		/**
+		 * Copies bytes into the pipe
+		 * 
+		 * @param src
+		 * 		the bytes to write
+		 * @return the number of bytes written
+		 * @throws IOException
+		 * 		if either end has been closed
+		 */
+		int write(ByteBuffer src) throws IOException {
+			
+			int length = src.remaining();
+			synchronized (this) {
+				if (this.closed) {
+					throw new ClosedChannelException();
+				}
+				if (this.count + length > this.ring.length) {
+					this.grow(this.count + length);
+				}
+				
+				int mask = this.ring.length - 1;
+				int tail = (this.head + this.count) & mask;
+				int first = Math.min(length, this.ring.length - tail);
+				src.get(this.ring, tail, first);
+				src.get(this.ring, 0, length - first);
+				this.count += length;
+			}
+			
+			Thread waiting = this.reader;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+			return length;
+		}
+
+		/**
+		 * Copies bytes out of the pipe, waiting for at least one byte unless the
+		 * pipe is driven
+		 * 
+		 * @param dst
+		 * 		the buffer to read into
+		 * @return the number of bytes read, or -1 once the pipe is closed and empty
+		 */
+		int read(ByteBuffer dst) {
+			
+			if (!this.await()) {
+				return this.closed ? -1 : 0;
+			}
+			
+			synchronized (this) {
+				int length = Math.min(this.count, dst.remaining());
+				int first = Math.min(length, this.ring.length - this.head);
+				dst.put(this.ring, this.head, first);
+				dst.put(this.ring, 0, length - first);
+				this.head = (this.head + length) & (this.ring.length - 1);
+				this.count -= length;
+				return length;
+			}
+		}
+
+		/**
+		 * Waits for something to read, unless the pipe is driven
+		 * 
+		 * @return whether there is something to read, false once the pipe is closed
+		 * 		and empty or if a driven pipe is empty
+		 */
+		private boolean await() {
+			
+			for (int spins = 0; this.count == 0; spins++) {
+				
+				if (this.closed || this.driven) {
+					return this.count > 0;
+				}
+				if (spins < SPINS) {
+					continue;
+				}
+				
+				this.reader = Thread.currentThread();
+				if (this.count == 0 && !this.closed) {
+					LockSupport.park(this);
+				}
+				this.reader = null;
+			}
+			return true;
+		}
+
+		/**
+		 * Moves the bytes not yet read to the start of a larger ring, while holding
+		 * the lock
+		 * 
+		 * @param needed
+		 * 		the number of bytes the ring must hold
+		 */
+		private void grow(int needed) {
+			
+			byte[] ring = new byte[Integer.highestOneBit(needed - 1) << 1];
+			int first = Math.min(this.count, this.ring.length - this.head);
+			System.arraycopy(this.ring, this.head, ring, 0, first);
+			System.arraycopy(this.ring, 0, ring, first, this.count - first);
+			this.ring = ring;
+			this.head = 0;
+		}
+
+		/**
+		 * Closes the pipe, waking the reader
+		 */
+		void close() {
+			
+			this.closed = true;
+			Thread waiting = this.reader;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+	}
+
+	/**
+	 * One end of a connection, reading from one pipe and writing to the other.
+	 * Closing either end closes both pipes, so the other end reads the end of
+	 * the stream once it has read what was sent.
+	 */
+	private static class LoopbackChannel implements ByteChannel {
+
+		private Pipe in;
+		private Pipe out;
+		private volatile boolean open = true;
+
+		LoopbackChannel(Pipe in, Pipe out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			if (!this.open) {
+				throw new ClosedChannelException();
+			}
+			return this.in.read(dst);
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			if (!this.open) {
+				throw new ClosedChannelException();
+			}
+			return this.out.write(src);
+		}
+
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		public void close() {
+			this.open = false;
+			this.in.close();
+			this.out.close();
+		}
+	}
+}
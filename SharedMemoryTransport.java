@@ -0,0 +1,457 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects clients on the same host to the server through shared memory instead
+ * of a socket. A client creates a file in the shared memory directory holding a
+ * ring buffer for each direction, and the server maps the same file when it
+ * appears and unlinks it, so the file only lives as long as both mappings.
+ * 
+ * Each ring has one writer and one reader, which only share the positions they
+ * have written up to and read up to. A side that has to wait spins, then
+ * yields, then parks for short periods, so no system call is needed while
+ * messages keep arriving, and while parked it checks the other process is still
+ * running.
+ * 
+ * Only the user running the server may enter the directory, and only the user
+ * creating a connection file may open it, where the file system has POSIX
+ * permissions.
+ * 
+ * @author alfiewn
+ *
+ */
+public class SharedMemoryTransport implements Transport {
+
+	public static final int RING_SIZE = 1 << 18;
+
+	// the file starts with the process ids of both sides, followed by the ring
+	// from the client to the server and the ring from the server to the client.
+	// Each position sits on a cache line of its own.
+	private static final int CLIENT_PID = 0;
+	private static final int SERVER_PID = 64;
+	private static final int FILE_HEADER = 128;
+	private static final int TAIL = 0;
+	private static final int HEAD = 64;
+	private static final int CLOSED = 128;
+	private static final int RING_HEADER = 192;
+	private static final int FILE_SIZE = FILE_HEADER + 2 * (RING_HEADER + RING_SIZE);
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	// a side that is kept waiting parks for longer once the other side has been
+	// quiet for a while, so idle connections cost little. Spinning on a single
+	// core only holds up the other side, so it goes straight to yielding.
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+	private static final int YIELDS = 100;
+	private static final int SHORT_PARKS = 1000;
+	private static final long SHORT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long LONG_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int PARKS_PER_CHECK = 1000;
+	private static final long ACCEPT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+	
+	private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+	private Path directory;
+	private WatchService watcher;
+	private ArrayDeque<Path> offered = new ArrayDeque<Path>();
+
+	/**
+	 * Constructor method, starts watching the directory for clients. The
+	 * directory is made private to the user running the server, and connection
+	 * files left behind by clients that have since exited are removed. Any other
+	 * file is left alone.
+	 * 
+	 * @param directory
+	 * 		the shared memory directory
+	 * @throws IOException
+	 * 		if the directory cannot be created, made private or watched
+	 */
+	public SharedMemoryTransport(File directory) throws IOException {
+		
+		this.directory = directory.toPath();
+		if (isPosix(this.directory)) {
+			Files.createDirectories(this.directory, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+			
+			// the directory may have been there already, and the umask applies to a
+			// new one, so the permissions are set either way. This fails if another
+			// user owns it.
+			Files.setPosixFilePermissions(this.directory, DIRECTORY_PERMISSIONS);
+		} else {
+			Files.createDirectories(this.directory);
+		}
+		
+		this.watcher = this.directory.getFileSystem().newWatchService();
+		this.directory.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE);
+		
+		File[] stale = directory.listFiles();
+		for (File file : stale == null ? new File[0] : stale) {
+			if (isAbandoned(file.getName())) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @param directory
+	 * 		a path on the file system to check
+	 * @return whether the file system has POSIX permissions
+	 */
+	private static boolean isPosix(Path directory) {
+		return directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+
+	/**
+	 * Checks whether a file is a connection file left by a client that has exited.
+	 * Clients name their files with a time and their process id.
+	 * 
+	 * @param name
+	 * 		the name of a file in the shared memory directory
+	 * @return whether the file is a connection file whose client is no longer
+	 * 		running
+	 */
+	private static boolean isAbandoned(String name) {
+		
+		int dot = name.lastIndexOf('.');
+		int dash = name.indexOf('-');
+		if (dot < 0 || dash < 0 || dash > dot) {
+			return false;
+		}
+		String suffix = name.substring(dot);
+		if (!suffix.equals(".ring") && !suffix.equals(".tmp")) {
+			return false;
+		}
+		
+		try {
+			Long.parseLong(name.substring(0, dash), 16);
+			Optional<ProcessHandle> client = ProcessHandle.of(Long.parseLong(name.substring(dash + 1, dot)));
+			return !client.isPresent() || !client.get().isAlive();
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Finds the shared memory directory for a server port. Linux keeps shared
+	 * memory in /dev/shm, elsewhere the temporary directory is used.
+	 * 
+	 * @param port
+	 * 		the port of the server
+	 * @return the directory
+	 */
+	public static File directoryFor(int port) {
+		
+		File shm = new File("/dev/shm");
+		File parent = shm.isDirectory() ? shm : new File(System.getProperty("java.io.tmpdir"));
+		return new File(parent, "chat-" + port);
+	}
+
+	/**
+	 * Connects a client to the server watching a directory
+	 * 
+	 * @param directory
+	 * 		the shared memory directory of the server
+	 * @return the channel of the client
+	 * @throws IOException
+	 * 		if the server does not accept the connection
+	 */
+	public static ByteChannel connect(File directory) throws IOException {
+		
+		String name = Long.toHexString(System.nanoTime()) + "-" + ProcessHandle.current().pid();
+		File pending = new File(directory, name + ".tmp");
+		File ring = new File(directory, name + ".ring");
+		
+		if (isPosix(pending.toPath())) {
+			Files.createFile(pending.toPath(), PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS));
+		}
+		MappedByteBuffer map = map(pending);
+		LONGS.setRelease(map, CLIENT_PID, ProcessHandle.current().pid());
+		
+		// the server only sees the file once it is complete
+		Files.move(pending.toPath(), ring.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		
+		long deadline = System.nanoTime() + ACCEPT_TIMEOUT_NANOS;
+		long attempt = 0;
+		while ((long) LONGS.getAcquire(map, SERVER_PID) == 0) {
+			if (System.nanoTime() > deadline) {
+				ring.delete();
+				throw new IOException("The server did not accept the shared memory connection");
+			}
+			idle(attempt++);
+		}
+		
+		return new SharedMemoryChannel(map, FILE_HEADER + RING_HEADER + RING_SIZE, FILE_HEADER, SERVER_PID);
+	}
+
+	public ByteChannel accept() throws IOException {
+		
+		try {
+			while (true) {
+				
+				while (this.offered.isEmpty()) {
+					WatchKey key = this.watcher.take();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						Path file = this.directory.resolve((Path) event.context());
+						if (file.toString().endsWith(".ring")) {
+							this.offered.add(file);
+						}
+					}
+					key.reset();
+				}
+				
+				File file = this.offered.poll().toFile();
+				if (!file.isFile()) {
+					continue;
+				}
+				
+				MappedByteBuffer map = map(file);
+				file.delete();
+				LONGS.setRelease(map, SERVER_PID, ProcessHandle.current().pid());
+				return new SharedMemoryChannel(map, FILE_HEADER, FILE_HEADER + RING_HEADER + RING_SIZE, CLIENT_PID);
+			}
+		} catch (ClosedWatchServiceException e) {
+			throw new ClosedChannelException();
+		} catch (InterruptedException e) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	public void close() throws IOException {
+		this.watcher.close();
+	}
+
+	/**
+	 * Maps a connection file, making it the full size first
+	 * 
+	 * @param file
+	 * 		the file
+	 * @return the mapping
+	 * @throws IOException
+	 * 		if the file cannot be mapped
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(FILE_SIZE);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+	}
+
+	/**
+	 * Waits a little, for longer the more attempts have been made
+	 * 
+	 * @param attempt
+	 * 		the number of times the caller has already waited
+	 */
+	private static void idle(long attempt) {
+		if (attempt < SPINS) {
+			Thread.onSpinWait();
+		} else if (attempt < SPINS + YIELDS) {
+			Thread.yield();
+		} else if (attempt < SPINS + YIELDS + SHORT_PARKS) {
+			LockSupport.parkNanos(SHORT_PARK_NANOS);
+		} else {
+			LockSupport.parkNanos(LONG_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * One side of a shared memory connection, reading from one ring and writing to
+	 * the other. Closing either side marks both rings closed, so the other side
+	 * reads the end of the stream once it has read what was sent.
+	 */
+	private static class SharedMemoryChannel implements ByteChannel {
+
+		private MappedByteBuffer map;
+		private int in;
+		private int out;
+		private int peerPid;
+		private ByteBuffer readView;
+		private ByteBuffer writeView;
+		private volatile boolean open = true;
+
+		/**
+		 * Constructor method, sets default fields
+		 * 
+		 * @param map
+		 * 		the mapped connection file
+		 * @param in
+		 * 		the offset of the ring this side reads from
+		 * @param out
+		 * 		the offset of the ring this side writes to
+		 * @param peerPid
+		 * 		the offset of the process id of the other side
+		 */
+		SharedMemoryChannel(MappedByteBuffer map, int in, int out, int peerPid) {
+			this.map = map;
+			this.in = in;
+			this.out = out;
+			this.peerPid = peerPid;
+			this.readView = map.duplicate();
+			this.writeView = map.duplicate();
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			
+			if (!this.open) {
+				throw new ClosedChannelException();
+			}
+			
+			synchronized (this.readView) {
+				long head = (long) LONGS.getOpaque(this.map, this.in + HEAD);
+				long tail;
+				long attempt = 0;
+				
+				while ((tail = (long) LONGS.getAcquire(this.map, this.in + TAIL)) == head) {
+					
+					// the other side may have written just before closing
+					if ((long) LONGS.getAcquire(this.map, this.in + CLOSED) != 0) {
+						if ((long) LONGS.getAcquire(this.map, this.in + TAIL) == head) {
+							return -1;
+						}
+						continue;
+					}
+					if (!this.isPeerAlive(attempt)) {
+						return -1;
+					}
+					idle(attempt++);
+				}
+				
+				int count = (int) Math.min(tail - head, dst.remaining());
+				this.copy(this.readView, this.in, head, count, dst, true);
+				LONGS.setRelease(this.map, this.in + HEAD, head + count);
+				return count;
+			}
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			
+			if (!this.open) {
+				throw new ClosedChannelException();
+			}
+			
+			if ((long) LONGS.getAcquire(this.map, this.out + CLOSED) != 0) {
+				throw new ClosedChannelException();
+			}
+			
+			synchronized (this.writeView) {
+				int written = 0;
+				long tail = (long) LONGS.getOpaque(this.map, this.out + TAIL);
+				
+				while (src.hasRemaining()) {
+					
+					long free;
+					long attempt = 0;
+					
+					while ((free = RING_SIZE - (tail - (long) LONGS.getAcquire(this.map, this.out + HEAD))) == 0) {
+						if ((long) LONGS.getAcquire(this.map, this.out + CLOSED) != 0 || !this.isPeerAlive(attempt)) {
+							throw new ClosedChannelException();
+						}
+						idle(attempt++);
+					}
+					
+					int count = (int) Math.min(free, src.remaining());
+					this.copy(this.writeView, this.out, tail, count, src, false);
+					tail += count;
+					written += count;
+					LONGS.setRelease(this.map, this.out + TAIL, tail);
+				}
+				return written;
+			}
+		}
+
+		/**
+		 * Copies bytes between a buffer and a ring, in two parts if they wrap
+		 * around its end
+		 * 
+		 * @param view
+		 * 		this side's view of the mapping
+		 * @param ring
+		 * 		the offset of the ring
+		 * @param position
+		 * 		the position in the ring to start at
+		 * @param count
+		 * 		the number of bytes to copy
+		 * @param buffer
+		 * 		the buffer to copy to or from
+		 * @param toBuffer
+		 * 		whether the bytes are copied out of the ring
+		 */
+		private void copy(ByteBuffer view, int ring, long position, int count, ByteBuffer buffer,
+				boolean toBuffer) {
+			
+			int data = ring + RING_HEADER;
+			int offset = (int) (position & (RING_SIZE - 1));
+			
+			while (count > 0) {
+				int length = Math.min(count, RING_SIZE - offset);
+				view.limit(data + offset + length);
+				view.position(data + offset);
+				
+				if (toBuffer) {
+					buffer.put(view);
+				} else {
+					int limit = buffer.limit();
+					buffer.limit(buffer.position() + length);
+					view.put(buffer);
+					buffer.limit(limit);
+				}
+				count -= length;
+				offset = 0;
+			}
+		}
+
+		/**
+		 * Checks now and then, while this side is parked, that the other process is
+		 * still running, as it cannot mark the rings closed if it is killed
+		 * 
+		 * @param attempt
+		 * 		the number of times this side has waited
+		 * @return false once the other process is known to have gone
+		 */
+		private boolean isPeerAlive(long attempt) {
+			
+			long parked = attempt - SPINS - YIELDS;
+			if (parked <= 0 || parked % PARKS_PER_CHECK != 0) {
+				return true;
+			}
+			
+			Optional<ProcessHandle> peer = ProcessHandle.of((long) LONGS.getAcquire(this.map, this.peerPid));
+			return peer.isPresent() && peer.get().isAlive();
+		}
+
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		public void close() {
+			this.open = false;
+			LONGS.setRelease(this.map, this.in + CLOSED, 1L);
+			LONGS.setRelease(this.map, this.out + CLOSED, 1L);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Encrypts the traffic of a socket channel with TLS. The SSLEngine does the
+ * encryption and this class moves its records to and from the socket, so the
+ * same engine could be driven by a selector instead of a blocking channel.
+ * Reads and writes may happen on different threads at the same time, as the
+ * server and clients already do with plain sockets.
+ * 
+ * Engines created from the same SSLContext with the peer's host and port share
+ * a session cache, so reconnecting resumes the session instead of running a
+ * full handshake.
+ * 
+ * @author alfiewn
+ *
+ */
+public class TlsChannel implements ByteChannel {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SocketChannel channel;
+	private SSLEngine engine;
+
+	// encrypted bytes read from the socket that have not been unwrapped yet
+	private ByteBuffer netIn;
+	// encrypted bytes waiting to be written to the socket
+	private ByteBuffer netOut;
+	// decrypted bytes that have not been read yet
+	private ByteBuffer appIn;
+
+	private Object readLock = new Object();
+	private Object writeLock = new Object();
+
+	/**
+	 * Constructor method, sets default fields and allocates buffers big enough for
+	 * the largest TLS record
+	 * 
+	 * @param channel
+	 * 		the connected socket channel, in blocking mode
+	 * @param engine
+	 * 		the engine, already set to client or server mode
+	 */
+	public TlsChannel(SocketChannel channel, SSLEngine engine) {
+		this.channel = channel;
+		this.engine = engine;
+		
+		SSLSession session = engine.getSession();
+		this.netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+		this.netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+		this.appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+	}
+
+	/**
+	 * Runs the handshake until the session is established
+	 * 
+	 * @throws IOException
+	 * 		if the handshake fails or the peer disconnects
+	 */
+	public void handshake() throws IOException {
+		
+		this.engine.beginHandshake();
+		HandshakeStatus status = this.engine.getHandshakeStatus();
+		
+		while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+			switch (status) {
+			case NEED_WRAP:
+				synchronized (this.writeLock) {
+					status = this.wrap(EMPTY).getHandshakeStatus();
+				}
+				break;
+			case NEED_TASK:
+				status = this.runTasks();
+				break;
+			default:
+				synchronized (this.readLock) {
+					SSLEngineResult result = this.unwrap();
+					if (result.getStatus() == Status.CLOSED) {
+						throw new SSLException("Connection closed during handshake");
+					}
+					status = result.getHandshakeStatus();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the TLS session, which says whether it was resumed
+	 */
+	public SSLSession getSession() {
+		return this.engine.getSession();
+	}
+
+	/**
+	 * @return the socket channel the records are sent over
+	 */
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Reads decrypted bytes, blocking until at least one is available
+	 * 
+	 * @param dst
+	 * 		the buffer to read into
+	 * @return the number of bytes read, or -1 once the peer has closed the session
+	 * @throws IOException
+	 * 		if the connection fails
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		
+		synchronized (this.readLock) {
+			while (this.appIn.position() == 0) {
+				SSLEngineResult result = this.unwrap();
+				
+				if (result.getStatus() == Status.CLOSED) {
+					return -1;
+				}
+				
+				// a key update or session ticket may need an answer
+				HandshakeStatus status = result.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					status = this.runTasks();
+				}
+				if (status == HandshakeStatus.NEED_WRAP) {
+					synchronized (this.writeLock) {
+						this.wrap(EMPTY);
+					}
+				}
+			}
+			
+			this.appIn.flip();
+			int count = Math.min(this.appIn.remaining(), dst.remaining());
+			int limit = this.appIn.limit();
+			this.appIn.limit(this.appIn.position() + count);
+			dst.put(this.appIn);
+			this.appIn.limit(limit);
+			this.appIn.compact();
+			return count;
+		}
+	}
+
+	/**
+	 * Encrypts and writes all of the bytes in a buffer
+	 * 
+	 * @param src
+	 * 		the buffer to write
+	 * @return the number of bytes written
+	 * @throws IOException
+	 * 		if the connection fails or has been closed
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		
+		synchronized (this.writeLock) {
+			int written = 0;
+			
+			while (src.hasRemaining()) {
+				SSLEngineResult result = this.wrap(src);
+				
+				if (result.getStatus() == Status.CLOSED) {
+					throw new SSLException("Session has been closed");
+				}
+				written += result.bytesConsumed();
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * @return whether the socket channel is open
+	 */
+	public boolean isOpen() {
+		return this.channel.isOpen();
+	}
+
+	/**
+	 * Sends the close notification, then closes the socket channel
+	 */
+	public void close() throws IOException {
+		
+		try {
+			synchronized (this.writeLock) {
+				this.engine.closeOutbound();
+				this.wrap(EMPTY);
+			}
+		} catch (IOException e) {
+			//peer has already gone
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Encrypts bytes into one record and writes it to the socket. Must be called
+	 * holding the write lock.
+	 * 
+	 * @param src
+	 * 		the bytes to encrypt
+	 * @return the result from the engine
+	 * @throws IOException
+	 * 		if the connection fails
+	 */
+	private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+		
+		this.netOut.clear();
+		SSLEngineResult result = this.engine.wrap(src, this.netOut);
+		this.netOut.flip();
+		
+		while (this.netOut.hasRemaining()) {
+			this.channel.write(this.netOut);
+		}
+		return result;
+	}
+
+	/**
+	 * Decrypts one record into the application buffer, reading from the socket
+	 * until a whole record has arrived. Must be called holding the read lock.
+	 * 
+	 * @return the result from the engine
+	 * @throws IOException
+	 * 		if the connection fails
+	 */
+	private SSLEngineResult unwrap() throws IOException {
+		
+		while (true) {
+			this.netIn.flip();
+			SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+			this.netIn.compact();
+			
+			if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+				if (this.channel.read(this.netIn) < 0) {
+					throw new EOFException();
+				}
+			} else if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+				throw new SSLException("Record larger than the application buffer");
+			} else {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Runs the slow parts of the handshake the engine has handed back
+	 * 
+	 * @return the handshake status once they have run
+	 */
+	private HandshakeStatus runTasks() {
+		
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+		return this.engine.getHandshakeStatus();
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records every frame received from clients to a capture file, so real traffic
+ * can be replayed against a server with ChatReplay. The file starts with MAGIC,
+ * followed by one record per frame: the nanoseconds since the capture started,
+ * the session it was received on, its type and the message as a frame. A record
+ * of type CLOSE with an empty message marks a session closing. Records are
+ * written on a thread of their own, so capturing does not hold up the
+ * connection. At most QUEUE_SIZE records wait for it, and records arriving
+ * while the queue is full are dropped and counted rather than held in memory.
+ * 
+ * @author alfiewn
+ *
+ */
+public class TrafficCapture {
+
+	public static final long MAGIC = 0x43484154434150L;
+	
+	public static final int NAME = 0;
+	public static final int CHAT = 1;
+	public static final int CONTROL = 2;
+	public static final int EXIT = 3;
+	public static final int FILE = 4;
+	public static final int CLOSE = 5;
+	
+	public static final int QUEUE_SIZE = 64 * 1024;
+	public static final long CLOSE_MILLIS = 2000;
+
+	private DataOutputStream out;
+	private long start = System.nanoTime();
+	private ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+	
+	// records handed to the writer and not yet written, the file is flushed when
+	// it catches up
+	private AtomicInteger waiting = new AtomicInteger();
+	private LongAdder records = new LongAdder();
+	private LongAdder dropped = new LongAdder();
+	private volatile IOException failed;
+	private File file;
+
+	/**
+	 * Constructor method, creates the capture file
+	 * 
+	 * @param file
+	 * 		the file to write
+	 * @throws IOException
+	 * 		if the file cannot be created
+	 */
+	public TrafficCapture(File file) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		this.out.writeLong(MAGIC);
+	}
+
+	/**
+	 * Records a frame received from a client
+	 * 
+	 * @param session
+	 * 		the session it was received on
+	 * @param type
+	 * 		the type of the frame
+	 * @param frame
+	 * 		the buffer holding the message, from its position to its limit
+	 */
+	public void record(int session, int type, ByteBuffer frame) {
+		
+		byte[] message = new byte[frame.remaining()];
+		frame.duplicate().get(message);
+		this.record(System.nanoTime() - this.start, session, type, message);
+	}
+
+	/**
+	 * Records a session closing
+	 * 
+	 * @param session
+	 * 		the session
+	 */
+	public void close(int session) {
+		this.record(System.nanoTime() - this.start, session, CLOSE, new byte[0]);
+	}
+
+	/**
+	 * Hands a record to the writer thread, or drops it if too many are waiting
+	 * 
+	 * @param time
+	 * 		the nanoseconds since the capture started
+	 * @param session
+	 * 		the session
+	 * @param type
+	 * 		the type of the record
+	 * @param message
+	 * 		the message
+	 */
+	private void record(final long time, final int session, final int type, final byte[] message) {
+		
+		this.waiting.incrementAndGet();
+		try {
+			this.writer.execute(new Runnable() {
+				public void run() {
+					try {
+						out.writeLong(time);
+						out.writeInt(session);
+						out.writeByte(type);
+						out.writeShort(message.length);
+						out.write(message);
+						records.increment();
+						
+						if (waiting.decrementAndGet() == 0) {
+							out.flush();
+						}
+					} catch (IOException e) {
+						failed = e;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.waiting.decrementAndGet();
+			this.dropped.increment();
+		}
+	}
+
+	/**
+	 * Writes the records still waiting and closes the capture file, unless the
+	 * writer takes longer than CLOSE_MILLIS. Records handed over afterwards are
+	 * dropped.
+	 */
+	public void finish() {
+		
+		this.writer.shutdown();
+		try {
+			if (this.writer.awaitTermination(CLOSE_MILLIS, TimeUnit.MILLISECONDS)) {
+				this.out.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			this.failed = e;
+		}
+	}
+
+	@Override
+	public String toString() {
+		IOException failed = this.failed;
+		long dropped = this.dropped.sum();
+		return this.records.sum() + " frames captured to " + this.file
+				+ (dropped == 0 ? "" : ", " + dropped + " dropped as the writer fell behind")
+				+ (failed == null ? "" : ", the last write failed: " + failed.getMessage());
+	}
+}
@@ -0,0 +1,24 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+/**
+ * Where the server accepts its connections from. Each connection is a blocking
+ * byte channel carrying frames, so the sessions and routing of the server do not
+ * depend on how the bytes travel. The server listens on a socket, and the
+ * loopback transport connects clients in the same process without one.
+ * 
+ * @author alfiewn
+ *
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Waits for the next connection
+	 * 
+	 * @return the channel of the connection
+	 * @throws IOException
+	 * 		if the transport has been closed
+	 */
+	ByteChannel accept() throws IOException;
+}